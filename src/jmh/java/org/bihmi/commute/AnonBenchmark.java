@@ -0,0 +1,240 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.deidentifier.arx.ARXConfiguration;
+import org.deidentifier.arx.ARXProcessStatistics;
+import org.deidentifier.arx.ARXResult;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the phases of the anonymization process separately. Each phase
+ * is measured as a single shot with fresh input, as ARX consumes the data
+ * definition during anonymization. Collapsing is measured with the input
+ * loaded completely and with rows collapsed while they are read, together
+ * with the peak heap usage of each.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class AnonBenchmark {
+
+    /**
+     * Synthetic cohort on disk
+     */
+    @State(Scope.Benchmark)
+    public static class Cohort {
+
+        /** Number of rows */
+        @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+        public int rows;
+
+        /** Input file */
+        File input;
+
+        /** Output file */
+        File output;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            input = File.createTempFile("cohort-" + rows + "-", ".csv");
+            output = File.createTempFile("cohort-" + rows + "-", ".out.csv");
+            CohortGenerator.write(input, rows, CohortGenerator.DEFAULT_SEED);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(input.toPath());
+            Files.deleteIfExists(output.toPath());
+        }
+    }
+
+    /**
+     * Freshly loaded data
+     */
+    @State(Scope.Thread)
+    public static class Loaded {
+
+        /** Data */
+        Data data;
+
+        @Setup(Level.Invocation)
+        public void setup(Cohort cohort) throws IOException {
+            data = IO.loadData(cohort.input);
+        }
+    }
+
+    /**
+     * Freshly loaded data with prepared definition
+     */
+    @State(Scope.Thread)
+    public static class Prepared {
+
+        /** Data */
+        Data data;
+
+        /** Config */
+        ARXConfiguration config;
+
+        @Setup(Level.Invocation)
+        public void setup(Cohort cohort) throws IOException {
+            data = IO.loadData(cohort.input);
+            Anon.prepareDefinition(data, new HierarchyCache());
+            config = Anon.createConfiguration();
+        }
+    }
+
+    /**
+     * Result of the initial anonymization
+     */
+    @State(Scope.Thread)
+    public static class Anonymized {
+
+        /** Result */
+        ARXResult result;
+
+        /** Output */
+        DataHandle output;
+
+        @Setup(Level.Invocation)
+        public void setup(Cohort cohort) throws IOException {
+            Data data = IO.loadData(cohort.input);
+            Anon.prepareDefinition(data, new HierarchyCache());
+            result = Anon.anonymize(data, Anon.createConfiguration());
+            output = result.getOutput();
+        }
+    }
+
+    /**
+     * Optimized output, written repeatedly
+     */
+    @State(Scope.Thread)
+    public static class Optimized {
+
+        /** Output */
+        DataHandle output;
+
+        @Setup(Level.Trial)
+        public void setup(Cohort cohort) throws IOException {
+            Data data = IO.loadData(cohort.input);
+            output = Anon.anonymizeCommuteData(data);
+        }
+    }
+
+    /**
+     * Peak heap usage of an invocation, reported as a secondary result. The
+     * peaks of the heap pools are reset after a garbage collection before
+     * each invocation and summed up afterwards, which bounds the peak of the
+     * whole heap from above.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class HeapPeak {
+
+        /** Peak heap usage in bytes */
+        public long peakHeapBytes;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void measure() {
+            long peak = 0L;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            peakHeapBytes = peak;
+        }
+    }
+
+    @Benchmark
+    public Data load(Cohort cohort) throws IOException {
+        return IO.loadData(cohort.input);
+    }
+
+    @Benchmark
+    public Data loadParallel(Cohort cohort) throws IOException {
+        return IO.loadData(cohort.input, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public Data collapse(Cohort cohort, HeapPeak peak) throws IOException {
+        return new TupleCollapse(Anon.K).apply(IO.loadData(cohort.input, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Benchmark
+    public Data collapseStreamed(Cohort cohort, HeapPeak peak) throws IOException {
+        try (CSVLoader.Rows rows = new CSVLoader.Rows(cohort.input, IO.COLUMNS, IO.TYPES, Runtime.getRuntime().availableProcessors())) {
+            return new TupleCollapse(Anon.K).apply(rows, IO.TYPES);
+        }
+    }
+
+    @Benchmark
+    public Data prepareHierarchies(Loaded loaded) {
+        Anon.prepareDefinition(loaded.data, new HierarchyCache());
+        return loaded.data;
+    }
+
+    @Benchmark
+    public ARXResult anonymize(Prepared prepared) throws IOException {
+        return Anon.anonymize(prepared.data, prepared.config);
+    }
+
+    @Benchmark
+    public ARXProcessStatistics optimize(Anonymized anonymized) {
+        return Anon.optimize(anonymized.result, anonymized.output, Anon.O_MIN, "", new RunContext());
+    }
+
+    @Benchmark
+    public File write(Cohort cohort, Optimized optimized) throws IOException {
+        IO.writeResult(optimized.output, cohort.output);
+        return cohort.output;
+    }
+}
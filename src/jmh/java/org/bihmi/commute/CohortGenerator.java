@@ -0,0 +1,147 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates synthetic cohorts resembling the commute health study data.
+ * Marginal distributions and the coupling between the commute modes and
+ * between both distances are fitted to data/CommData.csv.
+ */
+public class CohortGenerator {
+
+    /** Commute modes */
+    private static final String[] MODES = { "car", "public", "walk", "wheels" };
+
+    /** Cumulative distribution of the commute to school */
+    private static final double[] MODE_TO_SCHOOL = { 0.230, 0.559, 0.958, 1.000 };
+
+    /** Cumulative distributions of the commute home, conditional on the commute to school */
+    private static final double[][] MODE_HOME_GIVEN_TO_SCHOOL = {
+        { 0.323, 0.628, 1.000, 1.000 },  // car
+        { 0.009, 0.889, 1.000, 1.000 },  // public
+        { 0.000, 0.000, 0.996, 1.000 },  // walk
+        { 0.000, 0.000, 0.200, 1.000 }   // wheels
+    };
+
+    /** Default seed */
+    public static final long DEFAULT_SEED = 0xC0FFEEL;
+
+    /**
+     * Writes a cohort
+     * @param args rows, output file and optionally a seed
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: CohortGenerator <rows> <output.csv> [seed]");
+            return;
+        }
+        long seed = args.length > 2 ? Long.decode(args[2]) : DEFAULT_SEED;
+        write(new File(args[1]), Integer.parseInt(args[0]), seed);
+    }
+
+    /**
+     * Writes a cohort with the given number of rows
+     * @param output
+     * @param rows
+     * @param seed
+     * @throws IOException
+     */
+    public static void write(File output, int rows, long seed) throws IOException {
+        Random random = new Random(seed);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(output.toPath()), StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write(IO.FIELD_COMMUTE_FROM_SCHOOL + "," + IO.FIELD_COMMUTE_TO_SCHOOL + "," +
+                         IO.FIELD_DISTANCE_TO_SCHOOL + "," + IO.FIELD_DISTANCE_FROM_SCHOOL + "," +
+                         IO.FIELD_MVPA_SQRT + "," + IO.FIELD_VO2_MAX + "," + IO.FIELD_AGE + "," + IO.FIELD_GENDER + "\n");
+            for (int i = 0; i < rows; i++) {
+                writeRow(writer, random);
+            }
+        }
+    }
+
+    /**
+     * Writes a single row
+     * @param writer
+     * @param random
+     * @throws IOException
+     */
+    private static void writeRow(Writer writer, Random random) throws IOException {
+        
+        // Commute
+        int toSchool = draw(MODE_TO_SCHOOL, random);
+        int home = draw(MODE_HOME_GIVEN_TO_SCHOOL[toSchool], random);
+        
+        // Distances are log-normal, the way back is close to the way there
+        double distance = clamp(Math.exp(7.53d + random.nextGaussian()), 50d, 45000d);
+        double distanceBack = clamp(distance * Math.exp(0.2d * random.nextGaussian()), 50d, 45000d);
+        
+        // Measurements
+        double mvpa = clamp(30.4d + 7.7d * random.nextGaussian(), 0.5d, 59.5d);
+        double vo2max = clamp(49.0d + 5.3d * random.nextGaussian(), 25.5d, 59.9d);
+        double age = clamp(13.3d + 1.0d * random.nextGaussian(), 8.05d, 15.95d);
+        String gender = random.nextDouble() < 0.536d ? "male" : "female";
+
+        // Write
+        writer.write(MODES[home]);
+        writer.write(',');
+        writer.write(MODES[toSchool]);
+        writer.write(',');
+        writer.write(Long.toString(Math.round(distance)));
+        writer.write(',');
+        writer.write(Long.toString(Math.round(distanceBack)));
+        writer.write(',');
+        writer.write(String.format(Locale.ROOT, "%.8f,%.8f,%.8f,", mvpa, vo2max, age));
+        writer.write(gender);
+        writer.write('\n');
+    }
+
+    /**
+     * Draws from a cumulative distribution
+     * @param cumulative
+     * @param random
+     * @return
+     */
+    private static int draw(double[] cumulative, Random random) {
+        double value = random.nextDouble();
+        for (int i = 0; i < cumulative.length - 1; i++) {
+            if (value < cumulative[i]) {
+                return i;
+            }
+        }
+        return cumulative.length - 1;
+    }
+
+    /**
+     * Clamps a value
+     * @param value
+     * @param min
+     * @param max
+     * @return
+     */
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -16,24 +16,23 @@
 package org.bihmi.commute;
 
 import java.io.IOException;
-import java.time.Duration;
-import java.time.Instant;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeSet;
 
 import org.deidentifier.arx.ARXAnonymizer;
 import org.deidentifier.arx.ARXConfiguration;
+import org.deidentifier.arx.ARXLattice.ARXNode;
 import org.deidentifier.arx.ARXListener;
 import org.deidentifier.arx.ARXProcessStatistics;
 import org.deidentifier.arx.ARXResult;
 import org.deidentifier.arx.AttributeType;
-import org.deidentifier.arx.AttributeType.MicroAggregationFunction;
 import org.deidentifier.arx.Data;
 import org.deidentifier.arx.DataHandle;
-import org.deidentifier.arx.DataType;
-import org.deidentifier.arx.aggregates.HierarchyBuilderIntervalBased;
 import org.deidentifier.arx.criteria.KAnonymity;
+import org.deidentifier.arx.criteria.PrivacyCriterion;
 import org.deidentifier.arx.exceptions.RollbackRequiredException;
 import org.deidentifier.arx.metric.Metric;
 
@@ -42,6 +41,42 @@ import org.deidentifier.arx.metric.Metric;
  */
 public class Anon {
 
+    /** Parameter of k-anonymity*/
+    static final int K = 2;
+
+    /** Suppression limit*/
+    static final double SUPPRESSION_LIMIT = 1d;
+
+    /** Minimal fraction of records recoded per optimization step*/
+    static final double O_MIN = 1d / 100d;
+
+    /** Seed for drawing*/
+    static final long SEED = 0xDEADBEEF;
+
+    /** Time limit of the heuristic search in milliseconds, unless a deadline is given*/
+    static final int SEARCH_TIME_LIMIT = 30000;
+
+    /** Minimal decrease of suppressed rows per optimization iteration, relative to all rows, when optimizing against a deadline*/
+    static final double PLATEAU = 0.001d;
+
+    /** Maximal generalization level of the commute categories*/
+    static final int MAX_GENERALIZATION_COMMUTE = 2;
+
+    /** Maximal generalization level of the gender*/
+    static final int MAX_GENERALIZATION_GENDER = 0;
+
+    /** Age: 8 to 16 years in quarters of a year*/
+    static final IntervalHierarchySpec AGE = new IntervalHierarchySpec(8d, 16d, .25d, 2, 2);
+
+    /** VO2max: 25 to 60 in steps of 2.5*/
+    static final IntervalHierarchySpec VO2_MAX = new IntervalHierarchySpec(25d, 60d, 2.5d, 2, 5);
+
+    /** MVPA: 0 to 60 in steps of 0.5*/
+    static final IntervalHierarchySpec MVPA = new IntervalHierarchySpec(0d, 60d, .5d, 2, 2, 2, 2);
+
+    /** Distances: 50 to 45000 meters in steps of 2 meters*/
+    static final IntervalHierarchySpec DISTANCE = new IntervalHierarchySpec(50d, 45000d, 2d, 2, 5, 5, 5);
+
     /**
      * Main anonymization process
      *
@@ -50,120 +85,392 @@ public class Anon {
      * @throws IOException
      */
     public static DataHandle anonymizeCommuteData(Data data) throws IOException {
+        return anonymizeCommuteData(data, new RunContext());
+    }
+
+    /**
+     * Main anonymization process
+     *
+     * @param data
+     * @param cache for hierarchies
+     * @return
+     * @throws IOException
+     */
+    public static DataHandle anonymizeCommuteData(Data data, HierarchyCache cache) throws IOException {
+        return anonymizeCommuteData(data, new RunContext(cache, null, new Metrics()));
+    }
+
+    /**
+     * Main anonymization process
+     *
+     * @param data
+     * @param context of the run
+     * @return
+     * @throws IOException
+     */
+    public static DataHandle anonymizeCommuteData(Data data, RunContext context) throws IOException {
+        
+        // Specify transformation rules
+        createRules(data, context).apply(data);
+    	
+        // Prepare config
+        ARXConfiguration config = createConfiguration(data.getHandle().getNumRows(), context.getDeadline());
+
+        // Anonymize
+        ARXResult result;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_ANONYMIZE)) {
+            result = anonymize(data, config, context);
+        }
+
+        // Optimize
+        DataHandle output = result.getOutput();
+        ARXProcessStatistics statistics;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_OPTIMIZE)) {
+            statistics = optimize(result, output, O_MIN, "", context);
+        }
+        
+        // Done
+        record(context.getMetrics(), statistics, output);
+        return output;
+    }
+
+    /**
+     * Specifies hierarchies, microaggregation functions and generalization limits
+     *
+     * @param data
+     * @param cache
+     */
+    static void prepareDefinition(Data data, HierarchyCache cache) {
+        createRules(data, new RunContext(cache, null, new Metrics())).apply(data);
+    }
+
+    /**
+     * Derives hierarchies, microaggregation functions and generalization limits
+     *
+     * @param data
+     * @param context
+     * @return
+     */
+    static TransformationRules createRules(Data data, RunContext context) {
+        
+        // Profile all columns in one pass
+        ColumnProfile profile;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_PROFILE, true)) {
+            profile = ColumnProfile.create(data.getHandle(), Runtime.getRuntime().availableProcessors());
+        }
+        checkRange(profile, IO.FIELD_AGE, AGE, context.getMetrics());
+        checkRange(profile, IO.FIELD_VO2_MAX, VO2_MAX, context.getMetrics());
+        checkRange(profile, IO.FIELD_MVPA_SQRT, MVPA, context.getMetrics());
+        checkRange(profile, IO.FIELD_DISTANCE_TO_SCHOOL, DISTANCE, context.getMetrics());
+        checkRange(profile, IO.FIELD_DISTANCE_FROM_SCHOOL, DISTANCE, context.getMetrics());
         
         // Prepare microaggregation for commute categories
-        int commToSchIndex = data.getHandle().getColumnIndexOf(IO.FIELD_COMMUTE_TO_SCHOOL);
-        int commFromSchIndex = data.getHandle().getColumnIndexOf(IO.FIELD_COMMUTE_FROM_SCHOOL);
-        Map<String, Double> commToSch = data.getHandle().getStatistics().getFrequencyDistribution(commToSchIndex).asMap();
-        Map<String, Double> commFromSch = data.getHandle().getStatistics().getFrequencyDistribution(commFromSchIndex).asMap();
+        Map<String, Double> commToSch = profile.getFrequencyDistribution(IO.FIELD_COMMUTE_TO_SCHOOL);
+        Map<String, Double> commFromSch = profile.getFrequencyDistribution(IO.FIELD_COMMUTE_FROM_SCHOOL);
         
-        // Seed for drawing
-        long seed = 0xDEADBEEF;
-    	
-        // Specify transformation rules
-        data.getDefinition().setAttributeType(IO.FIELD_COMMUTE_FROM_SCHOOL, getCommuteHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_COMMUTE_FROM_SCHOOL, MicroAggregationFunction.createModeWithDistributionFallback(commFromSch, seed), true);
-        data.getDefinition().setMaximumGeneralization(IO.FIELD_COMMUTE_FROM_SCHOOL, 2);
-        data.getDefinition().setAttributeType(IO.FIELD_COMMUTE_TO_SCHOOL, getCommuteHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_COMMUTE_TO_SCHOOL, MicroAggregationFunction.createModeWithDistributionFallback(commToSch, seed), true);
-        data.getDefinition().setMaximumGeneralization(IO.FIELD_COMMUTE_TO_SCHOOL, 2);
-        data.getDefinition().setAttributeType(IO.FIELD_DISTANCE_TO_SCHOOL, getDistToSchoolHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_DISTANCE_TO_SCHOOL, AttributeType.MicroAggregationFunction.createArithmeticMean(), true);
-        data.getDefinition().setAttributeType(IO.FIELD_DISTANCE_FROM_SCHOOL, getDistFromSchoolHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_DISTANCE_FROM_SCHOOL, AttributeType.MicroAggregationFunction.createArithmeticMean(), true);
-        data.getDefinition().setAttributeType(IO.FIELD_MVPA_SQRT, getMVPAHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_MVPA_SQRT, AttributeType.MicroAggregationFunction.createArithmeticMean(), true);
-        data.getDefinition().setAttributeType(IO.FIELD_VO2_MAX, getVO2MaxHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_VO2_MAX, AttributeType.MicroAggregationFunction.createArithmeticMean(), true);
-        data.getDefinition().setAttributeType(IO.FIELD_AGE, getAgeHierarchy(data));
-        data.getDefinition().setMicroAggregationFunction(IO.FIELD_AGE, AttributeType.MicroAggregationFunction.createArithmeticMean(), true);
-        data.getDefinition().setAttributeType(IO.FIELD_GENDER, getGenderHierarchy());
-        data.getDefinition().setMaximumGeneralization(IO.FIELD_GENDER, 0);
+        // Rules
+        TransformationRules rules = new TransformationRules(SEED);
+        HierarchyCache cache = context.getCache();
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_HIERARCHY_BUILD)) {
     	
+            // Specify transformation rules
+            rules.setHierarchy(IO.FIELD_COMMUTE_FROM_SCHOOL, getCommuteHierarchy());
+            rules.setModeWithDistributionFallback(IO.FIELD_COMMUTE_FROM_SCHOOL, commFromSch);
+            rules.setMaximumGeneralization(IO.FIELD_COMMUTE_FROM_SCHOOL, MAX_GENERALIZATION_COMMUTE);
+            rules.setHierarchy(IO.FIELD_COMMUTE_TO_SCHOOL, getCommuteHierarchy());
+            rules.setModeWithDistributionFallback(IO.FIELD_COMMUTE_TO_SCHOOL, commToSch);
+            rules.setMaximumGeneralization(IO.FIELD_COMMUTE_TO_SCHOOL, MAX_GENERALIZATION_COMMUTE);
+            rules.setHierarchy(IO.FIELD_DISTANCE_TO_SCHOOL, getDistanceHierarchy(profile, IO.FIELD_DISTANCE_TO_SCHOOL, cache));
+            rules.setArithmeticMean(IO.FIELD_DISTANCE_TO_SCHOOL);
+            rules.setHierarchy(IO.FIELD_DISTANCE_FROM_SCHOOL, getDistanceHierarchy(profile, IO.FIELD_DISTANCE_FROM_SCHOOL, cache));
+            rules.setArithmeticMean(IO.FIELD_DISTANCE_FROM_SCHOOL);
+            rules.setHierarchy(IO.FIELD_MVPA_SQRT, getMVPAHierarchy(profile, cache));
+            rules.setArithmeticMean(IO.FIELD_MVPA_SQRT);
+            rules.setHierarchy(IO.FIELD_VO2_MAX, getVO2MaxHierarchy(profile, cache));
+            rules.setArithmeticMean(IO.FIELD_VO2_MAX);
+            rules.setHierarchy(IO.FIELD_AGE, getAgeHierarchy(profile, cache));
+            rules.setArithmeticMean(IO.FIELD_AGE);
+            rules.setHierarchy(IO.FIELD_GENDER, getGenderHierarchy());
+            rules.setMaximumGeneralization(IO.FIELD_GENDER, MAX_GENERALIZATION_GENDER);
+        }
+        return rules;
+    }
+
+    /**
+     * Creates the configuration of the transformation model
+     *
+     * @return
+     */
+    static ARXConfiguration createConfiguration() {
+        return createConfiguration(0, null);
+    }
+
+    /**
+     * Creates the configuration of the transformation model, limiting the
+     * search to its share of the deadline
+     *
+     * @param rows number of rows to anonymize
+     * @param deadline may be null
+     * @return
+     */
+    static ARXConfiguration createConfiguration(int rows, Deadline deadline) {
+        return createConfiguration(K, SUPPRESSION_LIMIT, rows, deadline);
+    }
+
+    /**
+     * Creates the configuration of the transformation model with the given
+     * parameters, limiting the search to its share of the deadline
+     *
+     * @param k
+     * @param suppressionLimit
+     * @param rows number of rows to anonymize
+     * @param deadline may be null
+     * @return
+     */
+    static ARXConfiguration createConfiguration(int k, double suppressionLimit, int rows, Deadline deadline) {
+        
         // Prepare config
         ARXConfiguration config = ARXConfiguration.create();
 
         // Configure transformation model
-        config.setSuppressionLimit(1d);
-        config.addPrivacyModel(new KAnonymity(2));
+        config.setSuppressionLimit(suppressionLimit);
+        config.addPrivacyModel(new KAnonymity(k));
         config.setQualityModel(Metric.createLossMetric(0, Metric.AggregateFunction.GEOMETRIC_MEAN));
         config.setAlgorithm(ARXConfiguration.AnonymizationAlgorithm.BEST_EFFORT_BOTTOM_UP);
-        config.setHeuristicSearchTimeLimit(30000);
-        
-        // Status
-        System.out.println("Preparations completed");
-        
-        // Timer
-        Instant start = Instant.now();
+        config.setHeuristicSearchTimeLimit(deadline == null ? SEARCH_TIME_LIMIT : deadline.getSearchTimeLimit(rows));
+        return config;
+    }
 
-        // Anonymize
+    /**
+     * Describes all settings which determine the result for a given input. The
+     * description is read from the configuration and the hierarchies which are
+     * used for the anonymization, so that it follows any change to them.
+     *
+     * @param deadline may be null
+     * @return
+     */
+    static String getSettings(Deadline deadline) {
+        ARXConfiguration config = createConfiguration();
+        Metric<?> metric = config.getQualityModel();
+        TreeSet<String> models = new TreeSet<>();
+        for (PrivacyCriterion model : config.getPrivacyModels()) {
+            models.add(model.getClass().getSimpleName() + "(" + model + ")");
+        }
+        return "privacyModels=" + models +
+               ", suppression=" + config.getSuppressionLimit() +
+               ", metric=" + metric.getName() + "(" + metric.getGeneralizationSuppressionFactor() + ", " + metric.getAggregateFunction() + ")" +
+               ", algorithm=" + config.getAlgorithm() +
+               ", searchTimeLimit=" + (deadline == null ? String.valueOf(config.getHeuristicSearchTimeLimit()) : "deadline") +
+               ", oMin=" + O_MIN +
+               ", seed=" + SEED +
+               ", age=" + AGE +
+               ", vo2max=" + VO2_MAX +
+               ", mvpa=" + MVPA +
+               ", distance=" + DISTANCE +
+               ", commute=" + Arrays.deepToString(getCommuteHierarchy().getHierarchy()) + ", maxGeneralization=" + MAX_GENERALIZATION_COMMUTE +
+               ", gender=" + Arrays.deepToString(getGenderHierarchy().getHierarchy()) + ", maxGeneralization=" + MAX_GENERALIZATION_GENDER;
+    }
+
+    /**
+     * Performs the initial anonymization
+     *
+     * @param data
+     * @param config
+     * @return
+     * @throws IOException
+     */
+    static ARXResult anonymize(Data data, ARXConfiguration config) throws IOException {
+        return anonymize(data, config, null);
+    }
+
+    /**
+     * Performs the initial anonymization, which is aborted when the run is cancelled
+     *
+     * @param data
+     * @param config
+     * @param context may be null
+     * @return
+     * @throws IOException
+     */
+    static ARXResult anonymize(Data data, ARXConfiguration config, RunContext context) throws IOException {
         ARXAnonymizer anonymizer = new ARXAnonymizer();
-        ARXResult result = anonymizer.anonymize(data, config);
-        
-        // Status
-        System.out.println("Initial anonymization performed");
+        if (context != null) {
+            anonymizer.setListener(new ARXListener() {
+                @Override
+                public void progress(double arg0) {
+                    context.checkCancelled();
+                }
+            });
+        }
+        return anonymizer.anonymize(data, config);
+    }
 
-        // Optimize
-        DataHandle output = result.getOutput();
+    /**
+     * Optimizes the output, aborting when the run is cancelled. Without deadline,
+     * ARX's iterative optimization recodes suppressed rows until no more can be
+     * recoded, reporting its progress and the throughput of the complete
+     * optimization. With the deadline of the run, the output is optimized iteration
+     * by iteration, reporting the throughput of each iteration. This stops when an
+     * iteration recodes fewer rows than a small fraction of all rows, when the
+     * deadline has passed or when the next iteration would not finish in time. The
+     * duration of the next iteration is that of the previous one; the first one is
+     * estimated from the throughput of the search, as each iteration anonymizes the
+     * suppressed rows. Iterations are not interrupted, so the output is the best one
+     * at the last completed iteration. The number of rows recoded by an iteration
+     * only approximates how much it improves the output, it does not measure its
+     * quality. Always stops when no suppressed row is left.
+     *
+     * @param result
+     * @param output
+     * @param oMin minimal fraction of records recoded per step
+     * @param label prefix of status messages
+     * @param context of the run
+     * @return statistics of the complete process
+     */
+    static ARXProcessStatistics optimize(ARXResult result, DataHandle output, double oMin, String label, RunContext context) {
+        Deadline deadline = context.getDeadline();
         ARXProcessStatistics statistics = result.getProcessStatistics();
-        double oMin = 1d / 100d;
+        int suppressed = getNumSuppressed(output);
+        
+        // Without deadline
+        if (deadline == null) {
+            long start = System.currentTimeMillis();
+            try {
+                statistics = statistics.merge(result.optimizeIterativeFast(output, oMin, new ARXListener() {
+                    int progress = -1;
+                    @Override
+                    public void progress(double arg0) {
+                        context.checkCancelled();
+                        int current = (int)(Math.round(arg0 * 100d));
+                        if (current != progress) {
+                            progress = current;
+                            System.out.println(label + "Optimizing. Progress: " + progress + "%");
+                        }
+                    }
+                }));
+            } catch (RollbackRequiredException e) {
+                throw new RuntimeException(e);
+            }
+            long duration = System.currentTimeMillis() - start;
+            int current = getNumSuppressed(output);
+            System.out.println(label + "Optimization: " + (suppressed - current) + " rows recoded in " + duration + " ms (" +
+                               Math.round((suppressed - current) * 1000d / Math.max(1L, duration)) + " rows/s), " + current + " rows suppressed");
+            return statistics;
+        }
+        
+        // Optimize iteratively until the budget is exhausted or the quality plateaus
+        double minRecoded = Math.max(1d, PLATEAU * output.getNumRows());
+        long duration = estimateIteration(result, output.getNumRows(), suppressed);
+        int iteration = 0;
         try {
-        	statistics = statistics.merge(result.optimizeIterativeFast(output, oMin, new ARXListener() {
-            	int progress = -1;
-				@Override
-				public void progress(double arg0) {
-					int current = (int)(Math.round(arg0 * 100d));
-					if (current != progress) {
-						progress = current;
-						System.out.println("Optimizing. Progress: " + progress + "%");
-					}
-				}
-			}));
+            while (suppressed > 0 && result.isOptimizable(output)) {
+                if (deadline.isExpired() || !deadline.allows(duration)) {
+                    System.out.println(label + "Deadline reached after " + iteration + " iterations, next iteration expected to take " + duration +
+                                       " ms, keeping the result of the last completed iteration");
+                    break;
+                }
+                long start = System.currentTimeMillis();
+                statistics = statistics.merge(result.optimizeFast(output, oMin, new ARXListener() {
+                    @Override
+                    public void progress(double arg0) {
+                        context.checkCancelled();
+                    }
+                }));
+                duration = System.currentTimeMillis() - start;
+                int current = getNumSuppressed(output);
+                int recoded = suppressed - current;
+                iteration++;
+                System.out.println(label + "Optimizing. Iteration " + iteration + ": " + recoded + " rows recoded in " + duration + " ms (" +
+                                   Math.round(recoded * 1000d / Math.max(1L, duration)) + " rows/s), " + current + " rows suppressed");
+                if (recoded < minRecoded) {
+                    break;
+                }
+                suppressed = current;
+            }
         } catch (RollbackRequiredException e) {
             throw new RuntimeException(e);
         }
-        
-        // Timer
-        Instant end = Instant.now();
-        Duration timeElapsed = Duration.between(start, end);
-        LocalTime time = LocalTime.ofSecondOfDay(timeElapsed.getSeconds()).withNano(timeElapsed.getNano());
-        System.out.println("Time taken: " + time.format(DateTimeFormatter.ofPattern("HH:mm:ss.SSS")));
-        
-        // Status
-        System.out.println("Transformation schemes applied: " + statistics.getNumberOfSteps());
-        
-        // Done
-        return output;
+        return statistics;
     }
 
     /**
-     * Age hierarchy
+     * Estimates the duration of the first optimization iteration from the time
+     * the search took for all rows
+     *
+     * @param result
+     * @param rows
+     * @param suppressed
+     * @return in milliseconds
+     */
+    static long estimateIteration(ARXResult result, int rows, int suppressed) {
+        return rows == 0 ? 0L : (long) Math.ceil((double) result.getTime() * suppressed / rows);
+    }
+
+    /**
+     * Returns the generalization level of each quasi-identifier of a transformation
      *
+     * @param node
      * @return
      */
-    private static AttributeType.Hierarchy getAgeHierarchy(Data data) {
-    	
-    	// Specs
-        double minAge = 8d;
-        double maxAge =  16d;
-        
-        // Init
-        HierarchyBuilderIntervalBased<Double> hierarchyBuilder = HierarchyBuilderIntervalBased.create(
-                DataType.DECIMAL,
-                new HierarchyBuilderIntervalBased.Range<Double>(minAge, minAge, minAge),
-                new HierarchyBuilderIntervalBased.Range<Double>(maxAge, maxAge, maxAge));
-
-        // Define base intervals
-        hierarchyBuilder.setAggregateFunction(DataType.DECIMAL.createAggregate().createArithmeticMeanFunction());
-        hierarchyBuilder.addInterval(minAge, minAge+.25d);
-        
-        // Define grouping
-        hierarchyBuilder.getLevel(0).addGroup(2);
-        hierarchyBuilder.getLevel(1).addGroup(2);
+    static Map<String, Integer> getTransformation(ARXNode node) {
+        Map<String, Integer> levels = new LinkedHashMap<>();
+        String[] attributes = node.getQuasiIdentifyingAttributes();
+        int[] transformation = node.getTransformation();
+        for (int i = 0; i < attributes.length; i++) {
+            levels.put(attributes[i], transformation[i]);
+        }
+        return levels;
+    }
+
+    /**
+     * Records statistics of the process and the output
+     *
+     * @param metrics
+     * @param statistics
+     * @param output
+     */
+    static void record(Metrics metrics, ARXProcessStatistics statistics, DataHandle output) {
+        metrics.add("arx_transformation_steps", statistics.getNumberOfSteps());
+        metrics.add("rows_anonymized", output.getNumRows());
+        metrics.add("rows_suppressed_after_optimization", getNumSuppressed(output));
+    }
+
+    /**
+     * Returns the number of suppressed rows
+     *
+     * @param output
+     * @return
+     */
+    static int getNumSuppressed(DataHandle output) {
+        int suppressed = 0;
+        for (int row = 0; row < output.getNumRows(); row++) {
+            if (output.isOutlier(row)) {
+                suppressed++;
+            }
+        }
+        return suppressed;
+    }
 
-        // Prepare and return
-        hierarchyBuilder.prepare(data.getHandle().getDistinctValues(data.getHandle().getColumnIndexOf(IO.FIELD_AGE)));
-        return hierarchyBuilder.build();
+    /**
+     * Returns the fraction of suppressed rows
+     *
+     * @param output
+     * @return
+     */
+    static double getSuppressedFraction(DataHandle output) {
+        int rows = output.getNumRows();
+        return rows == 0 ? 0d : (double) getNumSuppressed(output) / (double) rows;
+    }
+
+    /**
+     * Age hierarchy
+     *
+     * @param profile
+     * @param cache
+     * @return
+     */
+    private static AttributeType.Hierarchy getAgeHierarchy(ColumnProfile profile, HierarchyCache cache) {
+        return cache.get(AGE, profile.getDistinctValues(IO.FIELD_AGE));
     }
 
     /**
@@ -171,7 +478,7 @@ public class Anon {
      *
      * @return
      */
-    private static AttributeType.Hierarchy getGenderHierarchy() {
+    static AttributeType.Hierarchy getGenderHierarchy() {
         AttributeType.Hierarchy.DefaultHierarchy hierarchy = AttributeType.Hierarchy.create();
         hierarchy.add("female");
         hierarchy.add("male");
@@ -180,140 +487,58 @@ public class Anon {
 
     /**
      * VO2Max hierarchy
-     * @param data
+     * @param profile
+     * @param cache
      * @return
      */
-    private static AttributeType.Hierarchy getVO2MaxHierarchy(Data data) {
-    	
-    	// Specs
-        double minValue = 25d;
-        double maxValue =  60d;
-        double intervalRange = 2.5d;
-
-        // Init
-        HierarchyBuilderIntervalBased<Double> hierarchyBuilder = HierarchyBuilderIntervalBased.create(
-                DataType.DECIMAL,
-                new HierarchyBuilderIntervalBased.Range<Double>(minValue, minValue, minValue),
-                new HierarchyBuilderIntervalBased.Range<Double>(maxValue, maxValue, maxValue));
-
-        // Define base intervals
-        hierarchyBuilder.setAggregateFunction(DataType.DECIMAL.createAggregate().createArithmeticMeanFunction());
-        hierarchyBuilder.addInterval(minValue, minValue + intervalRange);
-        
-        // Define grouping
-        hierarchyBuilder.getLevel(0).addGroup(2);
-        hierarchyBuilder.getLevel(1).addGroup(5);
-
-        // Prepare and return
-        hierarchyBuilder.prepare(data.getHandle().getDistinctValues(data.getHandle().getColumnIndexOf(IO.FIELD_VO2_MAX)));
-        return hierarchyBuilder.build();
+    private static AttributeType.Hierarchy getVO2MaxHierarchy(ColumnProfile profile, HierarchyCache cache) {
+        return cache.get(VO2_MAX, profile.getDistinctValues(IO.FIELD_VO2_MAX));
     }
 
     /**
      * MVPA hierarchy
-     * @param data
+     * @param profile
+     * @param cache
      * @return
      */
-    private static AttributeType.Hierarchy getMVPAHierarchy(Data data) {
-    	
-    	// Specs
-        double minValue = 0d;
-        double maxValue =  60d;
-        double intervalRange = .5d;
-
-        // Init
-        HierarchyBuilderIntervalBased<Double> hierarchyBuilder = HierarchyBuilderIntervalBased.create(
-                DataType.DECIMAL,
-                new HierarchyBuilderIntervalBased.Range<Double>(minValue, minValue, minValue),
-                new HierarchyBuilderIntervalBased.Range<Double>(maxValue, maxValue, maxValue));
-
-        // Define base intervals
-        hierarchyBuilder.setAggregateFunction(DataType.DECIMAL.createAggregate().createArithmeticMeanFunction());
-        hierarchyBuilder.addInterval(minValue, minValue + intervalRange);
-        
-        // Define grouping
-        hierarchyBuilder.getLevel(0).addGroup(2);
-        hierarchyBuilder.getLevel(1).addGroup(2);
-        hierarchyBuilder.getLevel(2).addGroup(2);
-        hierarchyBuilder.getLevel(3).addGroup(2);
-
-        // Prepare and return
-        hierarchyBuilder.prepare(data.getHandle().getDistinctValues(data.getHandle().getColumnIndexOf(IO.FIELD_MVPA_SQRT)));
-        return hierarchyBuilder.build();
+    private static AttributeType.Hierarchy getMVPAHierarchy(ColumnProfile profile, HierarchyCache cache) {
+        return cache.get(MVPA, profile.getDistinctValues(IO.FIELD_MVPA_SQRT));
     }
 
     /**
-     * Dist to school hierarchy
-     * @param data
+     * Distance hierarchy, prepared for the values of the given column. Both distance
+     * columns share a hierarchy only if they contain the same values, as the shares
+     * of the domain used by the loss metric depend on the values of the hierarchy.
+     * @param profile
+     * @param attribute
+     * @param cache
      * @return
      */
-    private static AttributeType.Hierarchy getDistToSchoolHierarchy(Data data) {
-    	
-    	// Specs
-        double minValue = 50d;
-        double maxValue =  45000d;
-        double intervalRange = 2d;
-
-        // Init
-        HierarchyBuilderIntervalBased<Double> hierarchyBuilder = HierarchyBuilderIntervalBased.create(
-                DataType.DECIMAL,
-                new HierarchyBuilderIntervalBased.Range<Double>(minValue, minValue, minValue),
-                new HierarchyBuilderIntervalBased.Range<Double>(maxValue, maxValue, maxValue));
-
-        // Define base intervals
-        hierarchyBuilder.setAggregateFunction(DataType.DECIMAL.createAggregate().createArithmeticMeanFunction());
-        hierarchyBuilder.addInterval(minValue, minValue + intervalRange);
-        
-        // Define grouping
-        hierarchyBuilder.getLevel(0).addGroup(2);
-        hierarchyBuilder.getLevel(1).addGroup(5);
-        hierarchyBuilder.getLevel(2).addGroup(5);
-        hierarchyBuilder.getLevel(3).addGroup(5);
-
-        // Prepare and return
-        hierarchyBuilder.prepare(data.getHandle().getDistinctValues(data.getHandle().getColumnIndexOf(IO.FIELD_DISTANCE_TO_SCHOOL)));
-        return hierarchyBuilder.build();
+    private static AttributeType.Hierarchy getDistanceHierarchy(ColumnProfile profile, String attribute, HierarchyCache cache) {
+        return cache.get(DISTANCE, profile.getDistinctValues(attribute));
     }
 
     /**
-     * Dist from school hierarchy
-     * @param data
-     * @return
+     * Reports values outside of the domain of a hierarchy
+     * @param profile
+     * @param attribute
+     * @param spec
+     * @param metrics
      */
-    private static AttributeType.Hierarchy getDistFromSchoolHierarchy(Data data) {
-    	
-    	// Specs
-        double minValue = 50d;
-        double maxValue =  45000d;
-        double intervalRange = 2d;
-
-        // Init
-        HierarchyBuilderIntervalBased<Double> hierarchyBuilder = HierarchyBuilderIntervalBased.create(
-                DataType.DECIMAL,
-                new HierarchyBuilderIntervalBased.Range<Double>(minValue, minValue, minValue),
-                new HierarchyBuilderIntervalBased.Range<Double>(maxValue, maxValue, maxValue));
-
-        // Define base intervals
-        hierarchyBuilder.setAggregateFunction(DataType.DECIMAL.createAggregate().createArithmeticMeanFunction());
-        hierarchyBuilder.addInterval(minValue, minValue + intervalRange);
-        
-        // Define grouping
-        hierarchyBuilder.getLevel(0).addGroup(2);
-        hierarchyBuilder.getLevel(1).addGroup(5);
-        hierarchyBuilder.getLevel(2).addGroup(5);
-        hierarchyBuilder.getLevel(3).addGroup(5);
-
-        // Prepare and return
-        hierarchyBuilder.prepare(data.getHandle().getDistinctValues(data.getHandle().getColumnIndexOf(IO.FIELD_DISTANCE_FROM_SCHOOL)));
-        return hierarchyBuilder.build();
+    private static void checkRange(ColumnProfile profile, String attribute, IntervalHierarchySpec spec, Metrics metrics) {
+        long outOfRange = profile.getNumOutOfRange(attribute, spec);
+        metrics.add("out_of_range_" + attribute.toLowerCase(Locale.ROOT), outOfRange);
+        if (outOfRange > 0) {
+            System.out.println("Warning: " + outOfRange + " values of " + attribute + " outside of [" + spec.getMinValue() + ", " + spec.getMaxValue() +
+                               "), observed range [" + profile.getMin(attribute) + ", " + profile.getMax(attribute) + "]");
+        }
     }
 
     /**
      * Commute hierarchy
-     * @param data
      * @return
      */
-    private static AttributeType.Hierarchy getCommuteHierarchy(Data data) {
+    static AttributeType.Hierarchy getCommuteHierarchy() {
         AttributeType.Hierarchy.DefaultHierarchy hierarchy = AttributeType.Hierarchy.create();
         hierarchy.add("car", "car", "car,public", "*");
         hierarchy.add("public", "public", "car,public", "*");
@@ -0,0 +1,282 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Anonymizes many input files on a bounded pool of workers. Files are
+ * processed independently, a failing file is reported and does not abort
+ * the batch.
+ */
+public class Batch {
+
+    /** Exit code of a batch in which at least one file failed */
+    public static final int EXIT_CODE = 4;
+
+    /**
+     * A single file to process
+     */
+    public static class Job {
+
+        /** Input */
+        private final File input;
+
+        /** Output */
+        private final File output;
+
+        /**
+         * Creates a new instance
+         * @param input
+         * @param output
+         */
+        public Job(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        /**
+         * Input
+         * @return
+         */
+        public File getInput() {
+            return input;
+        }
+
+        /**
+         * Output
+         * @return
+         */
+        public File getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * Outcome of a job
+     */
+    public static class Outcome {
+
+        /** Job */
+        private final Job job;
+
+        /** Statistics, null on failure */
+        private final IO.WriteStatistics statistics;
+
+        /** Error, null on success */
+        private final Exception error;
+
+        /** Duration in milliseconds */
+        private final long duration;
+
+        /**
+         * Creates a new instance
+         * @param job
+         * @param statistics
+         * @param error
+         * @param duration
+         */
+        Outcome(Job job, IO.WriteStatistics statistics, Exception error, long duration) {
+            this.job = job;
+            this.statistics = statistics;
+            this.error = error;
+            this.duration = duration;
+        }
+
+        /**
+         * Whether the job succeeded
+         * @return
+         */
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (error == null) {
+                return job.getInput().getName() + ": OK in " + duration + " ms. " + statistics;
+            } else {
+                return job.getInput().getName() + ": FAILED after " + duration + " ms. " + error;
+            }
+        }
+    }
+
+    /**
+     * Collects the jobs from a directory or a manifest. A directory contributes
+     * all CSV files it contains. A manifest lists one input file per line,
+     * optionally followed by a comma and the output file. Empty lines and
+     * lines starting with '#' are ignored. Relative paths in a manifest are
+     * resolved against its directory. Entries must not share an output.
+     * @param source directory or manifest
+     * @param outputDirectory for jobs without explicit output
+     * @return
+     * @throws IOException
+     */
+    public static List<Job> getJobs(File source, File outputDirectory) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if (source.isDirectory()) {
+            File[] files = source.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".csv"));
+            if (files == null) {
+                throw new IOException("Unable to list " + source);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                jobs.add(new Job(file, new File(outputDirectory, file.getName())));
+            }
+        } else {
+            File base = source.getAbsoluteFile().getParentFile();
+            Map<Path, Integer> outputs = new HashMap<>();
+            int number = 0;
+            for (String line : Files.readAllLines(source.toPath(), StandardCharsets.UTF_8)) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separator = line.indexOf(',');
+                File input = resolve(base, separator < 0 ? line : line.substring(0, separator).trim());
+                File output = separator < 0 ? new File(outputDirectory, input.getName()) : resolve(base, line.substring(separator + 1).trim());
+                Integer previous = outputs.put(output.getAbsoluteFile().toPath().normalize(), number);
+                if (previous != null) {
+                    throw new IOException("Line " + number + " of " + source + " writes to the same output as line " + previous + ": " + output);
+                }
+                jobs.add(new Job(input, output));
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Runs the jobs and prints their status and a summary
+     * @param jobs
+     * @param threads
+     * @param cache shared by all jobs
+     * @param metrics accumulated over all jobs
+     * @param bufferSize
+     * @param budget of each job in milliseconds, 0 for none
+     * @return outcomes, in the order of the jobs
+     */
+    public static List<Outcome> run(List<Job> jobs, int threads, HierarchyCache cache, Metrics metrics, int bufferSize, long budget) {
+        
+        // Prepare
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, jobs.size())));
+        AtomicInteger finished = new AtomicInteger();
+        List<Future<Outcome>> futures = new ArrayList<>();
+        
+        // Submit
+        for (Job job : jobs) {
+            futures.add(executor.submit(() -> {
+                Outcome outcome = run(job, new RunContext(cache, budget > 0 ? new Deadline(budget) : null, metrics), bufferSize);
+                System.out.println("[" + finished.incrementAndGet() + "/" + jobs.size() + "] " + outcome);
+                return outcome;
+            }));
+        }
+        executor.shutdown();
+        
+        // Collect
+        List<Outcome> outcomes = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            Outcome outcome;
+            try {
+                outcome = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                executor.shutdownNow();
+                throw new IllegalStateException("Interrupted while waiting for the batch", e);
+            } catch (ExecutionException e) {
+                outcome = new Outcome(jobs.get(i), null, e, 0);
+            }
+            if (!outcome.isSuccessful()) {
+                failed++;
+            }
+            outcomes.add(outcome);
+        }
+        
+        // Summary
+        metrics.set("files_succeeded", jobs.size() - failed);
+        metrics.set("files_failed", failed);
+        System.out.println("Batch completed in " + (System.currentTimeMillis() - start) + " ms. Files: " + jobs.size() +
+                           ", succeeded: " + (jobs.size() - failed) + ", failed: " + failed);
+        for (Outcome outcome : outcomes) {
+            if (!outcome.isSuccessful()) {
+                System.out.println(" - " + outcome);
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Runs a single job
+     * @param job
+     * @param context
+     * @param bufferSize
+     * @return
+     */
+    static Outcome run(Job job, RunContext context, int bufferSize) {
+        long start = System.currentTimeMillis();
+        try {
+            if (job.getInput().getCanonicalFile().equals(job.getOutput().getCanonicalFile())) {
+                throw new IOException("Output would overwrite input");
+            }
+            Metrics metrics = context.getMetrics();
+            Data data;
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_LOAD)) {
+                data = IO.loadData(job.getInput());
+            }
+            DataHandle anonymized = Anon.anonymizeCommuteData(data, context);
+            context.checkCancelled();
+            IO.WriteStatistics statistics;
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_WRITE)) {
+                statistics = IO.writeResult(anonymized, job.getOutput(), new IO.WriteOptions(bufferSize));
+            }
+            statistics.record(metrics);
+            return new Outcome(job, statistics, null, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            return new Outcome(job, null, e, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Resolves a path
+     * @param base
+     * @param path
+     * @return
+     */
+    private static File resolve(File base, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(base, path);
+    }
+}
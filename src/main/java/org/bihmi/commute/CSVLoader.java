@@ -0,0 +1,631 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataType;
+
+/**
+ * Loads comma-separated UTF-8 files by memory-mapping them and parsing
+ * chunks in parallel. Columns are selected by name from the header and
+ * validated against their data types. Values of string columns are
+ * dictionary-encoded, so that each distinct value is held once. The rows
+ * are handed to ARX through an iterator, which releases each chunk once
+ * it has been consumed, or streamed to the caller without creating data
+ * for ARX. Values may be quoted, but must not contain line breaks.
+ */
+public class CSVLoader {
+
+    /** Delimiter */
+    private static final byte DELIMITER = ',';
+
+    /** Quote */
+    private static final byte QUOTE = '"';
+
+    /** Targeted size of a chunk in bytes */
+    static final long CHUNK_SIZE = 32L << 20;
+
+    /**
+     * Rows parsed from a chunk
+     */
+    private static class Chunk {
+
+        /** Rows */
+        private final List<String[]> rows = new ArrayList<>();
+    }
+
+    /**
+     * Parser of a range of the file
+     */
+    private static class Parser {
+
+        /** Buffer */
+        private final MappedByteBuffer buffer;
+
+        /** Offset of the buffer in the file */
+        private final long offset;
+
+        /** Index of each selected column in the file, in the order of the output */
+        private final int[] indices;
+
+        /** Index of each column of the file in the output, -1 if not selected */
+        private final int[] selected;
+
+        /** Data types, in the order of the output */
+        private final DataType<?>[] types;
+
+        /** Dictionaries, in the order of the output, null for columns which are not encoded */
+        private final List<ConcurrentMap<String, String>> dictionaries;
+
+        /** Scratch buffer for a single value */
+        private byte[] scratch = new byte[64];
+
+        /**
+         * Creates a new instance
+         * @param buffer
+         * @param offset
+         * @param indices
+         * @param selected
+         * @param types
+         * @param dictionaries
+         */
+        Parser(MappedByteBuffer buffer, long offset, int[] indices, int[] selected, DataType<?>[] types, List<ConcurrentMap<String, String>> dictionaries) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.indices = indices;
+            this.selected = selected;
+            this.types = types;
+            this.dictionaries = dictionaries;
+        }
+
+        /**
+         * Parses all lines
+         * @return
+         * @throws IOException
+         */
+        Chunk parse() throws IOException {
+            Chunk chunk = new Chunk();
+            int position = 0;
+            int limit = buffer.limit();
+            while (position < limit) {
+                String[] row = new String[indices.length];
+                int next = Math.min(limit, parseLine(position, limit, row));
+                if (!isEmpty(position, next)) {
+                    chunk.rows.add(row);
+                }
+                position = next;
+            }
+            return chunk;
+        }
+
+        /**
+         * Whether the line between the positions is empty
+         * @param start
+         * @param end after the line break
+         * @return
+         */
+        private boolean isEmpty(int start, int end) {
+            for (int i = start; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b != '\n' && b != '\r') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Parses a line
+         * @param start
+         * @param limit
+         * @param row to fill
+         * @return position after the line
+         * @throws IOException
+         */
+        private int parseLine(int start, int limit, String[] row) throws IOException {
+            int position = start;
+            int column = 0;
+            while (true) {
+                
+                // Parse value
+                int length = 0;
+                boolean quoted = position < limit && buffer.get(position) == QUOTE;
+                if (quoted) {
+                    position++;
+                    while (true) {
+                        if (position >= limit || buffer.get(position) == '\n') {
+                            throw new IOException("Unterminated quote at byte offset " + (offset + start));
+                        }
+                        byte b = buffer.get(position++);
+                        if (b == QUOTE) {
+                            if (position < limit && buffer.get(position) == QUOTE) {
+                                position++;
+                            } else {
+                                break;
+                            }
+                        }
+                        length = append(length, b);
+                    }
+                }
+                while (position < limit) {
+                    byte b = buffer.get(position);
+                    if (b == DELIMITER || b == '\n') {
+                        break;
+                    }
+                    position++;
+                    if (b != '\r') {
+                        length = append(length, b);
+                    }
+                }
+                
+                // Store value
+                if (column < selected.length && selected[column] != -1) {
+                    row[selected[column]] = toValue(selected[column], length, start);
+                }
+                column++;
+                
+                // Next value or next line
+                if (position >= limit || buffer.get(position) == '\n') {
+                    if (column != selected.length && !(column == 1 && length == 0)) {
+                        throw new IOException("Expected " + selected.length + " values but found " + column + " at byte offset " + (offset + start));
+                    }
+                    return position + 1;
+                }
+                position++;
+            }
+        }
+
+        /**
+         * Appends a byte to the scratch buffer
+         * @param length
+         * @param b
+         * @return
+         */
+        private int append(int length, byte b) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, length * 2);
+            }
+            scratch[length] = b;
+            return length + 1;
+        }
+
+        /**
+         * Converts and validates the value in the scratch buffer
+         * @param index
+         * @param length
+         * @param line
+         * @return
+         * @throws IOException
+         */
+        private String toValue(int index, int length, int line) throws IOException {
+            String value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            ConcurrentMap<String, String> dictionary = dictionaries.get(index);
+            if (dictionary != null) {
+                String existing = dictionary.putIfAbsent(value, value);
+                return existing != null ? existing : value;
+            }
+            if (!types[index].isValid(value)) {
+                throw new IOException("Invalid value '" + value + "' in column " + (indices[index] + 1) + " at byte offset " + (offset + line));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Loads the given columns of the file
+     * @param file
+     * @param columns
+     * @param types
+     * @param threads
+     * @return
+     * @throws IOException
+     */
+    public static Data load(File file, String[] columns, DataType<?>[] types, int threads) throws IOException {
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            
+            // Parse header
+            long size = channel.size();
+            long headerEnd = findLineEnd(channel, 0, size);
+            String[] header = parseHeader(channel, headerEnd);
+            int[] indices = getIndices(header, columns);
+            int[] selected = getSelected(header, indices);
+            List<ConcurrentMap<String, String>> dictionaries = createDictionaries(types);
+            List<long[]> ranges = split(channel, headerEnd, size);
+            
+            // Parse
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())));
+            List<Future<Chunk>> futures = new ArrayList<>();
+            try {
+                for (long[] range : ranges) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+                    Parser parser = new Parser(buffer, range[0], indices, selected, types, dictionaries);
+                    futures.add(executor.submit(parser::parse));
+                }
+                List<Chunk> chunks = new ArrayList<>();
+                for (Future<Chunk> future : futures) {
+                    chunks.add(future.get());
+                }
+                
+                // Create
+                String[] names = columns.clone();
+                Data data = Data.create(new ChunkIterator(names, chunks));
+                for (int i = 0; i < columns.length; i++) {
+                    data.getDefinition().setDataType(columns[i], types[i]);
+                }
+                return data;
+                
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + file, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw new IOException(file + ": " + e.getCause().getMessage(), e.getCause());
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Streams the header and the given columns of all rows of the file, in the
+     * order of the file. Chunks are parsed in parallel, but at most the given
+     * number of chunks ahead of the row being consumed, so that only a few
+     * chunks are held in memory at a time. Parse errors are thrown as
+     * UncheckedIOException when the rows of the offending chunk are reached.
+     */
+    public static class Rows implements Iterator<String[]>, Closeable {
+
+        /** File */
+        private final File file;
+
+        /** Channel */
+        private final FileChannel channel;
+
+        /** Ranges of the chunks which have not yet been submitted */
+        private final Deque<long[]> ranges;
+
+        /** Chunks being parsed, in order */
+        private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+
+        /** Parsers */
+        private final ExecutorService executor;
+
+        /** Maximal number of chunks being parsed */
+        private final int ahead;
+
+        /** Index of each selected column in the file, in the order of the output */
+        private final int[] indices;
+
+        /** Index of each column of the file in the output, -1 if not selected */
+        private final int[] selected;
+
+        /** Data types, in the order of the output */
+        private final DataType<?>[] types;
+
+        /** Dictionaries, in the order of the output, null for columns which are not encoded */
+        private final List<ConcurrentMap<String, String>> dictionaries;
+
+        /** Header, null once returned */
+        private String[] header;
+
+        /** Rows of the current chunk */
+        private List<String[]> rows = new ArrayList<>();
+
+        /** Current row */
+        private int row = 0;
+
+        /**
+         * Opens the file and starts parsing its first chunks
+         * @param file
+         * @param columns
+         * @param types
+         * @param threads
+         * @throws IOException
+         */
+        public Rows(File file, String[] columns, DataType<?>[] types, int threads) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                long headerEnd = findLineEnd(channel, 0, size);
+                String[] names = parseHeader(channel, headerEnd);
+                this.indices = getIndices(names, columns);
+                this.selected = getSelected(names, indices);
+                this.types = types.clone();
+                this.dictionaries = createDictionaries(types);
+                this.ranges = new ArrayDeque<>(split(channel, headerEnd, size));
+                this.header = columns.clone();
+                this.ahead = Math.max(1, threads);
+                this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            submit();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (header != null) {
+                return true;
+            }
+            while (row >= rows.size()) {
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                rows = next(pending.poll());
+                row = 0;
+                submit();
+            }
+            return true;
+        }
+
+        @Override
+        public String[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (header != null) {
+                String[] result = header;
+                header = null;
+                return result;
+            }
+            String[] result = rows.get(row);
+            rows.set(row++, null);
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+            channel.close();
+        }
+
+        /**
+         * Submits chunks until the maximal number of chunks is being parsed
+         */
+        private void submit() {
+            try {
+                while (pending.size() < ahead && !ranges.isEmpty()) {
+                    long[] range = ranges.poll();
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+                    Parser parser = new Parser(buffer, range[0], indices, selected, types, dictionaries);
+                    pending.add(executor.submit(parser::parse));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Waits for a chunk to be parsed and returns its rows
+         * @param future
+         * @return
+         */
+        private List<String[]> next(Future<Chunk> future) {
+            try {
+                return future.get().rows;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Interrupted while loading " + file, e));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw new UncheckedIOException(new IOException(file + ": " + e.getCause().getMessage(), e.getCause()));
+                }
+                throw new UncheckedIOException(new IOException(e.getCause()));
+            }
+        }
+    }
+
+    /**
+     * Iterates over the header and the rows of all chunks, releasing chunks once consumed
+     */
+    private static class ChunkIterator implements Iterator<String[]> {
+
+        /** Header, null once returned */
+        private String[] header;
+
+        /** Chunks */
+        private final List<Chunk> chunks;
+
+        /** Current chunk */
+        private int chunk = 0;
+
+        /** Current row */
+        private int row = 0;
+
+        /**
+         * Creates a new instance
+         * @param header
+         * @param chunks
+         */
+        ChunkIterator(String[] header, List<Chunk> chunks) {
+            this.header = header;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (header != null) {
+                return true;
+            }
+            while (chunk < chunks.size() && row >= chunks.get(chunk).rows.size()) {
+                chunks.set(chunk++, null);
+                row = 0;
+            }
+            return chunk < chunks.size();
+        }
+
+        @Override
+        public String[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (header != null) {
+                String[] result = header;
+                header = null;
+                return result;
+            }
+            List<String[]> rows = chunks.get(chunk).rows;
+            String[] result = rows.get(row);
+            rows.set(row++, null);
+            return result;
+        }
+    }
+
+    /**
+     * Returns the index of each column in the header
+     * @param header
+     * @param columns
+     * @return
+     * @throws IOException if a column is not found
+     */
+    private static int[] getIndices(String[] header, String[] columns) throws IOException {
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = Arrays.asList(header).indexOf(columns[i]);
+            if (indices[i] == -1) {
+                throw new IOException("Column not found: " + columns[i]);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Returns the index in the output of each column of the header, -1 if not selected
+     * @param header
+     * @param indices
+     * @return
+     */
+    private static int[] getSelected(String[] header, int[] indices) {
+        int[] selected = new int[header.length];
+        Arrays.fill(selected, -1);
+        for (int i = 0; i < indices.length; i++) {
+            selected[indices[i]] = i;
+        }
+        return selected;
+    }
+
+    /**
+     * Creates dictionaries for string columns
+     * @param types
+     * @return
+     */
+    private static List<ConcurrentMap<String, String>> createDictionaries(DataType<?>[] types) {
+        List<ConcurrentMap<String, String>> dictionaries = new ArrayList<>();
+        for (DataType<?> type : types) {
+            dictionaries.add(type == DataType.STRING ? new ConcurrentHashMap<String, String>() : null);
+        }
+        return dictionaries;
+    }
+
+    /**
+     * Splits the rows after the header into chunks at line ends
+     * @param channel
+     * @param headerEnd
+     * @param size
+     * @return ranges of the chunks
+     * @throws IOException
+     */
+    private static List<long[]> split(FileChannel channel, long headerEnd, long size) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        long start = Math.min(size, headerEnd + 1);
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            end = end == size ? size : Math.min(size, findLineEnd(channel, end, size) + 1);
+            ranges.add(new long[] { start, end });
+            start = end;
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the position of the next line break at or after the given position, or the size
+     * @param channel
+     * @param position
+     * @param size
+     * @return
+     * @throws IOException
+     */
+    private static long findLineEnd(FileChannel channel, long position, long size) throws IOException {
+        while (position < size) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1 << 16, size - position));
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i;
+                }
+            }
+            position += buffer.limit();
+        }
+        return size;
+    }
+
+    /**
+     * Parses the header
+     * @param channel
+     * @param end
+     * @return
+     * @throws IOException
+     */
+    private static String[] parseHeader(FileChannel channel, long end) throws IOException {
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("Header too long");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        byte[] bytes = new byte[(int) end];
+        buffer.get(bytes);
+        String line = new String(bytes, StandardCharsets.UTF_8);
+        if (line.startsWith("\uFEFF")) {
+            line = line.substring(1);
+        }
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        String[] header = line.split(",", -1);
+        for (int i = 0; i < header.length; i++) {
+            String name = header[i];
+            if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                header[i] = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+            }
+        }
+        return header;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CSV rows through a fixed-size buffer into a channel. Values are
+ * quoted like CSVDataOutput does, i.e. only if they contain the delimiter,
+ * a quote or a line break.
+ */
+public class CSVStreamWriter implements RowWriter {
+
+    /** Quote */
+    private static final char QUOTE = '"';
+
+    /** Line break */
+    private static final char LINE_BREAK = '\n';
+
+    /** Channel */
+    private final WritableByteChannel channel;
+
+    /** Buffer */
+    private final ByteBuffer buffer;
+
+    /** Delimiter */
+    private final char delimiter;
+
+    /** Number of rows written, including the header */
+    private long rows = 0;
+
+    /**
+     * Creates a new instance
+     * @param channel
+     * @param delimiter
+     * @param bufferSize in bytes
+     */
+    public CSVStreamWriter(WritableByteChannel channel, char delimiter, int bufferSize) {
+        if (bufferSize < IO.MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + IO.MIN_BUFFER_SIZE + " bytes");
+        }
+        this.channel = channel;
+        this.delimiter = delimiter;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override
+    public void write(String[] row) throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                put((byte) delimiter);
+            }
+            writeValue(row[i]);
+        }
+        put((byte) LINE_BREAK);
+        rows++;
+    }
+
+    /**
+     * Returns the number of rows written, including the header
+     * @return
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the buffer to the channel
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Puts a byte
+     * @param b
+     * @throws IOException
+     */
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+    }
+
+    /**
+     * Puts a char, encoded as UTF-8
+     * @param c
+     * @throws IOException
+     */
+    private void put(char c) throws IOException {
+        if (c < 0x80) {
+            put((byte) c);
+        } else {
+            for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+                put(b);
+            }
+        }
+    }
+
+    /**
+     * Writes a single value
+     * @param value
+     * @throws IOException
+     */
+    private void writeValue(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = requiresQuotes(value);
+        if (quote) {
+            put((byte) QUOTE);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < value.length()) {
+                for (byte b : value.substring(i, i + 2).getBytes(StandardCharsets.UTF_8)) {
+                    put(b);
+                }
+                i++;
+                continue;
+            }
+            if (c == QUOTE) {
+                put((byte) QUOTE);
+            }
+            put(c);
+        }
+        if (quote) {
+            put((byte) QUOTE);
+        }
+    }
+
+    /**
+     * Returns whether the value must be quoted
+     * @param value
+     * @return
+     */
+    private boolean requiresQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == delimiter || c == QUOTE || c == LINE_BREAK || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
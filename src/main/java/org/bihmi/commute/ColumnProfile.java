@@ -0,0 +1,280 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Profile of all columns of a dataset, collected in a single pass. For each
+ * column, the distinct values and their frequencies are counted, and the
+ * range of numeric values is determined. Large inputs are split into ranges
+ * of rows which are profiled concurrently; distinct values are kept in the
+ * order of their first occurrence, so the profile does not depend on the
+ * number of threads.
+ */
+public class ColumnProfile {
+
+    /** Minimal number of rows per thread */
+    private static final int ROWS_PER_THREAD = 1 << 16;
+
+    /** Number of rows */
+    private int rows;
+
+    /** Index of each column */
+    private final Map<String, Integer> columns = new LinkedHashMap<>();
+
+    /** Counts of distinct values per column, in order of their first occurrence */
+    private final List<Map<String, int[]>> counts = new ArrayList<>();
+
+    /** Minimal numeric value per column */
+    private final double[] min;
+
+    /** Maximal numeric value per column */
+    private final double[] max;
+
+    /**
+     * Profiles a range of rows
+     * @param handle
+     * @param from
+     * @param to
+     */
+    private ColumnProfile(DataHandle handle, int from, int to) {
+        int numColumns = handle.getNumColumns();
+        this.rows = to - from;
+        this.min = new double[numColumns];
+        this.max = new double[numColumns];
+        for (int column = 0; column < numColumns; column++) {
+            columns.put(handle.getAttributeName(column), column);
+            counts.add(new LinkedHashMap<String, int[]>());
+            min[column] = Double.NaN;
+            max[column] = Double.NaN;
+        }
+        for (int row = from; row < to; row++) {
+            for (int column = 0; column < numColumns; column++) {
+                add(column, handle.getValue(row, column), 1);
+            }
+        }
+    }
+
+    /**
+     * Profiles all columns of the handle
+     * @param handle
+     * @param threads
+     * @return
+     */
+    public static ColumnProfile create(DataHandle handle, int threads) {
+        
+        // Sequential
+        int rows = handle.getNumRows();
+        int tasks = Math.max(1, Math.min(threads, rows / ROWS_PER_THREAD));
+        if (tasks == 1) {
+            return new ColumnProfile(handle, 0, rows);
+        }
+        
+        // Parallel
+        ExecutorService executor = Executors.newFixedThreadPool(tasks);
+        try {
+            List<Future<ColumnProfile>> futures = new ArrayList<>();
+            for (int task = 0; task < tasks; task++) {
+                int from = (int) ((long) rows * task / tasks);
+                int to = (int) ((long) rows * (task + 1) / tasks);
+                futures.add(executor.submit(() -> new ColumnProfile(handle, from, to)));
+            }
+            ColumnProfile result = futures.get(0).get();
+            for (int task = 1; task < tasks; task++) {
+                result.merge(futures.get(task).get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while profiling", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the distinct values of a column
+     * @param column
+     * @return
+     */
+    public String[] getDistinctValues(String column) {
+        return counts.get(getIndex(column)).keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Returns the relative frequency of each value of a column. Like the frequency
+     * distribution of ARX's statistics, the map is a HashMap filled in the sorted
+     * order of the values, so it iterates in the same order and the fallback of the
+     * mode draws the same values.
+     * @param column
+     * @return
+     */
+    public Map<String, Double> getFrequencyDistribution(String column) {
+        return getFrequencyDistribution(getCounts(column), rows);
+    }
+
+    /**
+     * Returns the number of occurrences of each value of a column
+     * @param column
+     * @return
+     */
+    public Map<String, Integer> getCounts(String column) {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<String, int[]> entry : counts.get(getIndex(column)).entrySet()) {
+            result.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the relative frequency of each value from the number of its
+     * occurrences, filled in the order of ARX's frequency distribution
+     * @param counts
+     * @param rows
+     * @return
+     */
+    public static Map<String, Double> getFrequencyDistribution(Map<String, Integer> counts, int rows) {
+        List<String> values = new ArrayList<>(counts.keySet());
+        Collections.sort(values);
+        Map<String, Double> result = new HashMap<>();
+        for (String value : values) {
+            result.put(value, (double) counts.get(value) / (double) rows);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the minimal numeric value of a column, NaN if there is none
+     * @param column
+     * @return
+     */
+    public double getMin(String column) {
+        return min[getIndex(column)];
+    }
+
+    /**
+     * Returns the maximal numeric value of a column, NaN if there is none
+     * @param column
+     * @return
+     */
+    public double getMax(String column) {
+        return max[getIndex(column)];
+    }
+
+    /**
+     * Returns the number of numeric values of a column outside of the domain of the given hierarchy
+     * @param column
+     * @param spec
+     * @return
+     */
+    public long getNumOutOfRange(String column, IntervalHierarchySpec spec) {
+        long result = 0;
+        for (Map.Entry<String, int[]> entry : counts.get(getIndex(column)).entrySet()) {
+            double value = parse(entry.getKey());
+            if (!Double.isNaN(value) && !spec.contains(value)) {
+                result += entry.getValue()[0];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of rows
+     * @return
+     */
+    public int getNumRows() {
+        return rows;
+    }
+
+    /**
+     * Counts a value
+     * @param column
+     * @param value
+     * @param count
+     */
+    private void add(int column, String value, int count) {
+        int[] current = counts.get(column).get(value);
+        if (current == null) {
+            counts.get(column).put(value, new int[] { count });
+            double number = parse(value);
+            if (!Double.isNaN(number)) {
+                min[column] = Double.isNaN(min[column]) ? number : Math.min(min[column], number);
+                max[column] = Double.isNaN(max[column]) ? number : Math.max(max[column], number);
+            }
+        } else {
+            current[0] += count;
+        }
+    }
+
+    /**
+     * Merges the profile of the following rows
+     * @param other
+     */
+    private void merge(ColumnProfile other) {
+        for (int column = 0; column < counts.size(); column++) {
+            for (Map.Entry<String, int[]> entry : other.counts.get(column).entrySet()) {
+                add(column, entry.getKey(), entry.getValue()[0]);
+            }
+        }
+        rows += other.rows;
+    }
+
+    /**
+     * Returns the index of a column
+     * @param column
+     * @return
+     */
+    private int getIndex(String column) {
+        Integer index = columns.get(column);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown column: " + column);
+        }
+        return index;
+    }
+
+    /**
+     * Parses a decimal value
+     * @param value
+     * @return NaN, if the value is not a number
+     */
+    private static double parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads rows in the format written by ColumnarWriter. Rows are decoded one
+ * batch at a time and accessed row by row; columns which are stored as
+ * doubles in the current batch can be read without formatting them.
+ */
+public class ColumnarReader implements Closeable {
+
+    /** Magic bytes */
+    private static final byte[] MAGIC = { 'C', 'M', 'T', 'C' };
+
+    /** Version */
+    private static final int VERSION = 1;
+
+    /** Encoding */
+    private static final byte ENCODING_DICTIONARY = 0;
+
+    /** Encoding */
+    private static final byte ENCODING_DOUBLE = 1;
+
+    /** Channel */
+    private final ReadableByteChannel channel;
+
+    /** Header */
+    private final String[] header;
+
+    /** Buffer */
+    private ByteBuffer buffer;
+
+    /** Doubles of each column of the current batch, null for dictionary columns */
+    private final double[][] doubles;
+
+    /** Dictionary of each column of the current batch, null for double columns */
+    private final String[][] dictionaries;
+
+    /** Codes of each column of the current batch, null for double columns */
+    private final int[][] codes;
+
+    /** Rows of the current batch */
+    private int rows = 0;
+
+    /** Current row within the batch */
+    private int row = -1;
+
+    /** Whether the end of the file has been read */
+    private boolean finished = false;
+
+    /**
+     * Creates a new instance and reads the header
+     * @param channel
+     * @param bufferSize in bytes
+     * @throws IOException
+     */
+    public ColumnarReader(ReadableByteChannel channel, int bufferSize) throws IOException {
+        if (bufferSize < IO.MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + IO.MIN_BUFFER_SIZE + " bytes");
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.flip();
+        ensure(12);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a columnar file");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        int columns = getSize();
+        this.header = new String[columns];
+        for (int i = 0; i < columns; i++) {
+            header[i] = getString();
+        }
+        this.doubles = new double[columns][];
+        this.dictionaries = new String[columns][];
+        this.codes = new int[columns][];
+    }
+
+    /**
+     * Returns the header
+     * @return
+     */
+    public String[] getHeader() {
+        return header.clone();
+    }
+
+    /**
+     * Moves to the next row
+     * @return false if there are no more rows
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        while (row + 1 >= rows) {
+            if (finished) {
+                return false;
+            }
+            readBatch();
+        }
+        row++;
+        return true;
+    }
+
+    /**
+     * Whether a column of the current row is stored as doubles
+     * @param column
+     * @return
+     */
+    public boolean isNumeric(int column) {
+        return doubles[column] != null;
+    }
+
+    /**
+     * Returns a column of the current row which is stored as doubles, NaN for missing values
+     * @param column
+     * @return
+     */
+    public double getDouble(int column) {
+        if (doubles[column] == null) {
+            throw new IllegalStateException("Column " + header[column] + " is not stored as doubles in this batch");
+        }
+        return doubles[column][row];
+    }
+
+    /**
+     * Returns a column of the current row. Doubles are formatted with
+     * Double.toString, missing numbers are empty.
+     * @param column
+     * @return
+     */
+    public String getValue(int column) {
+        if (doubles[column] != null) {
+            double value = doubles[column][row];
+            return Double.isNaN(value) ? "" : Double.toString(value);
+        }
+        return dictionaries[column][codes[column][row]];
+    }
+
+    /**
+     * Returns all columns of the current row
+     * @return
+     */
+    public String[] getRow() {
+        String[] result = new String[header.length];
+        for (int column = 0; column < result.length; column++) {
+            result[column] = getValue(column);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the next batch, or the end of the file
+     * @throws IOException
+     */
+    private void readBatch() throws IOException {
+        ensure(4);
+        rows = buffer.getInt();
+        row = -1;
+        if (rows < 0) {
+            throw new IOException("Invalid number of rows: " + rows);
+        }
+        if (rows == 0) {
+            finished = true;
+            return;
+        }
+        for (int column = 0; column < header.length; column++) {
+            ensure(1);
+            byte encoding = buffer.get();
+            if (encoding == ENCODING_DOUBLE) {
+                double[] values = doubles[column] != null && doubles[column].length >= rows ? doubles[column] : new double[rows];
+                for (int i = 0; i < rows; i++) {
+                    ensure(8);
+                    values[i] = buffer.getDouble();
+                }
+                doubles[column] = values;
+                dictionaries[column] = null;
+                codes[column] = null;
+            } else if (encoding == ENCODING_DICTIONARY) {
+                readDictionary(column);
+                doubles[column] = null;
+            } else {
+                throw new IOException("Unknown encoding of column " + header[column] + ": " + encoding);
+            }
+        }
+    }
+
+    /**
+     * Reads a column of the current batch which is stored as dictionary codes
+     * @param column
+     * @throws IOException
+     */
+    private void readDictionary(int column) throws IOException {
+        ensure(4);
+        int size = getSize();
+        String[] entries = new String[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = getString();
+        }
+        int[] values = codes[column] != null && codes[column].length >= rows ? codes[column] : new int[rows];
+        for (int i = 0; i < rows; i++) {
+            ensure(4);
+            int code = buffer.getInt();
+            if (code < 0 || code >= size) {
+                throw new IOException("Invalid code in column " + header[column] + ": " + code);
+            }
+            values[i] = code;
+        }
+        dictionaries[column] = entries;
+        codes[column] = values;
+    }
+
+    /**
+     * Reads a non-negative size
+     * @return
+     * @throws IOException
+     */
+    private int getSize() throws IOException {
+        int size = buffer.getInt();
+        if (size < 0) {
+            throw new IOException("Invalid size: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Reads a string prefixed with its length
+     * @return
+     * @throws IOException
+     */
+    private String getString() throws IOException {
+        ensure(4);
+        int length = getSize();
+        ensure(length);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Makes sure that the given number of bytes can be read from the buffer
+     * @param bytes
+     * @throws IOException
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN).put(buffer);
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+}
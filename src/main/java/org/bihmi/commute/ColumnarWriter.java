@@ -0,0 +1,259 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes rows in a typed, column-oriented binary format. All numbers are
+ * little-endian, strings are UTF-8 and prefixed with their length in bytes.
+ * <pre>
+ * file   := "CMTC" version:int columns:int name:string* batch* 0:int
+ * batch  := rows:int column*
+ * column := 1:byte value:double[rows]
+ *         | 0:byte size:int entry:string[size] code:int[rows]
+ * </pre>
+ * Rows are written in batches. Within each batch, a column which is declared
+ * numeric is stored as doubles if all of its values are numbers, with NaN for
+ * missing values. All other columns are stored as codes into a dictionary of
+ * the batch.
+ */
+public class ColumnarWriter implements RowWriter {
+
+    /** Magic bytes */
+    private static final byte[] MAGIC = { 'C', 'M', 'T', 'C' };
+
+    /** Version */
+    private static final int VERSION = 1;
+
+    /** Rows per batch */
+    private static final int BATCH_SIZE = 1 << 16;
+
+    /** Encoding */
+    private static final byte ENCODING_DICTIONARY = 0;
+
+    /** Encoding */
+    private static final byte ENCODING_DOUBLE = 1;
+
+    /** Channel */
+    private final WritableByteChannel channel;
+
+    /** Columns declared numeric */
+    private final Set<String> numeric;
+
+    /** Buffer */
+    private ByteBuffer buffer;
+
+    /** Whether each column is declared numeric */
+    private boolean[] numericColumns;
+
+    /** Rows of the current batch */
+    private final List<String[]> batch = new ArrayList<>();
+
+    /** Parsed values of a column */
+    private final double[] values = new double[BATCH_SIZE];
+
+    /**
+     * Creates a new instance
+     * @param channel
+     * @param numeric names of the columns to store as doubles
+     * @param bufferSize in bytes
+     */
+    public ColumnarWriter(WritableByteChannel channel, Set<String> numeric, int bufferSize) {
+        if (bufferSize < IO.MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + IO.MIN_BUFFER_SIZE + " bytes");
+        }
+        this.channel = channel;
+        this.numeric = numeric;
+        this.buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void write(String[] row) throws IOException {
+        if (numericColumns == null) {
+            writeHeader(row);
+            return;
+        }
+        if (row.length != numericColumns.length) {
+            throw new IOException("Row has " + row.length + " values, expected " + numericColumns.length);
+        }
+        batch.add(row);
+        if (batch.size() == BATCH_SIZE) {
+            writeBatch();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (numericColumns == null) {
+                throw new IOException("No header written");
+            }
+            if (!batch.isEmpty()) {
+                writeBatch();
+            }
+            ensure(4);
+            buffer.putInt(0);
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the header
+     * @param header
+     * @throws IOException
+     */
+    private void writeHeader(String[] header) throws IOException {
+        numericColumns = new boolean[header.length];
+        ensure(12);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(header.length);
+        for (int i = 0; i < header.length; i++) {
+            numericColumns[i] = numeric.contains(header[i]);
+            putString(header[i]);
+        }
+    }
+
+    /**
+     * Writes the current batch
+     * @throws IOException
+     */
+    private void writeBatch() throws IOException {
+        int rows = batch.size();
+        ensure(4);
+        buffer.putInt(rows);
+        for (int column = 0; column < numericColumns.length; column++) {
+            if (numericColumns[column] && parse(column)) {
+                ensure(1);
+                buffer.put(ENCODING_DOUBLE);
+                for (int row = 0; row < rows; row++) {
+                    ensure(8);
+                    buffer.putDouble(values[row]);
+                }
+            } else {
+                writeDictionary(column);
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Parses a column of the current batch, returns false if it contains a value which is not a number
+     * @param column
+     * @return
+     */
+    private boolean parse(int column) {
+        for (int row = 0; row < batch.size(); row++) {
+            String value = batch.get(row)[column];
+            if (value == null || value.isEmpty()) {
+                values[row] = Double.NaN;
+                continue;
+            }
+            try {
+                values[row] = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a column of the current batch as dictionary codes
+     * @param column
+     * @throws IOException
+     */
+    private void writeDictionary(int column) throws IOException {
+        
+        // Collect
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        int[] codes = new int[batch.size()];
+        for (int row = 0; row < codes.length; row++) {
+            String value = batch.get(row)[column];
+            value = value == null ? "" : value;
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = entries.size();
+                dictionary.put(value, code);
+                entries.add(value);
+            }
+            codes[row] = code;
+        }
+        
+        // Write
+        ensure(5);
+        buffer.put(ENCODING_DICTIONARY);
+        buffer.putInt(entries.size());
+        for (String entry : entries) {
+            putString(entry);
+        }
+        for (int code : codes) {
+            ensure(4);
+            buffer.putInt(code);
+        }
+    }
+
+    /**
+     * Puts a string prefixed with its length
+     * @param value
+     * @throws IOException
+     */
+    private void putString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Makes sure that the given number of bytes can be put into the buffer
+     * @param bytes
+     * @throws IOException
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+            if (buffer.capacity() < bytes) {
+                buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffer to the channel
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
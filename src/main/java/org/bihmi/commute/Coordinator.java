@@ -0,0 +1,556 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anonymizes a large input in several worker processes. The input is split
+ * by the values of a key column, e.g. a site or cohort, into spill files,
+ * one per value. Each shard is anonymized on its own by a worker JVM which
+ * runs the pipeline in single mode, so k-anonymity holds for the union of
+ * the shards. Shards are processed largest first by a fixed number of
+ * workers. Once no shards are left, idle workers start a second attempt of
+ * shards which take much longer than expected from the throughput of the
+ * finished shards; the first attempt to finish wins. Failed shards are
+ * retried once, unless their input violates the domains. The outputs are
+ * concatenated in the order in which the keys first occur in the input, and
+ * the metrics of all workers are added to the metrics of the coordinator.
+ */
+public class Coordinator {
+
+    /** Maximal number of shards */
+    private static final int MAX_SHARDS = 1024;
+
+    /** Attempts of a shard which has failed */
+    private static final int MAX_ATTEMPTS = 2;
+
+    /** Ratio of runtime to expected runtime above which a shard is a straggler */
+    private static final double STRAGGLER_FACTOR = 2d;
+
+    /** Interval in which workers are polled in milliseconds */
+    private static final long POLL_INTERVAL = 100L;
+
+    /**
+     * Rows of the input with the same key
+     */
+    static class Shard {
+
+        /** Index */
+        private final int index;
+
+        /** Key */
+        private final String key;
+
+        /** Spill file */
+        private final File input;
+
+        /** Writer of the spill file, while splitting */
+        private Writer writer;
+
+        /** Bytes of the spill file */
+        private long bytes;
+
+        /** Number of attempts started */
+        private int attempts;
+
+        /** Number of failed attempts */
+        private int failures;
+
+        /** Successful attempt */
+        private Attempt result;
+
+        /**
+         * Creates a new instance
+         * @param index
+         * @param key
+         * @param input
+         */
+        Shard(int index, String key, File input) {
+            this.index = index;
+            this.key = key;
+            this.input = input;
+        }
+    }
+
+    /**
+     * A worker process anonymizing a shard
+     */
+    private static class Attempt {
+
+        /** Shard */
+        private final Shard shard;
+
+        /** Output */
+        private final File output;
+
+        /** Metrics */
+        private final File metrics;
+
+        /** Log of the worker */
+        private final File log;
+
+        /** Start in milliseconds */
+        private final long start = System.currentTimeMillis();
+
+        /** Process */
+        private Process process;
+
+        /**
+         * Creates a new instance
+         * @param shard
+         * @param directory
+         */
+        Attempt(Shard shard, File directory) {
+            this.shard = shard;
+            String name = "shard-" + shard.index + "-" + shard.attempts;
+            this.output = new File(directory, name + ".out.csv");
+            this.metrics = new File(directory, name + ".json");
+            this.log = new File(directory, name + ".log");
+        }
+    }
+
+    /** Input */
+    private final File input;
+
+    /** Key column */
+    private final String key;
+
+    /** Number of concurrent workers */
+    private final int workers;
+
+    /** Arguments of the JVM of the workers */
+    private final List<String> jvmArguments;
+
+    /** Arguments passed to each worker */
+    private final List<String> workerArguments;
+
+    /** Directory of spill files, outputs and logs of the workers */
+    private final File directory;
+
+    /** Main class of the workers */
+    private final String worker;
+
+    /** Bytes per millisecond of each finished attempt */
+    private final List<Double> throughputs = new ArrayList<>();
+
+    /**
+     * Creates a new instance
+     * @param input
+     * @param key column by which the input is split
+     * @param workers number of concurrent worker processes
+     * @param jvmArguments arguments of the JVM of the workers, e.g. the maximal heap size
+     * @param workerArguments options passed to each worker in addition to input, output and metrics
+     * @param directory for spill files, outputs and logs of the workers
+     */
+    public Coordinator(File input, String key, int workers, List<String> jvmArguments, List<String> workerArguments, File directory) {
+        this(input, key, workers, jvmArguments, workerArguments, directory, Main.class.getName());
+    }
+
+    /**
+     * Creates a new instance
+     * @param input
+     * @param key column by which the input is split
+     * @param workers number of concurrent worker processes
+     * @param jvmArguments arguments of the JVM of the workers, e.g. the maximal heap size
+     * @param workerArguments options passed to each worker in addition to input, output and metrics
+     * @param directory for spill files, outputs and logs of the workers
+     * @param worker main class of the workers, which accepts the options of Main
+     */
+    Coordinator(File input, String key, int workers, List<String> jvmArguments, List<String> workerArguments, File directory, String worker) {
+        this.input = input;
+        this.key = key;
+        this.workers = workers;
+        this.jvmArguments = jvmArguments;
+        this.workerArguments = workerArguments;
+        this.directory = directory;
+        this.worker = worker;
+    }
+
+    /**
+     * Splits the input, anonymizes all shards and concatenates their outputs
+     * @param output
+     * @param metrics to which the metrics of the workers are added
+     * @return
+     * @throws IOException
+     */
+    public IO.WriteStatistics run(File output, Metrics metrics) throws IOException {
+        
+        // Split
+        List<Shard> shards;
+        try (Metrics.Phase phase = metrics.start(Metrics.PHASE_SHARD)) {
+            shards = split();
+        }
+        metrics.set("shards", shards.size());
+        
+        // Anonymize
+        long start = System.currentTimeMillis();
+        try (Metrics.Phase phase = metrics.start(Metrics.PHASE_WORKERS)) {
+            execute(shards, metrics);
+        }
+        System.out.println("All shards anonymized in " + (System.currentTimeMillis() - start) + " ms");
+        
+        // Collect metrics of the workers
+        Metrics workerMetrics = new Metrics();
+        for (Shard shard : shards) {
+            String json = new String(Files.readAllBytes(shard.result.metrics.toPath()), StandardCharsets.UTF_8);
+            workerMetrics.addJson(json);
+            metrics.addJson(json);
+        }
+        
+        // Concatenate
+        try (Metrics.Phase phase = metrics.start(Metrics.PHASE_CONCATENATE)) {
+            concatenate(shards, output);
+        }
+        return new IO.WriteStatistics((long) workerMetrics.getCounter("rows_written"), (long) workerMetrics.getCounter("rows_suppressed"));
+    }
+
+    /**
+     * Splits the input into spill files by the value of the key column
+     * @return shards in the order in which their keys first occur
+     * @throws IOException
+     */
+    List<Shard> split() throws IOException {
+        Map<String, Shard> shards = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)) {
+            
+            // Header
+            String header = reader.readLine();
+            if (header == null) {
+                throw new IOException("Input is empty: " + input);
+            }
+            if (header.startsWith("\uFEFF")) {
+                header = header.substring(1);
+            }
+            int column = Arrays.asList(getFields(header)).indexOf(key);
+            if (column < 0) {
+                throw new IOException("Key column not found: " + key);
+            }
+            
+            // Rows
+            String line;
+            long number = 1;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = getFields(line);
+                if (fields.length <= column) {
+                    throw new IOException("Line " + number + " has no value for " + key);
+                }
+                Shard shard = shards.get(fields[column]);
+                if (shard == null) {
+                    if (shards.size() == MAX_SHARDS) {
+                        throw new IOException("More than " + MAX_SHARDS + " values of " + key + ", choose a coarser key");
+                    }
+                    shard = new Shard(shards.size(), fields[column], new File(directory, "shard-" + shards.size() + ".csv"));
+                    shard.writer = Files.newBufferedWriter(shard.input.toPath(), StandardCharsets.UTF_8);
+                    shard.writer.write(header);
+                    shard.writer.write('\n');
+                    shards.put(fields[column], shard);
+                }
+                shard.writer.write(line);
+                shard.writer.write('\n');
+            }
+        } finally {
+            for (Shard shard : shards.values()) {
+                shard.writer.close();
+                shard.bytes = shard.input.length();
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IOException("Input contains no rows: " + input);
+        }
+        System.out.println("Input split by " + key + " into " + shards.size() + " shards");
+        return new ArrayList<>(shards.values());
+    }
+
+    /**
+     * Anonymizes all shards in worker processes
+     * @param shards
+     * @param metrics
+     * @throws IOException
+     */
+    private void execute(List<Shard> shards, Metrics metrics) throws IOException {
+        
+        // Largest shards first
+        List<Shard> ordered = new ArrayList<>(shards);
+        Collections.sort(ordered, (s1, s2) -> Long.compare(s2.bytes, s1.bytes));
+        Deque<Shard> queue = new ArrayDeque<>(ordered);
+        List<Attempt> running = new ArrayList<>();
+        int finished = 0;
+        try {
+            while (finished < shards.size()) {
+                
+                // Start pending shards
+                while (running.size() < workers && !queue.isEmpty()) {
+                    running.add(launch(queue.poll()));
+                    metrics.add("worker_launches", 1);
+                }
+                
+                // Start second attempts of stragglers
+                if (running.size() < workers && queue.isEmpty()) {
+                    for (Attempt straggler : getStragglers(running)) {
+                        if (running.size() == workers) {
+                            break;
+                        }
+                        System.out.println("Shard " + straggler.shard.key + " is straggling, starting second attempt");
+                        running.add(launch(straggler.shard));
+                        metrics.add("worker_launches", 1);
+                        metrics.add("worker_speculative_launches", 1);
+                    }
+                }
+                
+                // Collect finished workers
+                for (Attempt attempt : new ArrayList<>(running)) {
+                    if (attempt.process.isAlive() || !running.contains(attempt)) {
+                        continue;
+                    }
+                    running.remove(attempt);
+                    Shard shard = attempt.shard;
+                    if (shard.result != null) {
+                        continue;
+                    }
+                    long duration = System.currentTimeMillis() - attempt.start;
+                    if (attempt.process.exitValue() == 0 && attempt.output.isFile() && attempt.metrics.isFile()) {
+                        shard.result = attempt;
+                        finished++;
+                        throughputs.add((double) shard.bytes / Math.max(1L, duration));
+                        System.out.println("Shard " + shard.key + " (" + (finished) + "/" + shards.size() + ") anonymized in " + duration + " ms");
+                        for (Attempt other : new ArrayList<>(running)) {
+                            if (other.shard == shard) {
+                                destroy(other);
+                                running.remove(other);
+                            }
+                        }
+                        continue;
+                    }
+                    shard.failures++;
+                    metrics.add("worker_failures", 1);
+                    System.out.println("Warning: shard " + shard.key + " failed with exit code " + attempt.process.exitValue() + ", see " + attempt.log);
+                    if (attempt.process.exitValue() == Validation.EXIT_CODE) {
+                        throw new Validation.ViolationException("Shard " + shard.key + " violates the domains of the hierarchies, see " + attempt.log);
+                    }
+                    if (isRunning(running, shard)) {
+                        continue;
+                    }
+                    if (shard.failures >= MAX_ATTEMPTS) {
+                        throw new IOException("Shard " + shard.key + " failed " + shard.failures + " times, see " + attempt.log);
+                    }
+                    queue.addFirst(shard);
+                }
+                
+                // Wait
+                if (finished < shards.size()) {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", e);
+        } finally {
+            for (Attempt attempt : running) {
+                destroy(attempt);
+            }
+        }
+    }
+
+    /**
+     * Starts a worker process for a shard
+     * @param shard
+     * @return
+     * @throws IOException
+     */
+    private Attempt launch(Shard shard) throws IOException {
+        shard.attempts++;
+        Attempt attempt = new Attempt(shard, directory);
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmArguments);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(worker);
+        command.add("-i");
+        command.add(shard.input.getPath());
+        command.add("-o");
+        command.add(attempt.output.getPath());
+        command.add("--metrics-json");
+        command.add(attempt.metrics.getPath());
+        command.addAll(workerArguments);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(attempt.log);
+        attempt.process = builder.start();
+        return attempt;
+    }
+
+    /**
+     * Returns the first attempts of shards which run much longer than expected, oldest first
+     * @param running
+     * @return
+     */
+    private List<Attempt> getStragglers(List<Attempt> running) {
+        List<Attempt> result = new ArrayList<>();
+        if (throughputs.isEmpty()) {
+            return result;
+        }
+        List<Double> sorted = new ArrayList<>(throughputs);
+        Collections.sort(sorted);
+        double throughput = sorted.get(sorted.size() / 2);
+        long now = System.currentTimeMillis();
+        for (Attempt attempt : running) {
+            double expected = attempt.shard.bytes / throughput;
+            if (attempt.shard.attempts == 1 && now - attempt.start > STRAGGLER_FACTOR * Math.max(expected, POLL_INTERVAL)) {
+                result.add(attempt);
+            }
+        }
+        Collections.sort(result, (a1, a2) -> Long.compare(a1.start, a2.start));
+        return result;
+    }
+
+    /**
+     * Returns whether an attempt of the shard is running
+     * @param running
+     * @param shard
+     * @return
+     */
+    private static boolean isRunning(List<Attempt> running, Shard shard) {
+        for (Attempt attempt : running) {
+            if (attempt.shard == shard) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops a worker process
+     * @param attempt
+     */
+    private static void destroy(Attempt attempt) {
+        attempt.process.destroy();
+        try {
+            if (!attempt.process.waitFor(10, TimeUnit.SECONDS)) {
+                attempt.process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            attempt.process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Concatenates the outputs of all shards, keeping the header of the first one
+     * @param shards
+     * @param output
+     * @throws IOException
+     */
+    private static void concatenate(List<Shard> shards, File output) throws IOException {
+        String header = null;
+        try (FileChannel target = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Shard shard : shards) {
+                File file = shard.result.output;
+                String current = readHeader(file);
+                if (header != null && !header.equals(current)) {
+                    throw new IOException("Output of shard " + shard.key + " has a different header");
+                }
+                try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long position = header == null ? 0L : current.getBytes(StandardCharsets.UTF_8).length + 1;
+                    long size = source.size();
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                }
+                header = current;
+            }
+        }
+    }
+
+    /**
+     * Reads the first line of a file
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static String readHeader(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 12);
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                buffer.put((byte) b);
+            }
+            return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Splits a line into fields, removing quotes
+     * @param line
+     * @return
+     */
+    static String[] getFields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+}
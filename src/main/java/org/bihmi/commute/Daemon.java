@@ -0,0 +1,544 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident service which anonymizes files submitted over HTTP on the loopback
+ * interface, so that JVM startup, class loading and warm-up are paid once.
+ * Jobs run on a bounded pool of workers with a bounded queue; submissions
+ * beyond the queue are rejected, as are jobs whose output is written by a
+ * queued or running job. Hierarchies are shared across jobs. Inputs and
+ * outputs must be located below a configured root directory, relative paths
+ * are resolved against it.
+ * <p>
+ * Endpoints:
+ * <ul>
+ * <li>POST /jobs with the form parameters input, output and optionally deadline (ms) submits a job</li>
+ * <li>GET /jobs/{id} returns the state of a job, DELETE /jobs/{id} cancels it</li>
+ * <li>GET /health returns the state of the service</li>
+ * <li>GET /metrics returns metrics of all jobs in the Prometheus text format</li>
+ * </ul>
+ */
+public class Daemon {
+
+    /** Default number of jobs which may be queued */
+    public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+    /** Number of finished jobs which can still be queried */
+    private static final int RETAINED_JOBS = 1000;
+
+    /**
+     * State of a job
+     */
+    enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    /**
+     * A submitted job
+     */
+    private static class Task {
+
+        /** Id */
+        private final long id;
+
+        /** Job */
+        private final Batch.Job job;
+
+        /** Budget in milliseconds, 0 for none */
+        private final long budget;
+
+        /** Time of submission */
+        private final long submitted = System.currentTimeMillis();
+
+        /** Time the job has started, 0 if not yet started */
+        private volatile long started;
+
+        /** Time the job has finished, 0 if not yet finished */
+        private volatile long finished;
+
+        /** State */
+        private volatile State state = State.QUEUED;
+
+        /** Outcome or error message */
+        private volatile String message = "";
+
+        /** Future */
+        private volatile Future<?> future;
+
+        /** Context of the run, null if not yet started */
+        private volatile RunContext context;
+
+        /**
+         * Creates a new instance
+         * @param id
+         * @param job
+         * @param budget
+         */
+        Task(long id, Batch.Job job, long budget) {
+            this.id = id;
+            this.job = job;
+            this.budget = budget;
+        }
+
+        /**
+         * Returns the state as JSON
+         * @return
+         */
+        String toJson() {
+            long now = System.currentTimeMillis();
+            return "{\"id\": " + id +
+                   ", \"state\": \"" + state + "\"" +
+                   ", \"input\": \"" + Metrics.escape(job.getInput().getPath()) + "\"" +
+                   ", \"output\": \"" + Metrics.escape(job.getOutput().getPath()) + "\"" +
+                   ", \"queued_ms\": " + ((started != 0 ? started : finished != 0 ? finished : now) - submitted) +
+                   ", \"duration_ms\": " + (started == 0 ? 0 : (finished != 0 ? finished : now) - started) +
+                   ", \"message\": \"" + Metrics.escape(message) + "\"}";
+        }
+    }
+
+    /** Server */
+    private final HttpServer server;
+
+    /** Workers */
+    private final ThreadPoolExecutor executor;
+
+    /** Jobs by id */
+    private final Map<Long, Task> tasks = new ConcurrentHashMap<>();
+
+    /** Ids of queued and running jobs by their canonical output */
+    private final Map<File, Long> outputs = new ConcurrentHashMap<>();
+
+    /** Ids of finished jobs, oldest first */
+    private final Queue<Long> finishedTasks = new ConcurrentLinkedQueue<>();
+
+    /** Ids */
+    private final AtomicLong ids = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong submitted = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong succeeded = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /** Hierarchies shared by all jobs */
+    private final HierarchyCache cache;
+
+    /** Metrics of all jobs */
+    private final Metrics metrics;
+
+    /** Size of output buffers */
+    private final int bufferSize;
+
+    /** Directory below which all inputs and outputs must be located */
+    private final File root;
+
+    /** Time of start */
+    private final long start = System.currentTimeMillis();
+
+    /**
+     * Creates a new instance listening on the given port of the loopback interface
+     * @param port
+     * @param workers
+     * @param queueDepth
+     * @param cache
+     * @param metrics
+     * @param bufferSize
+     * @param root directory below which all inputs and outputs must be located
+     * @throws IOException
+     */
+    public Daemon(int port, int workers, int queueDepth, HierarchyCache cache, Metrics metrics, int bufferSize, File root) throws IOException {
+        if (!root.isDirectory()) {
+            throw new IOException("Job root is not a directory: " + root);
+        }
+        this.cache = cache;
+        this.metrics = metrics;
+        this.bufferSize = bufferSize;
+        this.root = root.getCanonicalFile();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueDepth));
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/jobs", this::handleJobs);
+        this.server.createContext("/health", this::handleHealth);
+        this.server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * Starts the service
+     */
+    public void start() {
+        ExecutorService handlers = Executors.newFixedThreadPool(2);
+        server.setExecutor(handlers);
+        server.start();
+        System.out.println("Listening on " + server.getAddress() + " with " + executor.getMaximumPoolSize() + " workers, jobs below " + root);
+    }
+
+    /**
+     * Returns the port the service listens on
+     * @return
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting jobs and waits for running jobs to finish
+     * @param timeout in milliseconds
+     * @throws InterruptedException
+     */
+    public void stop(long timeout) throws InterruptedException {
+        server.stop(0);
+        executor.shutdown();
+        if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    /**
+     * Handles /jobs
+     * @param exchange
+     * @throws IOException
+     */
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/jobs") || path.equals("/jobs/")) {
+                if (method.equals("POST")) {
+                    submit(exchange);
+                } else {
+                    respond(exchange, 405, "{\"error\": \"Method not allowed\"}");
+                }
+                return;
+            }
+            Task task;
+            try {
+                task = tasks.get(Long.parseLong(path.substring("/jobs/".length())));
+            } catch (NumberFormatException e) {
+                task = null;
+            }
+            if (task == null) {
+                respond(exchange, 404, "{\"error\": \"Unknown job\"}");
+            } else if (method.equals("GET")) {
+                respond(exchange, 200, task.toJson());
+            } else if (method.equals("DELETE")) {
+                cancel(task);
+                respond(exchange, 200, task.toJson());
+            } else {
+                respond(exchange, 405, "{\"error\": \"Method not allowed\"}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Handles /health
+     * @param exchange
+     * @throws IOException
+     */
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, "{\"status\": \"ok\"" +
+                                   ", \"workers\": " + executor.getMaximumPoolSize() +
+                                   ", \"running\": " + executor.getActiveCount() +
+                                   ", \"queued\": " + executor.getQueue().size() +
+                                   ", \"queue_capacity\": " + (executor.getQueue().size() + executor.getQueue().remainingCapacity()) +
+                                   ", \"uptime_seconds\": " + (System.currentTimeMillis() - start) / 1000L + "}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Handles /metrics
+     * @param exchange
+     * @throws IOException
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            double minutes = Math.max(1d, System.currentTimeMillis() - start) / 60000d;
+            metrics.set("daemon_jobs_submitted", submitted.get());
+            metrics.set("daemon_jobs_rejected", rejected.get());
+            metrics.set("daemon_jobs_succeeded", succeeded.get());
+            metrics.set("daemon_jobs_failed", failed.get());
+            metrics.set("daemon_jobs_cancelled", cancelled.get());
+            metrics.set("daemon_jobs_running", executor.getActiveCount());
+            metrics.set("daemon_jobs_queued", executor.getQueue().size());
+            metrics.set("daemon_jobs_per_minute", (succeeded.get() + failed.get()) / minutes);
+            metrics.set("daemon_uptime_seconds", (System.currentTimeMillis() - start) / 1000d);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Submits a job
+     * @param exchange
+     * @throws IOException
+     */
+    private void submit(HttpExchange exchange) throws IOException {
+        
+        // Parse parameters
+        Map<String, String> parameters = getParameters(exchange);
+        String input = parameters.get("input");
+        String output = parameters.get("output");
+        if (input == null || output == null) {
+            respond(exchange, 400, "{\"error\": \"Parameters input and output are required\"}");
+            return;
+        }
+        long budget;
+        try {
+            budget = parameters.containsKey("deadline") ? Long.parseLong(parameters.get("deadline")) : 0L;
+            if (budget < 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "{\"error\": \"Invalid deadline\"}");
+            return;
+        }
+        
+        // Restrict to the root
+        File inputFile = resolve(input);
+        File outputFile = resolve(output);
+        if (inputFile == null || outputFile == null) {
+            respond(exchange, 403, "{\"error\": \"Input and output must be located below the job root\"}");
+            return;
+        }
+        
+        // Submit
+        Task task = new Task(ids.incrementAndGet(), new Batch.Job(inputFile, outputFile), budget);
+        Long writer = outputs.putIfAbsent(outputFile, task.id);
+        if (writer != null) {
+            respond(exchange, 409, "{\"error\": \"Output is already written by job " + writer + "\"}");
+            return;
+        }
+        tasks.put(task.id, task);
+        try {
+            task.future = executor.submit(() -> run(task));
+        } catch (RejectedExecutionException e) {
+            tasks.remove(task.id);
+            outputs.remove(outputFile, task.id);
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "{\"error\": \"Queue is full\"}");
+            return;
+        }
+        submitted.incrementAndGet();
+        respond(exchange, 202, task.toJson());
+    }
+
+    /**
+     * Runs a job
+     * @param task
+     */
+    private void run(Task task) {
+        
+        // Cancelled while queued
+        RunContext context;
+        synchronized (task) {
+            if (task.state == State.CANCELLED) {
+                return;
+            }
+            context = new RunContext(cache, task.budget > 0 ? new Deadline(task.budget) : null, metrics);
+            task.context = context;
+            task.state = State.RUNNING;
+            task.started = System.currentTimeMillis();
+        }
+        
+        // Run
+        Batch.Outcome outcome = execute(task.job, context);
+        
+        // Done
+        synchronized (task) {
+            task.finished = System.currentTimeMillis();
+            task.message = outcome.toString();
+            if (task.state == State.CANCELLED) {
+                task.message = "Cancelled while running, output discarded";
+                task.job.getOutput().delete();
+            } else if (outcome.isSuccessful()) {
+                task.state = State.SUCCEEDED;
+                succeeded.incrementAndGet();
+            } else {
+                task.state = State.FAILED;
+                failed.incrementAndGet();
+            }
+        }
+        System.out.println("Job " + task.id + ": " + task.message);
+        retire(task);
+    }
+
+    /**
+     * Anonymizes the input of a job
+     * @param job
+     * @param context
+     * @return
+     */
+    Batch.Outcome execute(Batch.Job job, RunContext context) {
+        return Batch.run(job, context, bufferSize);
+    }
+
+    /**
+     * Cancels a job. Queued jobs are removed, running jobs are stopped at the next
+     * progress update of ARX and their output is discarded.
+     * @param task
+     */
+    private void cancel(Task task) {
+        synchronized (task) {
+            if (task.state != State.QUEUED && task.state != State.RUNNING) {
+                return;
+            }
+            boolean queued = task.state == State.QUEUED;
+            task.state = State.CANCELLED;
+            cancelled.incrementAndGet();
+            if (task.context != null) {
+                task.context.cancel();
+            }
+            if (task.future != null) {
+                task.future.cancel(true);
+            }
+            if (queued) {
+                task.finished = System.currentTimeMillis();
+                task.message = "Cancelled while queued";
+                executor.remove((Runnable) task.future);
+                retire(task);
+            }
+        }
+    }
+
+    /**
+     * Forgets the oldest finished jobs
+     * @param task
+     */
+    private void retire(Task task) {
+        outputs.remove(task.job.getOutput(), task.id);
+        finishedTasks.add(task.id);
+        while (finishedTasks.size() > RETAINED_JOBS) {
+            Long id = finishedTasks.poll();
+            if (id != null) {
+                tasks.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Resolves a path of a job against the root
+     * @param path
+     * @return null if the path is not located below the root
+     * @throws IOException
+     */
+    private File resolve(String path) throws IOException {
+        File file = new File(path);
+        file = (file.isAbsolute() ? file : new File(root, path)).getCanonicalFile();
+        return file.toPath().startsWith(root.toPath()) && !file.equals(root) ? file : null;
+    }
+
+    /**
+     * Returns form parameters from the query and the body
+     * @param exchange
+     * @return
+     * @throws IOException
+     */
+    private static Map<String, String> getParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), parameters);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        parse(new String(body.toByteArray(), StandardCharsets.UTF_8), parameters);
+        return parameters;
+    }
+
+    /**
+     * Parses form parameters
+     * @param form
+     * @param parameters
+     * @throws IOException
+     */
+    private static void parse(String form, Map<String, String> parameters) throws IOException {
+        if (form == null || form.trim().isEmpty()) {
+            return;
+        }
+        for (String pair : form.trim().split("&")) {
+            int index = pair.indexOf('=');
+            if (index > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+            }
+        }
+    }
+
+    /**
+     * Sends a JSON response
+     * @param exchange
+     * @param status
+     * @param json
+     * @throws IOException
+     */
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end time budget of a run. The budget left when the search starts
+ * is split between the heuristic search and the iterative optimization.
+ * The search receives half of it for small inputs and down to a quarter
+ * for large inputs, on which optimization iterations are expensive. A
+ * share is reserved for writing the output.
+ */
+public class Deadline {
+
+    /** Share of the remaining budget reserved for writing the output */
+    private static final double WRITE_SHARE = 0.1d;
+
+    /** Share of the search for inputs of up to 10k rows */
+    private static final double MAX_SEARCH_SHARE = 0.5d;
+
+    /** Share of the search for inputs of 10M rows and more */
+    private static final double MIN_SEARCH_SHARE = 0.25d;
+
+    /** End in nanoseconds, as returned by System.nanoTime() */
+    private final long end;
+
+    /** Budget in milliseconds */
+    private final long budget;
+
+    /**
+     * Creates a deadline, which expires after the given budget
+     * @param budget in milliseconds
+     */
+    public Deadline(long budget) {
+        this.budget = budget;
+        this.end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+    }
+
+    /**
+     * Returns the remaining time in milliseconds, which may be negative
+     * @return
+     */
+    public long getRemaining() {
+        return TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+    }
+
+    /**
+     * Returns whether the deadline has passed
+     * @return
+     */
+    public boolean isExpired() {
+        return end - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns whether an operation of the given duration is expected to
+     * complete before the share reserved for writing is reached
+     * @param duration in milliseconds
+     * @return
+     */
+    public boolean allows(long duration) {
+        return getRemaining() - (long) (budget * WRITE_SHARE) > duration;
+    }
+
+    /**
+     * Returns the time limit of the heuristic search for the given number of rows
+     * @param rows
+     * @return in milliseconds, at least one
+     */
+    public int getSearchTimeLimit(int rows) {
+        double scale = Math.log10(Math.max(rows, 1) / 1e4d) / 3d;
+        double share = MAX_SEARCH_SHARE - Math.max(0d, Math.min(1d, scale)) * (MAX_SEARCH_SHARE - MIN_SEARCH_SHARE);
+        double available = getRemaining() - budget * WRITE_SHARE;
+        return (int) Math.max(1d, Math.min(Integer.MAX_VALUE, available * share));
+    }
+
+    @Override
+    public String toString() {
+        return budget + " ms, " + getRemaining() + " ms remaining";
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import org.deidentifier.arx.DataHandle;
+import org.deidentifier.arx.DataType;
+
+/**
+ * Evaluates re-identification risks and information loss of an output in a
+ * single pass. Each row is encoded into a 128-bit fingerprint of the
+ * codes of its quasi-identifiers in primitive per-column dictionaries, and equivalence classes are
+ * counted in an open-addressing table over primitive arrays. Suppressed
+ * rows are not part of any class. The loss of a numeric column is the mean
+ * absolute difference between input and output relative to the range of
+ * the input; the loss of a categorical column is the fraction of changed
+ * values. Suppressed rows count as fully lost.
+ */
+public class Evaluator {
+
+    /**
+     * Access to the cells of an output
+     */
+    private interface Cells {
+
+        /**
+         * Returns a value
+         * @param row
+         * @param column
+         * @return
+         */
+        String get(int row, int column);
+    }
+
+    /**
+     * Result of an evaluation
+     */
+    public static class Evaluation {
+
+        /** Rows */
+        private int rows;
+
+        /** Suppressed rows */
+        private int suppressed;
+
+        /** Number of classes */
+        private int classes;
+
+        /** Size of the smallest class */
+        private int minClassSize;
+
+        /** Size of the largest class */
+        private int maxClassSize;
+
+        /** Number of classes by size, bucket i holds sizes from 2^i to 2^(i+1)-1 */
+        private int[] histogram = new int[0];
+
+        /** Rows in classes of the smallest size */
+        private int rowsAtHighestRisk;
+
+        /** Information loss per column */
+        private final Map<String, Double> loss = new HashMap<>();
+
+        /** Names of the columns, in order */
+        private String[] columns = new String[0];
+
+        /**
+         * Number of classes
+         * @return
+         */
+        public int getNumClasses() {
+            return classes;
+        }
+
+        /**
+         * Size of the smallest class
+         * @return
+         */
+        public int getMinClassSize() {
+            return minClassSize;
+        }
+
+        /**
+         * Average size of the classes
+         * @return
+         */
+        public double getAvgClassSize() {
+            return classes == 0 ? 0d : (double) (rows - suppressed) / classes;
+        }
+
+        /**
+         * Size of the largest class
+         * @return
+         */
+        public int getMaxClassSize() {
+            return maxClassSize;
+        }
+
+        /**
+         * Highest re-identification risk of a record (prosecutor model)
+         * @return
+         */
+        public double getHighestRisk() {
+            return minClassSize == 0 ? 0d : 1d / minClassSize;
+        }
+
+        /**
+         * Average re-identification risk of a record (prosecutor model)
+         * @return
+         */
+        public double getAverageRisk() {
+            return rows == suppressed ? 0d : (double) classes / (rows - suppressed);
+        }
+
+        /**
+         * Fraction of the records which are not suppressed that are at the highest risk
+         * @return
+         */
+        public double getRecordsAtHighestRisk() {
+            return rows == suppressed ? 0d : (double) rowsAtHighestRisk / (rows - suppressed);
+        }
+
+        /**
+         * Mean information loss of all columns, between 0 and 1
+         * @return
+         */
+        public double getLoss() {
+            double sum = 0d;
+            for (String column : columns) {
+                sum += loss.get(column);
+            }
+            return columns.length == 0 ? 0d : sum / columns.length;
+        }
+
+        /**
+         * Information loss of a column, between 0 and 1
+         * @param column
+         * @return NaN, if the column has not been evaluated
+         */
+        public double getLoss(String column) {
+            Double result = loss.get(column);
+            return result == null ? Double.NaN : result;
+        }
+
+        /**
+         * Records the evaluation. Only single runs are evaluated, so the values
+         * describe one output and are set instead of added.
+         * @param metrics
+         */
+        public void record(Metrics metrics) {
+            metrics.set("evaluation_classes", classes);
+            metrics.set("evaluation_min_class_size", minClassSize);
+            metrics.set("evaluation_avg_class_size", getAvgClassSize());
+            metrics.set("evaluation_max_class_size", maxClassSize);
+            metrics.set("evaluation_highest_risk", getHighestRisk());
+            metrics.set("evaluation_average_risk", getAverageRisk());
+            metrics.set("evaluation_records_at_highest_risk", getRecordsAtHighestRisk());
+            for (int i = 0; i < histogram.length; i++) {
+                metrics.set("evaluation_classes_size_le_" + ((1 << (i + 1)) - 1), histogram[i]);
+            }
+            for (String column : columns) {
+                metrics.set("evaluation_loss_" + column.toLowerCase(Locale.ROOT), loss.get(column));
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Classes: ").append(classes)
+                   .append(", sizes: ").append(minClassSize).append(" to ").append(maxClassSize)
+                   .append(" (average ").append(getAvgClassSize()).append(")")
+                   .append(", risk: highest ").append(getHighestRisk())
+                   .append(", average ").append(getAverageRisk())
+                   .append(", records at highest risk ").append(getRecordsAtHighestRisk())
+                   .append(", loss:");
+            for (String column : columns) {
+                builder.append(' ').append(column).append(": ").append(loss.get(column));
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Evaluates an output
+     * @param input
+     * @param output
+     * @return
+     */
+    public static Evaluation evaluate(DataHandle input, DataHandle output) {
+        return evaluate(input, getHeader(output), output.getNumRows(), output::getValue, output::isOutlier);
+    }
+
+    /**
+     * Evaluates the output of a partitioned anonymization
+     * @param input
+     * @param output
+     * @return
+     */
+    public static Evaluation evaluate(DataHandle input, PartitionedResult output) {
+        String[] header = new String[output.getNumColumns()];
+        for (int column = 0; column < header.length; column++) {
+            header[column] = output.getAttributeName(column);
+        }
+        return evaluate(input, header, output.getNumRows(), output::getValue, output::isOutlier);
+    }
+
+    /**
+     * Evaluates an output
+     * @param input
+     * @param header
+     * @param rows
+     * @param cells
+     * @param outliers
+     * @return
+     */
+    private static Evaluation evaluate(DataHandle input, String[] header, int rows, Cells cells, IntPredicate outliers) {
+        
+        // Columns of the commute data present in the output
+        int[] columns = new int[header.length];
+        int[] inputColumns = new int[header.length];
+        boolean[] numeric = new boolean[header.length];
+        int count = 0;
+        for (int column = 0; column < header.length; column++) {
+            int index = Arrays.asList(IO.COLUMNS).indexOf(header[column]);
+            if (index != -1) {
+                columns[count] = column;
+                inputColumns[count] = input.getColumnIndexOf(header[column]);
+                numeric[count] = IO.TYPES[index] != DataType.STRING;
+                count++;
+            }
+        }
+        
+        // Per column state
+        StringDictionary[] dictionaries = new StringDictionary[count];
+        double[][] parsed = new double[count][];
+        double[] absoluteDifference = new double[count];
+        double[] min = new double[count];
+        double[] max = new double[count];
+        long[] changed = new long[count];
+        for (int i = 0; i < count; i++) {
+            dictionaries[i] = new StringDictionary();
+            parsed[i] = new double[16];
+            min[i] = Double.POSITIVE_INFINITY;
+            max[i] = Double.NEGATIVE_INFINITY;
+        }
+        
+        // Scan
+        Evaluation evaluation = new Evaluation();
+        FingerprintTable counter = new FingerprintTable();
+        for (int row = 0; row < rows; row++) {
+            
+            // Suppressed
+            boolean suppressed = outliers.test(row);
+            if (suppressed) {
+                evaluation.suppressed++;
+            }
+            
+            // Encode and compare with the input
+            long h = FingerprintTable.SEED_HIGH;
+            long l = FingerprintTable.SEED_LOW;
+            for (int i = 0; i < count; i++) {
+                String inputValue = input.getValue(row, inputColumns[i]);
+                double inputNumber = numeric[i] ? parse(inputValue) : Double.NaN;
+                if (!Double.isNaN(inputNumber)) {
+                    min[i] = Math.min(min[i], inputNumber);
+                    max[i] = Math.max(max[i], inputNumber);
+                }
+                if (suppressed) {
+                    continue;
+                }
+                
+                // Dictionary code
+                String value = cells.get(row, columns[i]);
+                int size = dictionaries[i].size();
+                int code = dictionaries[i].add(value);
+                if (code == size) {
+                    if (code == parsed[i].length) {
+                        parsed[i] = Arrays.copyOf(parsed[i], code * 2);
+                    }
+                    parsed[i][code] = numeric[i] ? parse(value) : Double.NaN;
+                }
+                h = FingerprintTable.addHigh(h, code);
+                l = FingerprintTable.addLow(l, code);
+                
+                // Loss
+                if (numeric[i]) {
+                    double outputNumber = parsed[i][code];
+                    if (!Double.isNaN(inputNumber) && !Double.isNaN(outputNumber)) {
+                        absoluteDifference[i] += Math.abs(inputNumber - outputNumber);
+                    } else if (!value.equals(inputValue)) {
+                        changed[i]++;
+                    }
+                } else if (!value.equals(inputValue)) {
+                    changed[i]++;
+                }
+            }
+            if (!suppressed) {
+                counter.add(h, l);
+            }
+        }
+        
+        // Classes
+        evaluation.rows = rows;
+        evaluation.classes = counter.size();
+        evaluation.minClassSize = counter.size() == 0 ? 0 : Integer.MAX_VALUE;
+        int[] histogram = new int[32];
+        int buckets = 0;
+        for (int id = 0; id < counter.size(); id++) {
+            int size = counter.getCount(id);
+            evaluation.minClassSize = Math.min(evaluation.minClassSize, size);
+            evaluation.maxClassSize = Math.max(evaluation.maxClassSize, size);
+            int bucket = 31 - Integer.numberOfLeadingZeros(size);
+            histogram[bucket]++;
+            buckets = Math.max(buckets, bucket + 1);
+        }
+        evaluation.histogram = Arrays.copyOf(histogram, buckets);
+        for (int id = 0; id < counter.size(); id++) {
+            if (counter.getCount(id) == evaluation.minClassSize) {
+                evaluation.rowsAtHighestRisk += evaluation.minClassSize;
+            }
+        }
+        
+        // Loss
+        evaluation.columns = new String[count];
+        for (int i = 0; i < count; i++) {
+            double range = max[i] - min[i];
+            double lost = changed[i] + evaluation.suppressed + (range > 0d ? absoluteDifference[i] / range : 0d);
+            evaluation.columns[i] = header[columns[i]];
+            evaluation.loss.put(header[columns[i]], rows == 0 ? 0d : lost / rows);
+        }
+        return evaluation;
+    }
+
+    /**
+     * Returns the header of a handle
+     * @param handle
+     * @return
+     */
+    private static String[] getHeader(DataHandle handle) {
+        String[] header = new String[handle.getNumColumns()];
+        for (int column = 0; column < header.length; column++) {
+            header[column] = handle.getAttributeName(column);
+        }
+        return header;
+    }
+
+    /**
+     * Parses a decimal value
+     * @param value
+     * @return NaN, if the value is not a number
+     */
+    private static double parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.Arrays;
+
+/**
+ * Assigns consecutive ids to 128-bit fingerprints and counts how often each
+ * fingerprint has been added. The table uses open addressing over primitive
+ * arrays, so adding a fingerprint does not allocate.
+ */
+class FingerprintTable {
+
+    /** Seed of the high half of a fingerprint */
+    static final long SEED_HIGH = 0x9E3779B97F4A7C15L;
+
+    /** Seed of the low half of a fingerprint */
+    static final long SEED_LOW = 0xC2B2AE3D27D4EB4FL;
+
+    /** Fingerprints */
+    private long[] high = new long[1 << 10];
+
+    /** Fingerprints */
+    private long[] low = new long[1 << 10];
+
+    /** Id + 1 per slot, 0 for empty slots */
+    private int[] ids = new int[1 << 10];
+
+    /** Number of times each id has been added */
+    private int[] counts = new int[1 << 9];
+
+    /** Number of ids */
+    private int size = 0;
+
+    /**
+     * Adds a fingerprint and returns its id
+     * @param h
+     * @param l
+     * @return
+     */
+    int add(long h, long l) {
+        if (size * 2 >= ids.length) {
+            grow();
+        }
+        int mask = ids.length - 1;
+        int slot = (int) (l ^ (l >>> 32)) & mask;
+        while (ids[slot] != 0 && (high[slot] != h || low[slot] != l)) {
+            slot = (slot + 1) & mask;
+        }
+        if (ids[slot] == 0) {
+            high[slot] = h;
+            low[slot] = l;
+            ids[slot] = ++size;
+            if (size > counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+        }
+        int id = ids[slot] - 1;
+        counts[id]++;
+        return id;
+    }
+
+    /**
+     * Returns the number of ids
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns how often the fingerprint with the given id has been added
+     * @param id
+     * @return
+     */
+    int getCount(int id) {
+        return counts[id];
+    }
+
+    /**
+     * Adds a code to the high half of a fingerprint
+     * @param h
+     * @param code
+     * @return
+     */
+    static long addHigh(long h, int code) {
+        return mix(h ^ code);
+    }
+
+    /**
+     * Adds a code to the low half of a fingerprint
+     * @param l
+     * @param code
+     * @return
+     */
+    static long addLow(long l, int code) {
+        return mix(l + code * 0xFF51AFD7ED558CCDL);
+    }
+
+    /**
+     * Doubles the capacity
+     */
+    private void grow() {
+        long[] oldHigh = high;
+        long[] oldLow = low;
+        int[] oldIds = ids;
+        high = new long[oldIds.length * 2];
+        low = new long[oldIds.length * 2];
+        ids = new int[oldIds.length * 2];
+        int mask = ids.length - 1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != 0) {
+                int slot = (int) (oldLow[i] ^ (oldLow[i] >>> 32)) & mask;
+                while (ids[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                high[slot] = oldHigh[i];
+                low[slot] = oldLow[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+
+    /**
+     * Mixes the bits of a value
+     * @param value
+     * @return
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
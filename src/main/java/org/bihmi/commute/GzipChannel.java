@@ -0,0 +1,158 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses everything written to it with gzip, compressing blocks
+ * concurrently. Each block becomes a gzip member of its own; the members
+ * are written in order, so the result is a valid multi-member gzip file
+ * which can be read by gzip and GZIPInputStream.
+ */
+public class GzipChannel implements WritableByteChannel {
+
+    /** Size of a block */
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    /** Channel */
+    private final WritableByteChannel channel;
+
+    /** Compressors */
+    private final ExecutorService executor;
+
+    /** Blocks being compressed, in order */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    /** Maximal number of blocks being compressed */
+    private final int maxPending;
+
+    /** Current block */
+    private byte[] block = new byte[BLOCK_SIZE];
+
+    /** Bytes in the current block */
+    private int length = 0;
+
+    /** Whether the channel is open */
+    private boolean open = true;
+
+    /**
+     * Creates a new instance
+     * @param channel
+     * @param threads
+     */
+    public GzipChannel(WritableByteChannel channel, int threads) {
+        this.channel = channel;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.maxPending = 2 * Math.max(1, threads);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int written = source.remaining();
+        while (source.hasRemaining()) {
+            int count = Math.min(source.remaining(), BLOCK_SIZE - length);
+            source.get(block, length, count);
+            length += count;
+            if (length == BLOCK_SIZE) {
+                submit();
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (length > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            executor.shutdownNow();
+            channel.close();
+        }
+    }
+
+    /**
+     * Submits the current block for compression
+     * @throws IOException
+     */
+    private void submit() throws IOException {
+        byte[] data = block;
+        int size = length;
+        pending.add(executor.submit(() -> compress(data, size)));
+        block = new byte[BLOCK_SIZE];
+        length = 0;
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Writes the next compressed block
+     * @throws IOException
+     */
+    private void writeNext() throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(pending.poll().get());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Compresses a block into a gzip member
+     * @param data
+     * @param size
+     * @return
+     * @throws IOException
+     */
+    private static byte[] compress(byte[] data, int size) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(size / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(result, 1 << 16)) {
+            out.write(data, 0, size);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deidentifier.arx.AttributeType.Hierarchy;
+
+/**
+ * Caches prepared hierarchies by their specification and a fingerprint of
+ * the values they have been prepared for. Hierarchies are shared within the
+ * process and, if a directory is given, persisted for later runs. Failing to
+ * read or write the directory is not fatal, the hierarchy is built instead.
+ * Only the most recently used hierarchies are kept in memory, so long-running
+ * processes such as the daemon or large batches do not accumulate them.
+ */
+public class HierarchyCache {
+
+    /** Delimiter of persisted hierarchies */
+    private static final char DELIMITER = ';';
+
+    /** Default number of hierarchies kept in memory */
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    /** Hierarchies in memory, least recently used first */
+    private final Map<String, Hierarchy> hierarchies;
+
+    /** Hierarchies currently loaded or built */
+    private final Map<String, CompletableFuture<Hierarchy>> pending = new ConcurrentHashMap<>();
+
+    /** Directory, may be null */
+    private final File directory;
+
+    /** Statistics */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong loads = new AtomicLong();
+
+    /** Statistics */
+    private final AtomicLong builds = new AtomicLong();
+
+    /**
+     * Creates a cache which is kept in memory only
+     */
+    public HierarchyCache() {
+        this(null);
+    }
+
+    /**
+     * Creates a cache which is persisted in the given directory
+     * @param directory
+     */
+    public HierarchyCache(File directory) {
+        this(directory, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a cache which is persisted in the given directory
+     * @param directory may be null
+     * @param maxEntries number of hierarchies kept in memory
+     */
+    public HierarchyCache(File directory, int maxEntries) {
+        this.directory = directory;
+        this.hierarchies = new LinkedHashMap<String, Hierarchy>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Hierarchy> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the hierarchy for the given values, building it if required
+     * @param spec
+     * @param values
+     * @return
+     */
+    public Hierarchy get(IntervalHierarchySpec spec, String[] values) {
+        String key = sha256(spec.toString() + '\n' + fingerprint(values));
+        Hierarchy hierarchy = getCached(key);
+        if (hierarchy != null) {
+            hits.incrementAndGet();
+            return hierarchy;
+        }
+        
+        // Wait for concurrent requests of the same hierarchy
+        CompletableFuture<Hierarchy> future = new CompletableFuture<>();
+        CompletableFuture<Hierarchy> current = pending.putIfAbsent(key, future);
+        if (current != null) {
+            try {
+                hierarchy = current.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+            hits.incrementAndGet();
+            return hierarchy;
+        }
+        
+        // Load or build
+        try {
+            hierarchy = getCached(key);
+            if (hierarchy == null) {
+                hierarchy = loadOrBuild(key, spec, values);
+                synchronized (hierarchies) {
+                    hierarchies.put(key, hierarchy);
+                }
+            } else {
+                hits.incrementAndGet();
+            }
+            future.complete(hierarchy);
+            return hierarchy;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Returns a hierarchy kept in memory, null if there is none
+     * @param key
+     * @return
+     */
+    private Hierarchy getCached(String key) {
+        synchronized (hierarchies) {
+            return hierarchies.get(key);
+        }
+    }
+
+    /**
+     * Returns a summary of the cache usage
+     * @return
+     */
+    public String getStatistics() {
+        return "Hierarchies reused: " + hits.get() + ", loaded: " + loads.get() + ", built: " + builds.get();
+    }
+
+    /**
+     * Number of hierarchies reused from memory
+     * @return
+     */
+    long getNumHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of hierarchies loaded from the directory
+     * @return
+     */
+    long getNumLoads() {
+        return loads.get();
+    }
+
+    /**
+     * Number of hierarchies built
+     * @return
+     */
+    long getNumBuilds() {
+        return builds.get();
+    }
+
+    /**
+     * Loads the hierarchy from disk or builds and persists it
+     * @param key
+     * @param spec
+     * @param values
+     * @return
+     */
+    private Hierarchy loadOrBuild(String key, IntervalHierarchySpec spec, String[] values) {
+        
+        // Load
+        File file = directory == null ? null : new File(directory, key + ".csv");
+        if (file != null && file.isFile()) {
+            try {
+                Hierarchy hierarchy = Hierarchy.create(file, StandardCharsets.UTF_8, DELIMITER);
+                loads.incrementAndGet();
+                return hierarchy;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Warning: ignoring cached hierarchy " + file + ": " + e.getMessage());
+            }
+        }
+        
+        // Build
+        Hierarchy hierarchy = spec.build(values);
+        builds.incrementAndGet();
+        
+        // Persist atomically, concurrent runs may share the directory
+        if (file != null) {
+            try {
+                Files.createDirectories(directory.toPath());
+                File temp = File.createTempFile(key, ".tmp", directory);
+                try {
+                    hierarchy.save(temp, DELIMITER);
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temp.toPath());
+                }
+            } catch (IOException e) {
+                System.out.println("Warning: unable to persist hierarchy " + file + ": " + e.getMessage());
+            }
+        }
+        return hierarchy;
+    }
+
+    /**
+     * Fingerprint of a set of values, independent of their order
+     * @param values
+     * @return
+     */
+    private static String fingerprint(String[] values) {
+        String[] sorted = values.clone();
+        Arrays.sort(sorted);
+        MessageDigest digest = digest();
+        for (String value : sorted) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * SHA-256 of a string
+     * @param value
+     * @return
+     */
+    static String sha256(String value) {
+        return toHex(digest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns a new digest
+     * @return
+     */
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hex representation
+     * @param bytes
+     * @return
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
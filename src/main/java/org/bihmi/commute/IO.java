@@ -18,16 +18,18 @@ package org.bihmi.commute;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
 
 import org.deidentifier.arx.Data;
 import org.deidentifier.arx.DataHandle;
 import org.deidentifier.arx.DataHandleOutput;
 import org.deidentifier.arx.DataSource;
 import org.deidentifier.arx.DataType;
-import org.deidentifier.arx.io.CSVDataOutput;
 
 /**
  * IO-specific configuration
@@ -58,6 +60,20 @@ public class IO {
     /** Column name for gender*/
     public static final String FIELD_GENDER = "gender";
 
+    /** Columns of the input, in the order in which they are loaded*/
+    static final String[] COLUMNS = { FIELD_COMMUTE_FROM_SCHOOL, FIELD_COMMUTE_TO_SCHOOL, FIELD_DISTANCE_TO_SCHOOL, FIELD_DISTANCE_FROM_SCHOOL,
+                                      FIELD_MVPA_SQRT, FIELD_VO2_MAX, FIELD_AGE, FIELD_GENDER };
+
+    /** Data types of the columns*/
+    static final DataType<?>[] TYPES = { DataType.STRING, DataType.STRING, DataType.INTEGER, DataType.INTEGER,
+                                         DataType.DECIMAL, DataType.DECIMAL, DataType.DECIMAL, DataType.STRING };
+
+    /** Default size of the output buffer in bytes*/
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    /** Minimal size of the output buffer in bytes*/
+    public static final int MIN_BUFFER_SIZE = 16;
+
     /**
      * Load the input file
      * @param inputFile
@@ -67,41 +83,284 @@ public class IO {
     public static Data loadData(File inputFile) throws IOException {
     	
 		DataSource sourceSpecification = DataSource.createCSVSource(inputFile, StandardCharsets.UTF_8, ',', true);
-		sourceSpecification.addColumn(FIELD_COMMUTE_FROM_SCHOOL, DataType.STRING);
-		sourceSpecification.addColumn(FIELD_COMMUTE_TO_SCHOOL, DataType.STRING);
-		sourceSpecification.addColumn(FIELD_DISTANCE_TO_SCHOOL, DataType.INTEGER);
-		sourceSpecification.addColumn(FIELD_DISTANCE_FROM_SCHOOL, DataType.INTEGER);
-		sourceSpecification.addColumn(FIELD_MVPA_SQRT, DataType.DECIMAL);
-		sourceSpecification.addColumn(FIELD_VO2_MAX, DataType.DECIMAL);
-		sourceSpecification.addColumn(FIELD_AGE, DataType.DECIMAL);
-		sourceSpecification.addColumn(FIELD_GENDER, DataType.STRING);
+		for (int i = 0; i < COLUMNS.length; i++) {
+		    sourceSpecification.addColumn(COLUMNS[i], TYPES[i]);
+		}
 		return Data.create(sourceSpecification);
     }
 
+    /**
+     * Load the input file, parsing chunks of it in parallel
+     * @param inputFile
+     * @param threads
+     * @return
+     * @throws IOException
+     */
+    public static Data loadData(File inputFile, int threads) throws IOException {
+        return CSVLoader.load(inputFile, COLUMNS, TYPES, threads);
+    }
+
+    /**
+     * Returns the columns of the input which are numeric
+     * @return
+     */
+    static Set<String> getNumericColumns() {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (TYPES[i] != DataType.STRING) {
+                result.add(COLUMNS[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Options for writing a result
+     */
+    public static class WriteOptions {
+
+        /** Size of the output buffer in bytes */
+        private final int bufferSize;
+
+        /** Quantization which has been applied to the input, may be null */
+        private Quantization quantization;
+
+        /** Collapse which has been applied to the input, may be null */
+        private TupleCollapse collapse;
+
+        /**
+         * Creates a new instance
+         * @param bufferSize in bytes
+         */
+        public WriteOptions(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Restores the means of quantized attributes from their exact values
+         * @param quantization may be null
+         */
+        public void setQuantization(Quantization quantization) {
+            this.quantization = quantization;
+        }
+
+        /**
+         * Expands collapsed tuples to all rows
+         * @param collapse may be null
+         */
+        public void setCollapse(TupleCollapse collapse) {
+            this.collapse = collapse;
+        }
+    }
+
     /**
      * Writes the data
      * @param result
      * @param output
+     * @return
+     * @throws IOException
+     */
+    public static WriteStatistics writeResult(DataHandle result, File output) throws IOException {
+        return writeResult(result, output, new WriteOptions(DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Writes the data, streaming rows through a buffer. Collapsed tuples are expanded to
+     * all rows, or the means of quantized attributes are restored. The collapse quantizes
+     * the data itself, so it cannot be combined with a quantization.
+     * @param result
+     * @param output
+     * @param options
+     * @return
+     * @throws IOException
+     */
+    public static WriteStatistics writeResult(DataHandle result, File output, WriteOptions options) throws IOException {
+        if (options.collapse != null && options.quantization != null) {
+            throw new IllegalArgumentException("Collapsed tuples are already quantized");
+        }
+        IntPredicate outliers = result instanceof DataHandleOutput ? result::isOutlier : row -> false;
+        Supplier<Iterator<String[]>> rows = result::iterator;
+        if (options.collapse != null) {
+            rows = options.collapse.expand(result)::iterator;
+            outliers = options.collapse.expand(outliers);
+        }
+        return write(new SuppressionFilter(restore(rows, options.quantization), outliers), output, options.bufferSize);
+    }
+
+    /**
+     * Writes the result of a partitioned anonymization
+     * @param result
+     * @param output
+     * @param options without a collapse
+     * @return
+     * @throws IOException
+     */
+    public static WriteStatistics writeResult(PartitionedResult result, File output, WriteOptions options) throws IOException {
+        if (options.collapse != null) {
+            throw new IllegalArgumentException("Collapsed tuples cannot be expanded in partitions");
+        }
+        return write(new SuppressionFilter(restore(result::iterator, options.quantization), result::isOutlier), output, options.bufferSize);
+    }
+
+    /**
+     * Returns the rows with the means of quantized attributes restored from their exact values
+     * @param rows
+     * @param quantization may be null
+     * @return
+     */
+    private static Iterator<String[]> restore(Supplier<Iterator<String[]>> rows, Quantization quantization) {
+        return quantization == null ? rows.get() : quantization.restore(rows);
+    }
+
+    /**
+     * Writes rows, streaming them through a buffer of the given size. The format
+     * is detected by the extension of the output file.
+     * @param rows
+     * @param output
+     * @param bufferSize in bytes
+     * @return
      * @throws IOException
      */
-    public static void writeResult(DataHandle result, File output) throws IOException {
+    private static WriteStatistics write(SuppressionFilter rows, File output, int bufferSize) throws IOException {
         
-        // Filter out suppressed rows
-        Iterator<String[]> iter = result.iterator();
-        List<String[]> rows = new ArrayList<>();
-        rows.add(iter.next());
-        int rowNumber = 0;
-
-        // Convert
-        while (iter.hasNext()) {
-            String[] row = iter.next();
-            if (!(result instanceof DataHandleOutput) || !result.isOutlier(rowNumber)) {
-                rows.add(row);
+        // Write
+        try (RowWriter writer = OutputFormat.of(output).open(output, bufferSize)) {
+            while (rows.hasNext()) {
+                writer.write(rows.next());
             }
-            rowNumber++;
         }
         
-        CSVDataOutput writer = new CSVDataOutput(output, ',');
-        writer.write(rows.iterator());
+        // Done
+        return new WriteStatistics(rows.getRowsReturned(), rows.getRowsSuppressed());
+    }
+
+    /**
+     * Iterates over the header and all rows which have not been suppressed
+     */
+    static class SuppressionFilter implements Iterator<String[]> {
+
+        /** Iterator */
+        private final Iterator<String[]> iterator;
+
+        /** Whether a row has been suppressed */
+        private final IntPredicate outliers;
+
+        /** Next row to return, if any */
+        private String[] next;
+
+        /** Row number of the next row of the handle */
+        private int rowNumber = -1;
+
+        /** Rows returned, excluding the header */
+        private long rowsReturned = 0;
+
+        /** Rows skipped */
+        private long rowsSuppressed = 0;
+
+        /**
+         * Creates a new instance
+         * @param iterator over the header and all rows
+         * @param outliers
+         */
+        SuppressionFilter(Iterator<String[]> iterator, IntPredicate outliers) {
+            this.iterator = iterator;
+            this.outliers = outliers;
+            this.next = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String[] current = next;
+            if (rowNumber >= 0) {
+                rowsReturned++;
+            }
+            next = null;
+            while (next == null && iterator.hasNext()) {
+                String[] row = iterator.next();
+                rowNumber++;
+                if (outliers.test(rowNumber)) {
+                    rowsSuppressed++;
+                } else {
+                    next = row;
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Returns the number of rows returned, excluding the header
+         * @return
+         */
+        long getRowsReturned() {
+            return rowsReturned;
+        }
+
+        /**
+         * Returns the number of rows skipped
+         * @return
+         */
+        long getRowsSuppressed() {
+            return rowsSuppressed;
+        }
+    }
+
+    /**
+     * Statistics about a written output
+     */
+    public static class WriteStatistics {
+
+        /** Rows written, excluding the header */
+        private final long rowsWritten;
+
+        /** Rows suppressed */
+        private final long rowsSuppressed;
+
+        /**
+         * Creates a new instance
+         * @param rowsWritten
+         * @param rowsSuppressed
+         */
+        WriteStatistics(long rowsWritten, long rowsSuppressed) {
+            this.rowsWritten = rowsWritten;
+            this.rowsSuppressed = rowsSuppressed;
+        }
+
+        /**
+         * Rows written, excluding the header
+         * @return
+         */
+        public long getRowsWritten() {
+            return rowsWritten;
+        }
+
+        /**
+         * Rows suppressed
+         * @return
+         */
+        public long getRowsSuppressed() {
+            return rowsSuppressed;
+        }
+
+        /**
+         * Adds the statistics to the metrics
+         * @param metrics
+         */
+        public void record(Metrics metrics) {
+            metrics.add("rows_written", rowsWritten);
+            metrics.add("rows_suppressed", rowsSuppressed);
+        }
+
+        @Override
+        public String toString() {
+            return "Rows written: " + rowsWritten + ", rows suppressed: " + rowsSuppressed;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,924 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.deidentifier.arx.ARXProcessStatistics;
+import org.deidentifier.arx.ARXResult;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataDefinition;
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Anonymizes a growing cohort. The transformation selected by the previous
+ * run is stored together with the equivalence classes it forms: the output
+ * of each class which is released, the rows of each class which is
+ * suppressed, the class of each row and the number of occurrences of each
+ * value aggregated by its mode. Only the appended rows are profiled and
+ * generalized. Appended rows which fall into a released class are released
+ * with the stored output of the class, so rows of the previous cohort keep
+ * their output. Only suppressed classes which contain appended rows are
+ * anonymized by ARX, on their own and with the same transformation pinned,
+ * together with the rows of classes recoded by the previous run which must
+ * be recoded again. Therefore, profiling, generalization and anonymization
+ * depend on the appended rows and not on the size of the cohort. The state
+ * contains a fingerprint of a sample of rows of the previous cohort, and
+ * inputs which do not match it are rejected. A full search is only performed
+ * if no state exists, if it does not match the rules, or if the fraction of
+ * suppressed rows increases by more than the given threshold.
+ */
+public class IncrementalAnonymization {
+
+    /** Default threshold for the increase of the fraction of suppressed rows */
+    public static final double DEFAULT_MAX_DEGRADATION = 0.05d;
+
+    /** Number of rows of the previous cohort covered by the fingerprint */
+    private static final int SAMPLE_ROWS = 64;
+
+    /**
+     * Equivalence class formed by the stored transformation
+     */
+    static class EquivalenceClass {
+
+        /** Index */
+        final int index;
+
+        /** Generalized values of the quasi-identifiers */
+        final String key;
+
+        /** Output of the transformation, null while the class is suppressed */
+        String[] output;
+
+        /** Rows, only while the class is suppressed */
+        final List<Integer> rows = new ArrayList<>();
+
+        /**
+         * Creates a new instance
+         * @param index
+         * @param key
+         */
+        EquivalenceClass(int index, String key) {
+            this.index = index;
+            this.key = key;
+        }
+    }
+
+    /**
+     * State of a previous run
+     */
+    static class State {
+
+        /** Property */
+        private static final String KEY_ROWS = "rows";
+
+        /** Property */
+        private static final String KEY_SUPPRESSED = "suppressed";
+
+        /** Property */
+        private static final String KEY_SAMPLE = "sample";
+
+        /** Property prefix */
+        private static final String KEY_LEVEL = "level.";
+
+        /** Property prefix, followed by attribute and value */
+        private static final String KEY_COUNT = "count.";
+
+        /** Generalization level of each quasi-identifier */
+        final Map<String, Integer> levels;
+
+        /** Number of rows */
+        final int rows;
+
+        /** Fraction of rows suppressed by the transformation, before optimization */
+        final double suppressed;
+
+        /** Output of rows suppressed by the transformation and recoded locally, by row */
+        final Map<Integer, String[]> recoded;
+
+        /** SHA-256 of a sample of the input rows, null for states stored by older versions */
+        final String sample;
+
+        /** Number of occurrences of each value of the attributes aggregated by their mode */
+        final Map<String, Map<String, Integer>> counts;
+
+        /** Equivalence classes by index, null if only the transformation is stored */
+        final List<EquivalenceClass> classes;
+
+        /** Equivalence classes by key */
+        private final Map<String, EquivalenceClass> index = new HashMap<>();
+
+        /** Index of the class of each row, null if only the transformation is stored */
+        final int[] rowClasses;
+
+        /**
+         * Creates a new instance
+         * @param levels
+         * @param rows
+         * @param suppressed
+         * @param recoded
+         * @param sample
+         * @param counts
+         * @param classes may be null
+         * @param rowClasses may be null
+         */
+        State(Map<String, Integer> levels, int rows, double suppressed, Map<Integer, String[]> recoded, String sample,
+              Map<String, Map<String, Integer>> counts, List<EquivalenceClass> classes, int[] rowClasses) {
+            this.levels = levels;
+            this.rows = rows;
+            this.suppressed = suppressed;
+            this.recoded = recoded;
+            this.sample = sample;
+            this.counts = counts;
+            this.classes = classes;
+            this.rowClasses = rowClasses;
+            if (classes != null) {
+                for (EquivalenceClass clazz : classes) {
+                    index.put(clazz.key, clazz);
+                }
+            }
+        }
+
+        /**
+         * Loads the state, returns null if the file does not exist
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        static State load(File file) throws IOException {
+            if (!file.isFile()) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                properties.load(in);
+            }
+            Map<String, Integer> levels = new LinkedHashMap<>();
+            Map<String, Map<String, Integer>> counts = new HashMap<>();
+            int rows;
+            double suppressed;
+            try {
+                for (String key : properties.stringPropertyNames()) {
+                    if (key.startsWith(KEY_LEVEL)) {
+                        levels.put(key.substring(KEY_LEVEL.length()), Integer.parseInt(properties.getProperty(key)));
+                    } else if (key.startsWith(KEY_COUNT)) {
+                        int separator = key.indexOf('.', KEY_COUNT.length());
+                        String attribute = key.substring(KEY_COUNT.length(), separator);
+                        Map<String, Integer> values = counts.get(attribute);
+                        if (values == null) {
+                            values = new HashMap<>();
+                            counts.put(attribute, values);
+                        }
+                        values.put(key.substring(separator + 1), Integer.parseInt(properties.getProperty(key)));
+                    }
+                }
+                rows = Integer.parseInt(properties.getProperty(KEY_ROWS));
+                suppressed = Double.parseDouble(properties.getProperty(KEY_SUPPRESSED));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid state file " + file, e);
+            }
+            
+            // Recoded rows
+            Map<Integer, String[]> recoded = new HashMap<>();
+            File recodedFile = getRecodedFile(file);
+            if (recodedFile.isFile()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recodedFile.toPath())))) {
+                    int count = in.readInt();
+                    int columns = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int row = in.readInt();
+                        recoded.put(row, readRow(in, columns));
+                    }
+                }
+            }
+            
+            // Classes
+            List<EquivalenceClass> classes = null;
+            int[] rowClasses = null;
+            File classesFile = getClassesFile(file);
+            if (classesFile.isFile()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(classesFile.toPath())))) {
+                    int columns = in.readInt();
+                    int count = in.readInt();
+                    classes = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        EquivalenceClass clazz = new EquivalenceClass(i, in.readUTF());
+                        if (in.readBoolean()) {
+                            clazz.output = readRow(in, columns);
+                        } else {
+                            int members = in.readInt();
+                            for (int member = 0; member < members; member++) {
+                                clazz.rows.add(in.readInt());
+                            }
+                        }
+                        classes.add(clazz);
+                    }
+                    rowClasses = new int[in.readInt()];
+                    for (int row = 0; row < rowClasses.length; row++) {
+                        rowClasses[row] = in.readInt();
+                    }
+                }
+                if (rowClasses.length != rows) {
+                    throw new IOException("Invalid state file " + classesFile);
+                }
+            }
+            return new State(levels, rows, suppressed, recoded, properties.getProperty(KEY_SAMPLE), counts, classes, rowClasses);
+        }
+
+        /**
+         * Saves the state. All files are replaced atomically, the properties last.
+         * @param file
+         * @throws IOException
+         */
+        void save(File file) throws IOException {
+            
+            // Recoded rows
+            File recodedFile = getRecodedFile(file);
+            File temp = new File(recodedFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                out.writeInt(recoded.size());
+                out.writeInt(recoded.isEmpty() ? 0 : recoded.values().iterator().next().length);
+                for (Map.Entry<Integer, String[]> entry : recoded.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    writeRow(out, entry.getValue());
+                }
+            }
+            Files.move(temp.toPath(), recodedFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            // Classes
+            File classesFile = getClassesFile(file);
+            if (classes == null) {
+                Files.deleteIfExists(classesFile.toPath());
+            } else {
+                temp = new File(classesFile.getPath() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                    int columns = 0;
+                    for (EquivalenceClass clazz : classes) {
+                        columns = clazz.output != null ? clazz.output.length : columns;
+                    }
+                    out.writeInt(columns);
+                    out.writeInt(classes.size());
+                    for (EquivalenceClass clazz : classes) {
+                        out.writeUTF(clazz.key);
+                        out.writeBoolean(clazz.output != null);
+                        if (clazz.output != null) {
+                            writeRow(out, clazz.output);
+                        } else {
+                            out.writeInt(clazz.rows.size());
+                            for (int row : clazz.rows) {
+                                out.writeInt(row);
+                            }
+                        }
+                    }
+                    out.writeInt(rowClasses.length);
+                    for (int clazz : rowClasses) {
+                        out.writeInt(clazz);
+                    }
+                }
+                Files.move(temp.toPath(), classesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            
+            // Properties
+            Properties properties = new Properties();
+            properties.setProperty(KEY_ROWS, String.valueOf(rows));
+            properties.setProperty(KEY_SUPPRESSED, String.valueOf(suppressed));
+            properties.setProperty(KEY_SAMPLE, sample);
+            for (Map.Entry<String, Integer> entry : levels.entrySet()) {
+                properties.setProperty(KEY_LEVEL + entry.getKey(), String.valueOf(entry.getValue()));
+            }
+            for (Map.Entry<String, Map<String, Integer>> attribute : counts.entrySet()) {
+                for (Map.Entry<String, Integer> entry : attribute.getValue().entrySet()) {
+                    properties.setProperty(KEY_COUNT + attribute.getKey() + "." + entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+            temp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                properties.store(out, "State of the incremental anonymization");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Whether the state can be applied with the given rules
+         * @param rules
+         * @return
+         */
+        boolean isApplicable(TransformationRules rules) {
+            for (String attribute : rules.getAttributes()) {
+                Integer level = levels.get(attribute);
+                if (level == null || level < 0 || level > rules.getMaximumGeneralization(attribute)) {
+                    return false;
+                }
+            }
+            for (String attribute : rules.getModeAttributes()) {
+                if (!counts.containsKey(attribute)) {
+                    return false;
+                }
+            }
+            return levels.size() == rules.getAttributes().size();
+        }
+
+        /**
+         * Returns the class with the given key, which is created as a suppressed class if it does not exist
+         * @param key
+         * @return
+         */
+        EquivalenceClass getClass(String key) {
+            EquivalenceClass clazz = index.get(key);
+            if (clazz == null) {
+                clazz = new EquivalenceClass(classes.size(), key);
+                classes.add(clazz);
+                index.put(key, clazz);
+            }
+            return clazz;
+        }
+
+        /**
+         * Counts the values of a row aggregated by their mode
+         * @param header
+         * @param values
+         */
+        void count(String[] header, String[] values) {
+            for (int column = 0; column < header.length; column++) {
+                Map<String, Integer> attribute = counts.get(header[column]);
+                if (attribute != null) {
+                    attribute.merge(values[column], 1, Integer::sum);
+                }
+            }
+        }
+
+        /**
+         * Returns the file with the recoded rows of a state
+         * @param file
+         * @return
+         */
+        static File getRecodedFile(File file) {
+            return new File(file.getPath() + ".recoded");
+        }
+
+        /**
+         * Returns the file with the classes of a state
+         * @param file
+         * @return
+         */
+        static File getClassesFile(File file) {
+            return new File(file.getPath() + ".classes");
+        }
+
+        /**
+         * Restores the search space defined by the rules
+         * @param definition
+         * @param rules
+         */
+        static void unpin(DataDefinition definition, TransformationRules rules) {
+            for (String attribute : rules.getAttributes()) {
+                definition.setMinimumGeneralization(attribute, 0);
+                definition.setMaximumGeneralization(attribute, rules.getMaximumGeneralization(attribute));
+            }
+        }
+
+        /**
+         * Reads the values of a row
+         * @param in
+         * @param columns
+         * @return
+         * @throws IOException
+         */
+        private static String[] readRow(DataInputStream in, int columns) throws IOException {
+            String[] values = new String[columns];
+            for (int column = 0; column < columns; column++) {
+                values[column] = in.readUTF();
+            }
+            return values;
+        }
+
+        /**
+         * Writes the values of a row
+         * @param out
+         * @param values
+         * @throws IOException
+         */
+        private static void writeRow(DataOutputStream out, String[] values) throws IOException {
+            for (String value : values) {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    /**
+     * Anonymizes the data with the transformation stored in the given file,
+     * optimizing the complete output. The rows are not related to those of
+     * the run which stored the transformation, so only the transformation is
+     * stored and a later append to this state performs a full search.
+     * @param data
+     * @param context
+     * @param stateFile
+     * @param maxDegradation maximal increase of the fraction of suppressed rows
+     * @return
+     * @throws IOException
+     */
+    public static DataHandle anonymize(Data data, RunContext context, File stateFile, double maxDegradation) throws IOException {
+        
+        // Prepare
+        TransformationRules rules = Anon.createRules(data, context);
+        Metrics metrics = context.getMetrics();
+        rules.apply(data);
+        State previous = State.load(stateFile);
+        long start = System.currentTimeMillis();
+        
+        // Apply previous transformation or search
+        ARXResult result = applyTransformation(data, rules, previous, context, maxDegradation);
+        if (result == null) {
+            result = search(data, context);
+        }
+        DataHandle output = result.getOutput();
+        double suppressed = Anon.getSuppressedFraction(output);
+        Map<String, Integer> levels = Anon.getTransformation(result.getGlobalOptimum());
+        
+        // Recode suppressed classes
+        ARXProcessStatistics statistics;
+        try (Metrics.Phase phase = metrics.start(Metrics.PHASE_OPTIMIZE)) {
+            statistics = Anon.optimize(result, output, Anon.O_MIN, "", context);
+        }
+        Anon.record(metrics, statistics, output);
+        System.out.println("Anonymization with previous transformation completed in " + (System.currentTimeMillis() - start) + " ms");
+        
+        // Store transformation
+        DataHandle input = data.getHandle();
+        new State(levels, input.getNumRows(), suppressed, new HashMap<Integer, String[]>(), getSample(input, input.getNumRows()),
+                  new HashMap<String, Map<String, Integer>>(), null, null).save(stateFile);
+        return output;
+    }
+
+    /**
+     * Anonymizes a cohort whose first rows have been anonymized by the run which
+     * stored the given state, reusing and updating the state
+     * @param data
+     * @param context
+     * @param stateFile
+     * @param maxDegradation maximal increase of the fraction of suppressed rows
+     * @return
+     * @throws IOException
+     */
+    public static PartitionedResult append(Data data, RunContext context, File stateFile, double maxDegradation) throws IOException {
+        
+        // Prepare
+        Metrics metrics = context.getMetrics();
+        State previous = State.load(stateFile);
+        DataHandle input = data.getHandle();
+        int rows = input.getNumRows();
+        String[] header = new String[input.getNumColumns()];
+        for (int column = 0; column < header.length; column++) {
+            header[column] = input.getAttributeName(column);
+        }
+        long start = System.currentTimeMillis();
+        if (previous != null && rows < previous.rows) {
+            System.out.println("Input has fewer rows than the previous cohort, performing full search");
+            previous = null;
+        }
+        if (previous != null && (previous.sample == null || previous.classes == null)) {
+            System.out.println("Previous state has no classes of the cohort, performing full search");
+            previous = null;
+        } else if (previous != null && !previous.sample.equals(getSample(input, previous.rows))) {
+            throw new IOException("The first " + previous.rows + " rows of the input do not match the cohort of the state " + stateFile);
+        }
+        if (previous == null) {
+            return searchAndStore(data, context, header, stateFile);
+        }
+        
+        // Classes of the appended rows
+        int[] rowClasses = Arrays.copyOf(previous.rowClasses, rows);
+        Set<EquivalenceClass> touched = new LinkedHashSet<>();
+        if (rows > previous.rows) {
+            int[] appendedRows = new int[rows - previous.rows];
+            for (int i = 0; i < appendedRows.length; i++) {
+                appendedRows[i] = previous.rows + i;
+            }
+            TransformationRules rules = Anon.createRules(createSubset(data, header, appendedRows), context);
+            if (!previous.isApplicable(rules)) {
+                System.out.println("Previous state does not match the transformation rules, performing full search");
+                return searchAndStore(data, context, header, stateFile);
+            }
+            Map<String, Map<String, String>> generalization = getGeneralization(rules, previous.levels);
+            for (int row : appendedRows) {
+                previous.count(header, getRow(input, row));
+                EquivalenceClass clazz = previous.getClass(getClass(input, row, generalization));
+                rowClasses[row] = clazz.index;
+                if (clazz.output == null) {
+                    clazz.rows.add(row);
+                    touched.add(clazz);
+                }
+            }
+        }
+        
+        // Suppressed by the transformation
+        int suppressedRows = (int) Math.round(previous.suppressed * previous.rows);
+        for (EquivalenceClass clazz : touched) {
+            int size = clazz.rows.size();
+            int before = 0;
+            for (int row : clazz.rows) {
+                before += row < previous.rows ? 1 : 0;
+            }
+            suppressedRows += (size < Anon.K ? size : 0) - before;
+        }
+        double suppressed = rows == 0 ? 0d : (double) suppressedRows / (double) rows;
+        System.out.println("Previous transformation applied to " + (rows - previous.rows) + " appended rows (cohort of " + rows + " rows), suppressed: " +
+                           suppressed + " (previously " + previous.suppressed + ")");
+        if (suppressed > previous.suppressed + maxDegradation) {
+            System.out.println("Degradation exceeds threshold of " + maxDegradation + ", performing full search");
+            return searchAndStore(data, context, header, stateFile);
+        }
+        
+        // Rows to recode: rows of suppressed classes with appended rows
+        BitSet recode = new BitSet(rows);
+        for (EquivalenceClass clazz : touched) {
+            for (int row : clazz.rows) {
+                recode.set(row);
+            }
+        }
+        
+        // Previously recoded classes are only restored if all of their rows are
+        Map<String, List<Integer>> restoredClasses = new HashMap<>();
+        for (Map.Entry<Integer, String[]> entry : previous.recoded.entrySet()) {
+            String key = String.join("\u0000", entry.getValue());
+            List<Integer> members = restoredClasses.get(key);
+            if (members == null) {
+                members = new ArrayList<>();
+                restoredClasses.put(key, members);
+            }
+            members.add(entry.getKey());
+        }
+        Map<Integer, String[]> restored = new HashMap<>();
+        for (List<Integer> members : restoredClasses.values()) {
+            boolean complete = true;
+            for (int row : members) {
+                complete &= !recode.get(row);
+            }
+            for (int row : members) {
+                if (complete) {
+                    restored.put(row, previous.recoded.get(row));
+                } else {
+                    recode.set(row);
+                }
+            }
+        }
+        System.out.println(recode.cardinality() + " rows to recode, " + restored.size() + " recoded rows restored");
+        
+        // Recode locally
+        DataHandle recoded = null;
+        Map<Integer, String[]> recodedState = new HashMap<>(restored);
+        int[] recodedRows = recode.stream().toArray();
+        if (recodedRows.length > 0) {
+            Data recodedData = createSubset(data, header, recodedRows);
+            TransformationRules rules = Anon.createRules(recodedData, new RunContext(context.getCache(), context.getDeadline(), new Metrics()));
+            for (String attribute : rules.getModeAttributes()) {
+                rules.setModeWithDistributionFallback(attribute, ColumnProfile.getFrequencyDistribution(previous.counts.get(attribute), rows));
+            }
+            rules.apply(recodedData);
+            TransformationRules.pin(recodedData.getDefinition(), previous.levels);
+            ARXResult recodedResult;
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_ANONYMIZE)) {
+                recodedResult = Anon.anonymize(recodedData, Anon.createConfiguration(recodedRows.length, context.getDeadline()), context);
+            }
+            recoded = recodedResult.getOutput();
+            if (recoded != null) {
+                
+                // Classes released by the transformation
+                BitSet outliers = new BitSet(recodedRows.length);
+                for (int i = 0; i < recodedRows.length; i++) {
+                    EquivalenceClass clazz = previous.classes.get(rowClasses[recodedRows[i]]);
+                    if (recoded.isOutlier(i)) {
+                        outliers.set(i);
+                    } else if (clazz.output == null) {
+                        clazz.output = getRow(recoded, i);
+                    }
+                }
+                for (EquivalenceClass clazz : touched) {
+                    if (clazz.output != null) {
+                        clazz.rows.clear();
+                    }
+                }
+                
+                // Optimize
+                ARXProcessStatistics statistics;
+                try (Metrics.Phase phase = metrics.start(Metrics.PHASE_OPTIMIZE)) {
+                    statistics = Anon.optimize(recodedResult, recoded, Anon.O_MIN, "", context);
+                }
+                metrics.add("arx_transformation_steps", statistics.getNumberOfSteps());
+                for (int i = outliers.nextSetBit(0); i >= 0; i = outliers.nextSetBit(i + 1)) {
+                    if (!recoded.isOutlier(i)) {
+                        recodedState.put(recodedRows[i], getRow(recoded, i));
+                    }
+                }
+            }
+        }
+        metrics.set("incremental_rows_recoded", recodedRows.length);
+        metrics.set("incremental_rows_restored", restored.size());
+        
+        // Merge: rows recoded now, rows restored and rows with the output of their class
+        DataHandle[] outputs = recoded == null ? new DataHandle[0] : new DataHandle[] { recoded };
+        int[] partitions = new int[rows];
+        int[] indices = new int[rows];
+        List<String[]> fixed = new ArrayList<>();
+        fixed.add(null);
+        Map<Integer, Integer> fixedClasses = new HashMap<>();
+        for (int row = 0; row < rows; row++) {
+            partitions[row] = outputs.length;
+            String[] values = restored.get(row);
+            EquivalenceClass clazz = previous.classes.get(rowClasses[row]);
+            if (values != null) {
+                indices[row] = fixed.size();
+                fixed.add(values);
+            } else if (clazz.output != null && !recode.get(row)) {
+                Integer index = fixedClasses.get(clazz.index);
+                if (index == null) {
+                    index = fixed.size();
+                    fixed.add(clazz.output);
+                    fixedClasses.put(clazz.index, index);
+                }
+                indices[row] = index;
+            }
+        }
+        for (int i = 0; i < recodedRows.length && recoded != null; i++) {
+            partitions[recodedRows[i]] = 0;
+            indices[recodedRows[i]] = i;
+        }
+        PartitionedResult merged = new PartitionedResult(header, outputs, fixed.toArray(new String[fixed.size()][]), partitions, indices);
+        int suppressedAfterOptimization = 0;
+        for (int row = 0; row < rows; row++) {
+            suppressedAfterOptimization += merged.isOutlier(row) ? 1 : 0;
+        }
+        metrics.add("rows_anonymized", rows);
+        metrics.add("rows_suppressed_after_optimization", suppressedAfterOptimization);
+        System.out.println("Incremental anonymization completed in " + (System.currentTimeMillis() - start) + " ms");
+        
+        // Store state
+        new State(previous.levels, rows, suppressed, recodedState, getSample(input, rows), previous.counts, previous.classes, rowClasses).save(stateFile);
+        return merged;
+    }
+
+    /**
+     * Applies the transformation of the previous run. Returns null if there is
+     * no applicable state or if the result degrades too much.
+     * @param data
+     * @param rules
+     * @param previous may be null
+     * @param context
+     * @param maxDegradation
+     * @return
+     * @throws IOException
+     */
+    private static ARXResult applyTransformation(Data data, TransformationRules rules, State previous, RunContext context, double maxDegradation) throws IOException {
+        if (previous == null) {
+            return null;
+        }
+        if (!previous.isApplicable(rules)) {
+            System.out.println("Previous state does not match the transformation rules, performing full search");
+            return null;
+        }
+        TransformationRules.pin(data.getDefinition(), previous.levels);
+        ARXResult result;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_ANONYMIZE)) {
+            result = Anon.anonymize(data, Anon.createConfiguration(data.getHandle().getNumRows(), context.getDeadline()));
+        }
+        DataHandle output = result.getOutput();
+        double suppressed = output == null ? 1d : Anon.getSuppressedFraction(output);
+        System.out.println("Previous transformation applied to " + data.getHandle().getNumRows() + " rows (previously " + previous.rows + "), suppressed: " + suppressed + " (previously " + previous.suppressed + ")");
+        if (output == null || suppressed > previous.suppressed + maxDegradation) {
+            System.out.println("Degradation exceeds threshold of " + maxDegradation + ", performing full search");
+            data.getHandle().release();
+            State.unpin(data.getDefinition(), rules);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Performs a full search
+     * @param data
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    private static ARXResult search(Data data, RunContext context) throws IOException {
+        context.getMetrics().set("incremental_full_search", 1);
+        ARXResult result;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_ANONYMIZE)) {
+            result = Anon.anonymize(data, Anon.createConfiguration(data.getHandle().getNumRows(), context.getDeadline()));
+        }
+        if (result.getOutput() == null) {
+            throw new IOException("No solution found");
+        }
+        return result;
+    }
+
+    /**
+     * Performs a full search on the complete cohort, optimizes the complete
+     * output and stores the transformation together with its classes and the
+     * rows recoded by the optimization
+     * @param data
+     * @param context
+     * @param header
+     * @param stateFile
+     * @return
+     * @throws IOException
+     */
+    private static PartitionedResult searchAndStore(Data data, RunContext context, String[] header, File stateFile) throws IOException {
+        long start = System.currentTimeMillis();
+        TransformationRules rules = Anon.createRules(data, context);
+        rules.apply(data);
+        ARXResult result = search(data, context);
+        DataHandle output = result.getOutput();
+        int rows = output.getNumRows();
+        Map<String, Integer> levels = Anon.getTransformation(result.getGlobalOptimum());
+        State state = createState(data.getHandle(), output, header, rules, levels);
+        BitSet outliers = new BitSet(rows);
+        for (int row = 0; row < rows; row++) {
+            if (output.isOutlier(row)) {
+                outliers.set(row);
+            }
+        }
+        
+        // Recode suppressed classes
+        ARXProcessStatistics statistics;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_OPTIMIZE)) {
+            statistics = Anon.optimize(result, output, Anon.O_MIN, "", context);
+        }
+        Anon.record(context.getMetrics(), statistics, output);
+        System.out.println("Incremental anonymization completed in " + (System.currentTimeMillis() - start) + " ms");
+        
+        // Store state
+        for (int row = outliers.nextSetBit(0); row >= 0; row = outliers.nextSetBit(row + 1)) {
+            if (!output.isOutlier(row)) {
+                state.recoded.put(row, getRow(output, row));
+            }
+        }
+        state.save(stateFile);
+        int[] partitions = new int[rows];
+        int[] indices = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            indices[row] = row;
+        }
+        return new PartitionedResult(header, new DataHandle[] { output }, partitions, indices);
+    }
+
+    /**
+     * Creates the state of a transformation from its output before optimization
+     * @param input
+     * @param output
+     * @param header
+     * @param rules
+     * @param levels
+     * @return
+     */
+    private static State createState(DataHandle input, DataHandle output, String[] header, TransformationRules rules, Map<String, Integer> levels) {
+        int rows = input.getNumRows();
+        Map<String, Map<String, Integer>> counts = new HashMap<>();
+        for (String attribute : rules.getModeAttributes()) {
+            counts.put(attribute, new HashMap<String, Integer>());
+        }
+        State state = new State(levels, rows, Anon.getSuppressedFraction(output), new HashMap<Integer, String[]>(), getSample(input, rows),
+                                counts, new ArrayList<EquivalenceClass>(), new int[rows]);
+        Map<String, Map<String, String>> generalization = getGeneralization(rules, levels);
+        for (int row = 0; row < rows; row++) {
+            state.count(header, getRow(input, row));
+            EquivalenceClass clazz = state.getClass(getClass(input, row, generalization));
+            state.rowClasses[row] = clazz.index;
+            if (output.isOutlier(row)) {
+                clazz.rows.add(row);
+            } else if (clazz.output == null) {
+                clazz.output = getRow(output, row);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Creates data from the given rows of the input, with the same data types
+     * @param data
+     * @param header
+     * @param rows
+     * @return
+     */
+    private static Data createSubset(Data data, String[] header, int[] rows) {
+        DataHandle input = data.getHandle();
+        List<String[]> subset = new ArrayList<>(rows.length + 1);
+        subset.add(header);
+        for (int row : rows) {
+            subset.add(getRow(input, row));
+        }
+        Data result = Data.create(subset);
+        for (String attribute : header) {
+            result.getDefinition().setDataType(attribute, data.getDefinition().getDataType(attribute));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the generalization of each value of each quasi-identifier by the
+     * given transformation, ordered by attribute so that keys of classes do not
+     * depend on the order of the levels
+     * @param rules
+     * @param levels
+     * @return
+     */
+    private static Map<String, Map<String, String>> getGeneralization(TransformationRules rules, Map<String, Integer> levels) {
+        Map<String, Map<String, String>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(levels).entrySet()) {
+            Map<String, String> generalization = new HashMap<>();
+            for (String[] values : rules.getHierarchy(entry.getKey()).getHierarchy()) {
+                generalization.put(values[0], values[entry.getValue()]);
+            }
+            result.put(entry.getKey(), generalization);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key of the class of a row under a transformation
+     * @param input
+     * @param row
+     * @param generalization
+     * @return
+     */
+    private static String getClass(DataHandle input, int row, Map<String, Map<String, String>> generalization) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Map<String, String>> entry : generalization.entrySet()) {
+            String value = input.getValue(row, input.getColumnIndexOf(entry.getKey()));
+            builder.append(entry.getValue().getOrDefault(value, value)).append('\u0000');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the SHA-256 of the number of rows and of evenly spaced rows of
+     * the first rows of the input, including the last one. This detects inputs
+     * which are not an extension of the previous cohort without reading it.
+     * @param input
+     * @param rows number of first rows
+     * @return
+     */
+    static String getSample(DataHandle input, int rows) {
+        MessageDigest digest = HierarchyCache.digest();
+        digest.update(String.valueOf(rows).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+        for (int i = 0; i < SAMPLE_ROWS && rows > 0; i++) {
+            int row = (int) ((long) (rows - 1) * i / (SAMPLE_ROWS - 1));
+            for (String value : getRow(input, row)) {
+                digest.update(value.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            digest.update((byte) '\n');
+        }
+        return HierarchyCache.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the values of a row
+     * @param handle
+     * @param row
+     * @return
+     */
+    private static String[] getRow(DataHandle handle, int row) {
+        String[] values = new String[handle.getNumColumns()];
+        for (int column = 0; column < values.length; column++) {
+            values[column] = handle.getValue(row, column);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.Arrays;
+
+import org.deidentifier.arx.AttributeType;
+import org.deidentifier.arx.DataType;
+import org.deidentifier.arx.aggregates.HierarchyBuilderIntervalBased;
+
+/**
+ * Specification of an interval-based hierarchy over decimal values. Base
+ * intervals of a fixed range start at the minimum and are grouped level by
+ * level; values are aggregated by their arithmetic mean. Like the intervals,
+ * the domain is half-open: it includes the minimum but not the maximum.
+ */
+public class IntervalHierarchySpec {
+
+    /** Lower bound of the domain */
+    private final double minValue;
+
+    /** Upper bound of the domain */
+    private final double maxValue;
+
+    /** Range of the base intervals */
+    private final double intervalRange;
+
+    /** Group sizes per level */
+    private final int[] groups;
+
+    /**
+     * Creates a new instance
+     * @param minValue
+     * @param maxValue
+     * @param intervalRange
+     * @param groups
+     */
+    public IntervalHierarchySpec(double minValue, double maxValue, double intervalRange, int... groups) {
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        this.intervalRange = intervalRange;
+        this.groups = groups.clone();
+    }
+
+    /**
+     * Builds the hierarchy for the given values
+     * @param values
+     * @return
+     */
+    public AttributeType.Hierarchy build(String[] values) {
+
+        // Init
+        HierarchyBuilderIntervalBased<Double> hierarchyBuilder = HierarchyBuilderIntervalBased.create(
+                DataType.DECIMAL,
+                new HierarchyBuilderIntervalBased.Range<Double>(minValue, minValue, minValue),
+                new HierarchyBuilderIntervalBased.Range<Double>(maxValue, maxValue, maxValue));
+
+        // Define base intervals
+        hierarchyBuilder.setAggregateFunction(DataType.DECIMAL.createAggregate().createArithmeticMeanFunction());
+        hierarchyBuilder.addInterval(minValue, minValue + intervalRange);
+        
+        // Define grouping
+        for (int level = 0; level < groups.length; level++) {
+            hierarchyBuilder.getLevel(level).addGroup(groups[level]);
+        }
+
+        // Prepare and return
+        hierarchyBuilder.prepare(values);
+        return hierarchyBuilder.build();
+    }
+
+    /**
+     * Lower bound of the domain
+     * @return
+     */
+    public double getMinValue() {
+        return minValue;
+    }
+
+    /**
+     * Upper bound of the domain
+     * @return
+     */
+    public double getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Returns whether the value is within the domain [min, max)
+     * @param value
+     * @return
+     */
+    public boolean contains(double value) {
+        return value >= minValue && value < maxValue;
+    }
+
+    /**
+     * Returns a value within the domain [min, max) next to the given value. Values
+     * below the domain are set to its minimum. Decimal values at or above the upper
+     * bound are set to the middle of the last base interval, which has a short
+     * decimal representation and stays in that interval when it is formatted.
+     * Integers are set to the largest integer below the upper bound.
+     * @param value
+     * @param integer whether the result must be an integer
+     * @return
+     */
+    public double clamp(double value, boolean integer) {
+        if (value < minValue) {
+            return integer ? Math.ceil(minValue) : minValue;
+        } else if (value >= maxValue) {
+            return integer ? Math.ceil(maxValue) - 1d : maxValue - intervalRange / 2d;
+        }
+        return value;
+    }
+
+    /**
+     * Range of the base intervals
+     * @return
+     */
+    public double getIntervalRange() {
+        return intervalRange;
+    }
+
+    @Override
+    public String toString() {
+        return "interval[min=" + minValue + ", max=" + maxValue + ", range=" + intervalRange + ", groups=" + Arrays.toString(groups) + "]";
+    }
+}
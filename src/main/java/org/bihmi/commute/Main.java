@@ -21,6 +21,14 @@ import org.deidentifier.arx.DataHandle;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main entry point
@@ -31,14 +39,234 @@ public class Main {
     private static final Option PARAMETER_INPUT_PATH = Option.builder("i").longOpt("input")
             .desc("Path to input file")
             .hasArg(true)
-            .required(true)
+            .required(false)
             .build();
 
     /** CLI parameter */
     private static final Option PARAMETER_OUTPUT_PATH = Option.builder("o").longOpt("output")
-            .desc("Path to output file")
+            .desc("Path to output file, or output directory in batch mode")
             .hasArg(true)
-            .required(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_BATCH = Option.builder("b").longOpt("batch")
+            .desc("Directory of input files or manifest listing input files, one per line")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_THREADS = Option.builder("t").longOpt("threads")
+            .desc("Number of files or partitions processed concurrently (default: number of cores)")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_PARTITION_BY = Option.builder().longOpt("partition-by")
+            .desc("Anonymize partitions formed by attributes which must not be generalized concurrently. " +
+                  "Optionally followed by a comma-separated list of attributes (default: all such attributes)")
+            .hasArg(true)
+            .optionalArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_PARALLEL_OPTIMIZATION = Option.builder().longOpt("parallel-optimization")
+            .desc("Search the transformation on the complete data and recode suppressed rows of the partitions formed " +
+                  "by attributes which must not be generalized concurrently")
+            .hasArg(false)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_STATE = Option.builder().longOpt("state")
+            .desc("State file of the incremental anonymization. The transformation stored by the previous run is reused")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_MAX_DEGRADATION = Option.builder().longOpt("max-degradation")
+            .desc("Increase of the fraction of suppressed rows which triggers a full search in incremental mode (default: " +
+                  IncrementalAnonymization.DEFAULT_MAX_DEGRADATION + ")")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_DEADLINE = Option.builder().longOpt("deadline")
+            .desc("End-to-end time budget of a run, or of each file in batch mode, in milliseconds. " +
+                  "The best result found so far is returned when the budget is exhausted")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_METRICS_JSON = Option.builder().longOpt("metrics-json")
+            .desc("Path to which performance metrics of the run are written as JSON")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_METRICS_PROMETHEUS = Option.builder().longOpt("metrics-prometheus")
+            .desc("Path to which performance metrics of the run are written in the Prometheus text format")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_BUFFER_SIZE = Option.builder().longOpt("buffer-size")
+            .desc("Size of the output buffer in bytes (default: " + IO.DEFAULT_BUFFER_SIZE + ")")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_HIERARCHY_CACHE = Option.builder().longOpt("hierarchy-cache")
+            .desc("Directory in which prepared hierarchies are persisted across runs")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_LOAD_THREADS = Option.builder().longOpt("load-threads")
+            .desc("Load the input with a memory-mapped parser using the given number of threads")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_QUANTIZE = Option.builder().longOpt("quantize")
+            .desc("Round " + IO.FIELD_MVPA_SQRT + ", " + IO.FIELD_VO2_MAX + " and " + IO.FIELD_AGE + ", and distances with a given precision, before anonymization. " +
+                  "Optionally followed by a comma-separated list of attribute=precision (default: range of the base intervals)")
+            .hasArg(true)
+            .optionalArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_RUN_CACHE = Option.builder().longOpt("run-cache")
+            .desc("Directory in which results are cached by the content of the input and the settings")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_REUSE_TRANSFORMATION = Option.builder().longOpt("reuse-transformation")
+            .desc("On a cache miss, apply the transformation of the latest run with the same settings instead of searching")
+            .hasArg(false)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_EVALUATE = Option.builder().longOpt("evaluate")
+            .desc("Report equivalence classes, re-identification risks and information loss per column of the output")
+            .hasArg(false)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_SWEEP = Option.builder().longOpt("sweep")
+            .desc("Evaluate a grid of configurations, e.g. \"k=2,3,5;suppression=0.05,1;omin=0.01,0.05\", " +
+                  "and write a table of the outcomes to the output path")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_SWEEP_OUTPUT = Option.builder().longOpt("sweep-output")
+            .desc("Write the output of the selected configuration to the given file")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_SWEEP_SELECT = Option.builder().longOpt("sweep-select")
+            .desc("Configuration of the grid whose output is written, e.g. \"k=5,suppression=0.05\" (required unless the grid has one configuration)")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_DAEMON = Option.builder().longOpt("daemon")
+            .desc("Stay resident and accept jobs over HTTP on the given port of the loopback interface")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_QUEUE_DEPTH = Option.builder().longOpt("queue-depth")
+            .desc("Number of jobs the daemon queues before rejecting submissions (default: " + Daemon.DEFAULT_QUEUE_DEPTH + ")")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_JOB_ROOT = Option.builder().longOpt("job-root")
+            .desc("Directory below which all inputs and outputs of daemon jobs must be located, relative paths are resolved against it")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_FORMAT = Option.builder().longOpt("format")
+            .desc("Format of the output: csv, csv.gz or columnar (default: detected by the extension of the output, otherwise csv)")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_COLLAPSE = Option.builder().longOpt("collapse")
+            .desc("Anonymize each distinct tuple at most k times and expand the output to all rows afterwards")
+            .hasArg(false)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_VALIDATE = Option.builder().longOpt("validate")
+            .desc("Check all rows against the domains of the hierarchies before anonymization. Optionally followed by " +
+                  "what to do with violating rows: fail, clamp, drop or quarantine (default: fail)")
+            .hasArg(true)
+            .optionalArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_QUARANTINE = Option.builder().longOpt("quarantine")
+            .desc("File to which rows violating the domains are written by the quarantine policy")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_SHARD_BY = Option.builder().longOpt("shard-by")
+            .desc("Split the input by the values of this column and anonymize each shard in a separate worker process")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_WORKERS = Option.builder().longOpt("workers")
+            .desc("Number of concurrent worker processes when sharding (default: number of cores)")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_WORKER_HEAP = Option.builder().longOpt("worker-heap")
+            .desc("Maximal heap size of each worker process, e.g. 4g (default: default of the JVM)")
+            .hasArg(true)
+            .required(false)
+            .build();
+
+    /** CLI parameter */
+    private static final Option PARAMETER_SPILL_DIRECTORY = Option.builder().longOpt("spill-directory")
+            .desc("Directory for the shards, their outputs and the logs of the workers (default: temporary directory, removed after success)")
+            .hasArg(true)
+            .required(false)
             .build();
 
     /**
@@ -48,6 +276,9 @@ public class Main {
      */
     public static void main(String[] args) throws IOException {
 
+        // The budget includes parsing and loading
+        long start = System.nanoTime();
+
         // Prepare options
         Options options = new Options();
 
@@ -73,27 +304,654 @@ public class Main {
         options = new Options();
         options.addOption(PARAMETER_INPUT_PATH);
         options.addOption(PARAMETER_OUTPUT_PATH);
+        options.addOption(PARAMETER_BATCH);
+        options.addOption(PARAMETER_THREADS);
+        options.addOption(PARAMETER_PARTITION_BY);
+        options.addOption(PARAMETER_PARALLEL_OPTIMIZATION);
+        options.addOption(PARAMETER_STATE);
+        options.addOption(PARAMETER_MAX_DEGRADATION);
+        options.addOption(PARAMETER_DEADLINE);
+        options.addOption(PARAMETER_METRICS_JSON);
+        options.addOption(PARAMETER_METRICS_PROMETHEUS);
+        options.addOption(PARAMETER_BUFFER_SIZE);
+        options.addOption(PARAMETER_HIERARCHY_CACHE);
+        options.addOption(PARAMETER_LOAD_THREADS);
+        options.addOption(PARAMETER_QUANTIZE);
+        options.addOption(PARAMETER_RUN_CACHE);
+        options.addOption(PARAMETER_REUSE_TRANSFORMATION);
+        options.addOption(PARAMETER_EVALUATE);
+        options.addOption(PARAMETER_SWEEP);
+        options.addOption(PARAMETER_SWEEP_OUTPUT);
+        options.addOption(PARAMETER_SWEEP_SELECT);
+        options.addOption(PARAMETER_DAEMON);
+        options.addOption(PARAMETER_JOB_ROOT);
+        options.addOption(PARAMETER_QUEUE_DEPTH);
+        options.addOption(PARAMETER_FORMAT);
+        options.addOption(PARAMETER_COLLAPSE);
+        options.addOption(PARAMETER_VALIDATE);
+        options.addOption(PARAMETER_QUARANTINE);
+        options.addOption(PARAMETER_SHARD_BY);
+        options.addOption(PARAMETER_WORKERS);
+        options.addOption(PARAMETER_WORKER_HEAP);
+        options.addOption(PARAMETER_SPILL_DIRECTORY);
 
+        int bufferSize;
+        int loadThreads;
+        int threads;
+        double maxDegradation;
+        long budget;
+        Quantization quantization;
+        List<Sweep.Point> grid;
+        Sweep.Point selection;
+        int port;
+        int queueDepth;
+        OutputFormat format;
+        Validation validation;
         try {
             cmd = parser.parse(options, args, false);
+            if (cmd.hasOption(PARAMETER_DAEMON)) {
+                List<String> supported = Arrays.asList(PARAMETER_DAEMON.getLongOpt(), PARAMETER_QUEUE_DEPTH.getLongOpt(), PARAMETER_THREADS.getLongOpt(),
+                                                       PARAMETER_BUFFER_SIZE.getLongOpt(), PARAMETER_HIERARCHY_CACHE.getLongOpt(), PARAMETER_JOB_ROOT.getLongOpt());
+                for (Option option : cmd.getOptions()) {
+                    if (!supported.contains(option.getLongOpt())) {
+                        throw new ParseException("Option not supported in daemon mode: " + option.getLongOpt());
+                    }
+                }
+                if (!cmd.hasOption(PARAMETER_JOB_ROOT)) {
+                    throw new ParseException("Daemon mode requires " + PARAMETER_JOB_ROOT.getLongOpt());
+                }
+            } else if (cmd.hasOption(PARAMETER_JOB_ROOT)) {
+                throw new ParseException("A job root requires daemon mode");
+            } else if (cmd.hasOption(PARAMETER_SHARD_BY)) {
+                List<String> supported = Arrays.asList(PARAMETER_SHARD_BY.getLongOpt(), PARAMETER_WORKERS.getLongOpt(), PARAMETER_WORKER_HEAP.getLongOpt(),
+                                                       PARAMETER_SPILL_DIRECTORY.getLongOpt(), PARAMETER_INPUT_PATH.getLongOpt(), PARAMETER_OUTPUT_PATH.getLongOpt(),
+                                                       PARAMETER_METRICS_JSON.getLongOpt(), PARAMETER_METRICS_PROMETHEUS.getLongOpt());
+                if (cmd.hasOption(PARAMETER_VALIDATE) && Validation.Policy.QUARANTINE.name().equalsIgnoreCase(cmd.getOptionValue(PARAMETER_VALIDATE))) {
+                    throw new ParseException("The quarantine policy is not supported in sharded mode");
+                }
+                for (Option option : cmd.getOptions()) {
+                    if (!supported.contains(option.getLongOpt()) && !isWorkerOption(option)) {
+                        throw new ParseException("Option not supported in sharded mode: " + option.getLongOpt());
+                    }
+                }
+                if (!cmd.hasOption(PARAMETER_INPUT_PATH) || !cmd.hasOption(PARAMETER_OUTPUT_PATH)) {
+                    throw new ParseException("Sharded mode requires an input file and an output file");
+                }
+                OutputFormat detected = OutputFormat.forExtension(new File(cmd.getOptionValue(PARAMETER_OUTPUT_PATH)));
+                if (detected != null && detected != OutputFormat.CSV) {
+                    throw new ParseException("Sharded mode only writes CSV");
+                }
+            } else if (cmd.hasOption(PARAMETER_WORKERS) || cmd.hasOption(PARAMETER_WORKER_HEAP) || cmd.hasOption(PARAMETER_SPILL_DIRECTORY)) {
+                throw new ParseException("Workers, their heap and the spill directory require sharding");
+            } else if (cmd.hasOption(PARAMETER_INPUT_PATH) == cmd.hasOption(PARAMETER_BATCH)) {
+                throw new ParseException("Either an input file or a batch must be provided");
+            } else if (!cmd.hasOption(PARAMETER_OUTPUT_PATH)) {
+                throw new ParseException("Missing required option: " + PARAMETER_OUTPUT_PATH.getOpt());
+            }
+            port = getInt(cmd, PARAMETER_DAEMON, 0);
+            queueDepth = getInt(cmd, PARAMETER_QUEUE_DEPTH, Daemon.DEFAULT_QUEUE_DEPTH);
+            if (cmd.hasOption(PARAMETER_BATCH) && (cmd.hasOption(PARAMETER_PARTITION_BY) || cmd.hasOption(PARAMETER_STATE))) {
+                throw new ParseException("Partitioning and incremental anonymization are not supported in batch mode");
+            }
+            if (cmd.hasOption(PARAMETER_PARTITION_BY) && cmd.hasOption(PARAMETER_STATE)) {
+                throw new ParseException("Partitioning is not supported in incremental mode");
+            }
+            if (cmd.hasOption(PARAMETER_PARALLEL_OPTIMIZATION) &&
+                (cmd.hasOption(PARAMETER_BATCH) || cmd.hasOption(PARAMETER_PARTITION_BY) || cmd.hasOption(PARAMETER_STATE))) {
+                throw new ParseException("Parallel optimization is not supported in batch, partitioned or incremental mode");
+            }
+            if (cmd.hasOption(PARAMETER_RUN_CACHE) && (cmd.hasOption(PARAMETER_BATCH) || cmd.hasOption(PARAMETER_PARTITION_BY) ||
+                                                       cmd.hasOption(PARAMETER_PARALLEL_OPTIMIZATION) || cmd.hasOption(PARAMETER_STATE))) {
+                throw new ParseException("The run cache is not supported in batch, partitioned or incremental mode");
+            }
+            if (cmd.hasOption(PARAMETER_RUN_CACHE) && cmd.hasOption(PARAMETER_DEADLINE)) {
+                throw new ParseException("The run cache is not supported with a deadline, as time-limited searches are not reproducible");
+            }
+            if (cmd.hasOption(PARAMETER_REUSE_TRANSFORMATION) && !cmd.hasOption(PARAMETER_RUN_CACHE)) {
+                throw new ParseException("Reusing transformations requires a run cache");
+            }
+            maxDegradation = getDouble(cmd, PARAMETER_MAX_DEGRADATION, IncrementalAnonymization.DEFAULT_MAX_DEGRADATION);
+            budget = getInt(cmd, PARAMETER_DEADLINE, Integer.MAX_VALUE);
+            bufferSize = getInt(cmd, PARAMETER_BUFFER_SIZE, IO.DEFAULT_BUFFER_SIZE);
+            if (bufferSize < IO.MIN_BUFFER_SIZE) {
+                throw new ParseException("Value of " + PARAMETER_BUFFER_SIZE.getLongOpt() + " must be at least " + IO.MIN_BUFFER_SIZE + ": " + bufferSize);
+            }
+            loadThreads = cmd.hasOption(PARAMETER_LOAD_THREADS) ? getInt(cmd, PARAMETER_LOAD_THREADS, 1) : 0;
+            threads = getInt(cmd, PARAMETER_THREADS, Runtime.getRuntime().availableProcessors());
+            if (cmd.hasOption(PARAMETER_BATCH) && cmd.hasOption(PARAMETER_QUANTIZE)) {
+                throw new ParseException("Quantization is not supported in batch mode");
+            }
+            quantization = cmd.hasOption(PARAMETER_QUANTIZE) ? getQuantization(cmd) : null;
+            if (cmd.hasOption(PARAMETER_SWEEP) && (cmd.hasOption(PARAMETER_BATCH) || cmd.hasOption(PARAMETER_PARTITION_BY) ||
+                                                   cmd.hasOption(PARAMETER_PARALLEL_OPTIMIZATION) || cmd.hasOption(PARAMETER_STATE) ||
+                                                   cmd.hasOption(PARAMETER_RUN_CACHE) || cmd.hasOption(PARAMETER_DEADLINE))) {
+                throw new ParseException("Sweeps are not supported in batch, partitioned, incremental or cached mode, or with a deadline");
+            }
+            if (cmd.hasOption(PARAMETER_SWEEP_OUTPUT) && !cmd.hasOption(PARAMETER_SWEEP)) {
+                throw new ParseException("An output of a sweep requires a sweep");
+            }
+            if (cmd.hasOption(PARAMETER_SWEEP_SELECT) && !cmd.hasOption(PARAMETER_SWEEP_OUTPUT)) {
+                throw new ParseException("Selecting a configuration requires an output of the sweep");
+            }
+            try {
+                grid = cmd.hasOption(PARAMETER_SWEEP) ? Sweep.getGrid(cmd.getOptionValue(PARAMETER_SWEEP)) : null;
+                selection = null;
+                if (cmd.hasOption(PARAMETER_SWEEP_SELECT)) {
+                    selection = Sweep.getSelection(cmd.getOptionValue(PARAMETER_SWEEP_SELECT), grid);
+                } else if (cmd.hasOption(PARAMETER_SWEEP_OUTPUT)) {
+                    if (grid.size() > 1) {
+                        throw new ParseException("An output of a sweep over several configurations requires " + PARAMETER_SWEEP_SELECT.getLongOpt());
+                    }
+                    selection = grid.get(0);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            if (cmd.hasOption(PARAMETER_FORMAT) && (cmd.hasOption(PARAMETER_BATCH) || cmd.hasOption(PARAMETER_SWEEP))) {
+                throw new ParseException("The output format is detected by the extension in sweep mode and not supported in batch mode");
+            }
+            if (cmd.hasOption(PARAMETER_COLLAPSE) && (cmd.hasOption(PARAMETER_BATCH) || cmd.hasOption(PARAMETER_PARTITION_BY) ||
+                                                      cmd.hasOption(PARAMETER_PARALLEL_OPTIMIZATION) || cmd.hasOption(PARAMETER_SWEEP) ||
+                                                      cmd.hasOption(PARAMETER_EVALUATE))) {
+                throw new ParseException("Collapsing is not supported in batch, partitioned or sweep mode, or with an evaluation");
+            }
+            if (cmd.hasOption(PARAMETER_COLLAPSE) && cmd.hasOption(PARAMETER_STATE)) {
+                throw new ParseException("Collapsing is not supported in incremental mode");
+            }
+            if (cmd.hasOption(PARAMETER_COLLAPSE) && cmd.hasOption(PARAMETER_QUANTIZE)) {
+                throw new ParseException("Collapsing already rounds all numeric attributes to their base intervals and cannot be combined with a quantization");
+            }
+            if (cmd.hasOption(PARAMETER_VALIDATE) && cmd.hasOption(PARAMETER_BATCH)) {
+                throw new ParseException("Validation is not supported in batch mode");
+            }
+            if (cmd.hasOption(PARAMETER_QUARANTINE) && !cmd.hasOption(PARAMETER_VALIDATE)) {
+                throw new ParseException("A quarantine file requires validation");
+            }
+            try {
+                validation = cmd.hasOption(PARAMETER_VALIDATE) ? new Validation(
+                        cmd.getOptionValue(PARAMETER_VALIDATE) == null ? Validation.Policy.FAIL : Validation.Policy.forName(cmd.getOptionValue(PARAMETER_VALIDATE)),
+                        cmd.hasOption(PARAMETER_QUARANTINE) ? new File(cmd.getOptionValue(PARAMETER_QUARANTINE)) : null) : null;
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
+            try {
+                format = cmd.hasOption(PARAMETER_FORMAT) ? OutputFormat.forName(cmd.getOptionValue(PARAMETER_FORMAT)) : null;
+            } catch (IllegalArgumentException e) {
+                throw new ParseException(e.getMessage());
+            }
         } catch (Exception e) {
             cliParameterHelp(options, e.getMessage());
             return;
         }
 
+        // Shared settings
+        HierarchyCache cache = cmd.hasOption(PARAMETER_HIERARCHY_CACHE) ?
+                new HierarchyCache(new File(cmd.getOptionValue(PARAMETER_HIERARCHY_CACHE))) :
+                new HierarchyCache();
+        Metrics metrics = new Metrics();
+
+        // Serve
+        if (cmd.hasOption(PARAMETER_DAEMON)) {
+            Daemon daemon = new Daemon(port, threads, queueDepth, cache, metrics, bufferSize, new File(cmd.getOptionValue(PARAMETER_JOB_ROOT)));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    daemon.stop(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            daemon.start();
+            return;
+        }
+
+        // Run, failing with a distinct exit code if the input violates the domains
+        int failed = 0;
+        try {
+            if (cmd.hasOption(PARAMETER_SHARD_BY)) {
+                runSharded(cmd, metrics);
+            } else if (grid != null) {
+                runSweep(cmd, threads, grid, selection, new RunContext(cache, null, metrics), bufferSize, loadThreads, validation, quantization);
+            } else if (cmd.hasOption(PARAMETER_BATCH)) {
+                failed = runBatch(cmd, threads, cmd.hasOption(PARAMETER_DEADLINE) ? budget : 0, cache, metrics, bufferSize);
+            } else {
+                Deadline deadline = null;
+                if (cmd.hasOption(PARAMETER_DEADLINE)) {
+                    deadline = new Deadline(budget - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                RunContext context = new RunContext(cache, deadline, metrics);
+                runSingle(cmd, threads, maxDegradation, context, bufferSize, loadThreads, validation, quantization, format);
+            }
+        } catch (Validation.ViolationException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(Validation.EXIT_CODE);
+        }
+
+        // Report
+        metrics.set("run_wall_seconds", (System.nanoTime() - start) / 1e9d);
+        System.out.println(cache.getStatistics());
+        System.out.println(metrics);
+        if (cmd.hasOption(PARAMETER_METRICS_JSON)) {
+            metrics.writeJson(new File(cmd.getOptionValue(PARAMETER_METRICS_JSON)));
+        }
+        if (cmd.hasOption(PARAMETER_METRICS_PROMETHEUS)) {
+            metrics.writePrometheus(new File(cmd.getOptionValue(PARAMETER_METRICS_PROMETHEUS)));
+        }
+        
+        // Fail if files of a batch failed
+        if (failed > 0) {
+            System.exit(Batch.EXIT_CODE);
+        }
+    }
+
+    /**
+     * Splits a file into shards which are anonymized by worker processes
+     * @param cmd
+     * @param metrics
+     * @throws IOException
+     */
+    private static void runSharded(CommandLine cmd, Metrics metrics) throws IOException {
+
+        // Output
+        String output = cmd.getOptionValue(PARAMETER_OUTPUT_PATH);
+        if (OutputFormat.forExtension(new File(output)) == null) {
+            output += OutputFormat.CSV.getExtension();
+        }
+
+        // Workers
+        int workers;
+        try {
+            workers = getInt(cmd, PARAMETER_WORKERS, Runtime.getRuntime().availableProcessors());
+        } catch (ParseException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        List<String> jvmArguments = new ArrayList<>();
+        if (cmd.hasOption(PARAMETER_WORKER_HEAP)) {
+            jvmArguments.add("-Xmx" + cmd.getOptionValue(PARAMETER_WORKER_HEAP));
+        }
+        List<String> workerArguments = new ArrayList<>();
+        for (Option option : cmd.getOptions()) {
+            if (isWorkerOption(option)) {
+                workerArguments.add("--" + option.getLongOpt());
+                if (option.getValue() != null) {
+                    workerArguments.add(option.getValue());
+                }
+            }
+        }
+
+        // Spill directory
+        File directory;
+        boolean temporary = !cmd.hasOption(PARAMETER_SPILL_DIRECTORY);
+        if (temporary) {
+            directory = Files.createTempDirectory("commute-shards").toFile();
+        } else {
+            directory = new File(cmd.getOptionValue(PARAMETER_SPILL_DIRECTORY));
+            Files.createDirectories(directory.toPath());
+        }
+
+        // Anonymize
+        Coordinator coordinator = new Coordinator(new File(cmd.getOptionValue(PARAMETER_INPUT_PATH)), cmd.getOptionValue(PARAMETER_SHARD_BY),
+                                                  workers, jvmArguments, workerArguments, directory);
+        IO.WriteStatistics statistics = coordinator.run(new File(output), metrics);
+        System.out.println(statistics);
+
+        // Clean up
+        if (temporary) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Files.deleteIfExists(directory.toPath());
+        }
+    }
+
+    /**
+     * Returns whether an option is passed on to the workers in sharded mode
+     * @param option
+     * @return
+     */
+    private static boolean isWorkerOption(Option option) {
+        List<String> passed = Arrays.asList(PARAMETER_DEADLINE.getLongOpt(), PARAMETER_BUFFER_SIZE.getLongOpt(), PARAMETER_HIERARCHY_CACHE.getLongOpt(),
+                                            PARAMETER_LOAD_THREADS.getLongOpt(), PARAMETER_QUANTIZE.getLongOpt(), PARAMETER_VALIDATE.getLongOpt(),
+                                            PARAMETER_COLLAPSE.getLongOpt());
+        return passed.contains(option.getLongOpt());
+    }
+
+    /**
+     * Anonymizes a single file
+     * @param cmd
+     * @param threads
+     * @param maxDegradation
+     * @param context
+     * @param bufferSize
+     * @param loadThreads of the parallel loader, 0 for the default loader
+     * @param validation may be null
+     * @param quantization may be null
+     * @param format of the output, null to detect it by the extension
+     * @throws IOException
+     */
+    private static void runSingle(CommandLine cmd, int threads, double maxDegradation, RunContext context, int bufferSize, int loadThreads,
+                                  Validation validation, Quantization quantization, OutputFormat format) throws IOException {
+
         // define Input and output file paths
         String inputPath = cmd.getOptionValue(PARAMETER_INPUT_PATH);
         String output = cmd.getOptionValue(PARAMETER_OUTPUT_PATH);
-        if (!output.toLowerCase().endsWith(".csv")) {
-        	output += ".csv";
+        if (format == null) {
+            format = OutputFormat.of(new File(output));
+        }
+        if (!output.toLowerCase().endsWith(format.getExtension())) {
+        	output += format.getExtension();
         }
 
-        // Anonymization
-        Data data = IO.loadData(new File(inputPath));
-        DataHandle anonymized = Anon.anonymizeCommuteData(data);
-        IO.writeResult(anonymized, new File(output));
+        // Run cache
+        Metrics metrics = context.getMetrics();
+        RunCache runCache = null;
+        String settings = null;
+        String key = null;
+        if (cmd.hasOption(PARAMETER_RUN_CACHE)) {
+            runCache = new RunCache(new File(cmd.getOptionValue(PARAMETER_RUN_CACHE)));
+            settings = Anon.getSettings(context.getDeadline()) + (validation == null ? "" : ", " + validation) +
+                       (quantization == null ? "" : ", " + quantization) +
+                       (cmd.hasOption(PARAMETER_COLLAPSE) ? ", collapse" : "") +
+                       (format == OutputFormat.CSV ? "" : ", format=" + format.getName());
+            key = runCache.getKey(new File(inputPath), settings, cmd.hasOption(PARAMETER_REUSE_TRANSFORMATION));
+            IO.WriteStatistics cached = runCache.restore(key, new File(output));
+            metrics.set("run_cache_hit", cached != null ? 1 : 0);
+            if (cached != null) {
+                if (validation != null) {
+                    
+                    // Validate anyway, writing the quarantine file and reporting the violations
+                    load(new File(inputPath), metrics, loadThreads, validation, null).getHandle().release();
+                }
+                System.out.println("Result restored from run cache");
+                cached.record(metrics);
+                System.out.println(cached);
+                return;
+            }
+        }
+
+        // Load and collapse
+        Data data;
+        TupleCollapse collapse = null;
+        if (cmd.hasOption(PARAMETER_COLLAPSE) && validation == null) {
+            
+            // Collapse while streaming the rows from the file
+            collapse = new TupleCollapse(Anon.K);
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_COLLAPSE, loadThreads > 1);
+                 CSVLoader.Rows rows = new CSVLoader.Rows(new File(inputPath), IO.COLUMNS, IO.TYPES, Math.max(1, loadThreads))) {
+                data = collapse.apply(rows, IO.TYPES);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            collapse.record(metrics);
+        } else {
+            data = load(new File(inputPath), metrics, loadThreads, validation, quantization);
+            if (cmd.hasOption(PARAMETER_COLLAPSE)) {
+                collapse = new TupleCollapse(Anon.K);
+                try (Metrics.Phase phase = metrics.start(Metrics.PHASE_COLLAPSE)) {
+                    data = collapse.apply(data);
+                }
+                collapse.record(metrics);
+            }
+        }
+        IO.WriteOptions options = new IO.WriteOptions(bufferSize);
+        options.setQuantization(quantization);
+        options.setCollapse(collapse);
+
+        // Partitioned anonymization
+        IO.WriteStatistics statistics;
+        if (cmd.hasOption(PARAMETER_PARTITION_BY)) {
+            String attributes = cmd.getOptionValue(PARAMETER_PARTITION_BY);
+            PartitionedResult anonymized = PartitionedAnonymization.anonymize(data, context,
+                    attributes == null ? null : Arrays.asList(attributes.split("\\s*,\\s*")), threads);
+            if (cmd.hasOption(PARAMETER_EVALUATE)) {
+                try (Metrics.Phase phase = metrics.start(Metrics.PHASE_EVALUATE)) {
+                    report(Evaluator.evaluate(data.getHandle(), anonymized), metrics);
+                }
+            }
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_WRITE, format == OutputFormat.CSV_GZIP)) {
+                statistics = IO.writeResult(anonymized, new File(output), options);
+            }
+        } else if (cmd.hasOption(PARAMETER_PARALLEL_OPTIMIZATION)) {
+            
+            // Concurrent optimization
+            PartitionedResult anonymized = PartitionedAnonymization.optimizeConcurrently(data, context, threads);
+            if (cmd.hasOption(PARAMETER_EVALUATE)) {
+                try (Metrics.Phase phase = metrics.start(Metrics.PHASE_EVALUATE)) {
+                    report(Evaluator.evaluate(data.getHandle(), anonymized), metrics);
+                }
+            }
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_WRITE, format == OutputFormat.CSV_GZIP)) {
+                statistics = IO.writeResult(anonymized, new File(output), options);
+            }
+        } else if (cmd.hasOption(PARAMETER_STATE)) {
+            
+            // Incremental anonymization
+            PartitionedResult anonymized = IncrementalAnonymization.append(data, context, new File(cmd.getOptionValue(PARAMETER_STATE)), maxDegradation);
+            if (cmd.hasOption(PARAMETER_EVALUATE)) {
+                try (Metrics.Phase phase = metrics.start(Metrics.PHASE_EVALUATE)) {
+                    report(Evaluator.evaluate(data.getHandle(), anonymized), metrics);
+                }
+            }
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_WRITE, format == OutputFormat.CSV_GZIP)) {
+                statistics = IO.writeResult(anonymized, new File(output), options);
+            }
+        } else {
+
+            // Anonymization, keeping the transformation if results are cached
+            File stateFile = null;
+            if (runCache != null) {
+                stateFile = runCache.getTransformationFile(key, settings, cmd.hasOption(PARAMETER_REUSE_TRANSFORMATION));
+            }
+            DataHandle anonymized = stateFile != null ?
+                    IncrementalAnonymization.anonymize(data, context, stateFile, maxDegradation) :
+                    Anon.anonymizeCommuteData(data, context);
+            if (cmd.hasOption(PARAMETER_EVALUATE)) {
+                try (Metrics.Phase phase = metrics.start(Metrics.PHASE_EVALUATE)) {
+                    report(Evaluator.evaluate(data.getHandle(), anonymized), metrics);
+                }
+            }
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_WRITE, format == OutputFormat.CSV_GZIP)) {
+                statistics = IO.writeResult(anonymized, new File(output), options);
+            }
+            if (runCache != null) {
+                runCache.store(key, settings, new File(output), statistics, stateFile);
+            }
+        }
+        statistics.record(metrics);
+        System.out.println(statistics);
+    }
+
+    /**
+     * Evaluates a grid of configurations
+     * @param cmd
+     * @param threads
+     * @param grid
+     * @param selection configuration whose output is written, may be null
+     * @param context
+     * @param bufferSize
+     * @param loadThreads of the parallel loader, 0 for the default loader
+     * @param validation may be null
+     * @param quantization may be null
+     * @throws IOException
+     */
+    private static void runSweep(CommandLine cmd, int threads, List<Sweep.Point> grid, Sweep.Point selection, RunContext context, int bufferSize,
+                                 int loadThreads, Validation validation, Quantization quantization) throws IOException {
+        
+        // Load and evaluate
+        Data data = load(new File(cmd.getOptionValue(PARAMETER_INPUT_PATH)), context.getMetrics(), loadThreads, validation, quantization);
+        List<Sweep.Outcome> outcomes = Sweep.run(data, context, grid, selection, threads);
+        Sweep.writeTable(outcomes, new File(cmd.getOptionValue(PARAMETER_OUTPUT_PATH)));
+        
+        // Output of the selected configuration
+        if (selection != null) {
+            Sweep.Outcome selected = Sweep.getOutcome(outcomes, selection);
+            if (selected == null || !selected.isSolved()) {
+                System.out.println("The selected configuration has not been solved, no output written");
+                return;
+            }
+            System.out.println("Writing output of " + selected.getPoint());
+            IO.WriteOptions options = new IO.WriteOptions(bufferSize);
+            options.setQuantization(quantization);
+            IO.WriteStatistics statistics;
+            try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_WRITE)) {
+                statistics = IO.writeResult(selected.getOutput(), new File(cmd.getOptionValue(PARAMETER_SWEEP_OUTPUT)), options);
+            }
+            statistics.record(context.getMetrics());
+            System.out.println(statistics);
+        }
+    }
+
+    /**
+     * Reports an evaluation
+     * @param evaluation
+     * @param metrics
+     */
+    private static void report(Evaluator.Evaluation evaluation, Metrics metrics) {
+        evaluation.record(metrics);
+        System.out.println(evaluation);
+    }
+
+    /**
+     * Loads and optionally validates and quantizes the input
+     * @param input
+     * @param metrics
+     * @param loadThreads of the parallel loader, 0 for the default loader
+     * @param validation may be null
+     * @param quantization may be null
+     * @return
+     * @throws IOException
+     */
+    private static Data load(File input, Metrics metrics, int loadThreads, Validation validation, Quantization quantization) throws IOException {
+        
+        // Load
+        Data data;
+        try (Metrics.Phase phase = metrics.start(Metrics.PHASE_LOAD, loadThreads > 1)) {
+            data = loadThreads > 0 ? IO.loadData(input, loadThreads) : IO.loadData(input);
+        }
+
+        // Validate
+        if (validation != null) {
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_VALIDATE, true)) {
+                data = validation.apply(data, Runtime.getRuntime().availableProcessors());
+            } finally {
+                if (validation.getReport() != null) {
+                    validation.getReport().record(metrics);
+                    System.out.println((validation.getReport().getRowsViolating() > 0 ? "Warning: " : "") + validation.getReport());
+                }
+            }
+        }
+
+        // Quantize
+        if (quantization != null) {
+            try (Metrics.Phase phase = metrics.start(Metrics.PHASE_QUANTIZE)) {
+                data = quantization.apply(data);
+            }
+        }
+        return data;
     }
 
+    /**
+     * Anonymizes a batch of files
+     * @param cmd
+     * @param threads
+     * @param budget of each file in milliseconds, 0 for none
+     * @param cache
+     * @param metrics accumulated over all files
+     * @param bufferSize
+     * @return number of files which failed
+     * @throws IOException
+     */
+    private static int runBatch(CommandLine cmd, int threads, long budget, HierarchyCache cache, Metrics metrics, int bufferSize) throws IOException {
+        File outputDirectory = new File(cmd.getOptionValue(PARAMETER_OUTPUT_PATH));
+        Files.createDirectories(outputDirectory.toPath());
+        List<Batch.Job> jobs = Batch.getJobs(new File(cmd.getOptionValue(PARAMETER_BATCH)), outputDirectory);
+        int failed = 0;
+        for (Batch.Outcome outcome : Batch.run(jobs, threads, cache, metrics, bufferSize, budget)) {
+            if (!outcome.isSuccessful()) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Returns the quantization
+     * @param cmd
+     * @return
+     * @throws ParseException
+     */
+    private static Quantization getQuantization(CommandLine cmd) throws ParseException {
+        Map<String, Double> precisions = new HashMap<>();
+        String value = cmd.getOptionValue(PARAMETER_QUANTIZE);
+        if (value != null) {
+            for (String entry : value.split("\\s*,\\s*")) {
+                String[] parts = entry.split("\\s*=\\s*");
+                try {
+                    if (parts.length != 2) {
+                        throw new NumberFormatException();
+                    }
+                    precisions.put(parts[0], Double.parseDouble(parts[1]));
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Invalid value of " + PARAMETER_QUANTIZE.getLongOpt() + ": " + entry);
+                }
+            }
+        }
+        try {
+            return new Quantization(precisions);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a positive integer option
+     * @param cmd
+     * @param option
+     * @param defaultValue
+     * @return
+     * @throws ParseException
+     */
+    private static int getInt(CommandLine cmd, Option option, int defaultValue) throws ParseException {
+        if (!cmd.hasOption(option)) {
+            return defaultValue;
+        }
+        String value = cmd.getOptionValue(option);
+        try {
+            int result = Integer.parseInt(value);
+            if (result <= 0) {
+                throw new ParseException("Value of " + option.getLongOpt() + " must be positive: " + value);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid value of " + option.getLongOpt() + ": " + value);
+        }
+    }
+
+    /**
+     * Returns a non-negative decimal option
+     * @param cmd
+     * @param option
+     * @param defaultValue
+     * @return
+     * @throws ParseException
+     */
+    private static double getDouble(CommandLine cmd, Option option, double defaultValue) throws ParseException {
+        if (!cmd.hasOption(option)) {
+            return defaultValue;
+        }
+        String value = cmd.getOptionValue(option);
+        try {
+            double result = Double.parseDouble(value);
+            if (Double.isNaN(result) || result < 0d) {
+                throw new ParseException("Value of " + option.getLongOpt() + " must not be negative: " + value);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid value of " + option.getLongOpt() + ": " + value);
+        }
+    }
 
     /**
      * Print help
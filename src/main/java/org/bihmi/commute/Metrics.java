@@ -0,0 +1,613 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records performance metrics of a run. Each phase is measured by wall
+ * time, CPU time, bytes allocated by the thread which starts it, and the
+ * peak heap usage while it runs. CPU time is that of the starting thread,
+ * or of the whole process for phases which spread their work across
+ * threads; the latter includes other phases running at the same time.
+ * Peak heap usage is process-wide and sampled while phases run, without
+ * resetting the peaks of the memory pools, so concurrent phases do not
+ * interfere. Phases recorded more than once, e.g. by concurrent partitions,
+ * are summed up, peak heap usage is the maximum. Counters hold arbitrary
+ * values such as row counts and ARX statistics. Counts of runs sharing the
+ * metrics, e.g. the jobs of a batch, are added up. Metrics are emitted as
+ * JSON and in the Prometheus text format. Undefined values are null in JSON
+ * and NaN or +/-Inf in the Prometheus text format.
+ */
+public class Metrics {
+
+    /** Phase */
+    public static final String PHASE_LOAD = "load";
+
+    /** Phase */
+    public static final String PHASE_VALIDATE = "validate";
+
+    /** Phase */
+    public static final String PHASE_QUANTIZE = "quantize";
+
+    /** Phase */
+    public static final String PHASE_COLLAPSE = "collapse";
+
+    /** Phase */
+    public static final String PHASE_PROFILE = "profile";
+
+    /** Phase */
+    public static final String PHASE_HIERARCHY_BUILD = "hierarchy_build";
+
+    /** Phase */
+    public static final String PHASE_ANONYMIZE = "anonymize";
+
+    /** Phase */
+    public static final String PHASE_OPTIMIZE = "optimize";
+
+    /** Phase */
+    public static final String PHASE_EVALUATE = "evaluate";
+
+    /** Phase */
+    public static final String PHASE_WRITE = "write";
+
+    /** Phase */
+    public static final String PHASE_SHARD = "shard";
+
+    /** Phase */
+    public static final String PHASE_WORKERS = "workers";
+
+    /** Phase */
+    public static final String PHASE_CONCATENATE = "concatenate";
+
+    /** Interval in which the heap usage is sampled in milliseconds */
+    private static final long SAMPLING_INTERVAL = 10L;
+
+    /** Memory */
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    /** Samples the heap usage of all running phases */
+    private static final HeapSampler HEAP_SAMPLER = new HeapSampler();
+
+    /** Prefix of Prometheus metrics */
+    private static final String PREFIX = "commute_";
+
+    /** A phase as written by toJson */
+    private static final Pattern JSON_PHASE = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\": \\{\"count\": (\\d+), \"wall_seconds\": ([^,]+), " +
+                                                              "\"cpu_seconds\": ([^,]+), \"allocated_bytes\": (-?\\d+), \"peak_heap_bytes\": (-?\\d+)\\}");
+
+    /** A counter as written by toJson */
+    private static final Pattern JSON_COUNTER = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\": ([^,\\s}]+)");
+
+    /**
+     * Measurement of a running phase
+     */
+    public class Phase implements AutoCloseable {
+
+        /** Name */
+        private final String name;
+
+        /** Whether the CPU time of the process is measured */
+        private final boolean parallel;
+
+        /** Start */
+        private final long wallStart = System.nanoTime();
+
+        /** Start */
+        private final long cpuStart;
+
+        /** Start */
+        private final long allocatedStart = getAllocatedBytes();
+
+        /** Peak heap usage sampled so far */
+        private final AtomicLong peakHeap = new AtomicLong();
+
+        /**
+         * Creates a new instance
+         * @param name
+         * @param parallel
+         */
+        private Phase(String name, boolean parallel) {
+            this.name = name;
+            this.parallel = parallel;
+            this.cpuStart = parallel ? getProcessCpuTime() : getCpuTime();
+            sample();
+            HEAP_SAMPLER.add(this);
+        }
+
+        /**
+         * Samples the heap usage
+         */
+        private void sample() {
+            long used = MEMORY.getHeapMemoryUsage().getUsed();
+            peakHeap.accumulateAndGet(used, Math::max);
+        }
+
+        /**
+         * Stops the measurement
+         */
+        @Override
+        public void close() {
+            HEAP_SAMPLER.remove(this);
+            sample();
+            long cpu = parallel ? getProcessCpuTime() - cpuStart : getCpuTime() - cpuStart;
+            record(name, System.nanoTime() - wallStart, cpu, getAllocatedBytes() - allocatedStart, peakHeap.get());
+        }
+    }
+
+    /**
+     * Samples the heap usage of all running phases in the background
+     */
+    private static class HeapSampler implements Runnable {
+
+        /** Running phases */
+        private final Set<Phase> phases = ConcurrentHashMap.newKeySet();
+
+        /** Sampling thread, null if not running */
+        private Thread thread;
+
+        /**
+         * Adds a phase, starting the sampling thread if required
+         * @param phase
+         */
+        synchronized void add(Phase phase) {
+            phases.add(phase);
+            if (thread == null) {
+                thread = new Thread(this, "metrics-heap-sampler");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        /**
+         * Removes a phase
+         * @param phase
+         */
+        void remove(Phase phase) {
+            phases.remove(phase);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    if (phases.isEmpty()) {
+                        thread = null;
+                        return;
+                    }
+                }
+                for (Phase phase : phases) {
+                    phase.sample();
+                }
+                try {
+                    Thread.sleep(SAMPLING_INTERVAL);
+                } catch (InterruptedException e) {
+                    synchronized (this) {
+                        thread = null;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Accumulated measurements of a phase
+     */
+    private static class Record {
+
+        /** Count */
+        private long count;
+
+        /** Nanoseconds */
+        private long wall;
+
+        /** Nanoseconds */
+        private long cpu;
+
+        /** Bytes */
+        private long allocated;
+
+        /** Bytes */
+        private long peakHeap;
+    }
+
+    /** Phases */
+    private final Map<String, Record> phases = new LinkedHashMap<>();
+
+    /** Counters */
+    private final Map<String, Double> counters = new LinkedHashMap<>();
+
+    /**
+     * Starts measuring a phase, which ends when the returned object is closed
+     * @param name
+     * @return
+     */
+    public Phase start(String name) {
+        return new Phase(name, false);
+    }
+
+    /**
+     * Starts measuring a phase, which ends when the returned object is closed
+     * @param name
+     * @param parallel whether the phase spreads its work across threads, so that the CPU time of the process is measured
+     * @return
+     */
+    public Phase start(String name, boolean parallel) {
+        return new Phase(name, parallel);
+    }
+
+    /**
+     * Sets a counter, which describes a single run
+     * @param name
+     * @param value
+     */
+    public synchronized void set(String name, double value) {
+        counters.put(name, value);
+    }
+
+    /**
+     * Adds to a counter
+     * @param name
+     * @param value
+     */
+    public synchronized void add(String name, double value) {
+        Double current = counters.get(name);
+        counters.put(name, current == null ? value : current + value);
+    }
+
+    /**
+     * Returns the value of a counter, 0 if it has not been set
+     * @param name
+     * @return
+     */
+    public synchronized double getCounter(String name) {
+        Double value = counters.get(name);
+        return value == null ? 0d : value;
+    }
+
+    /**
+     * Adds metrics in the JSON format written by writeJson, e.g. by another process.
+     * Phases are accumulated like phases recorded more than once, counters are summed.
+     * @param json
+     * @throws IOException if the metrics cannot be parsed
+     */
+    public synchronized void addJson(String json) throws IOException {
+        
+        // Parse completely before adding anything
+        Map<String, long[]> phases = new LinkedHashMap<>();
+        Map<String, Double> counters = new LinkedHashMap<>();
+        Map<String, ?> section = null;
+        int number = 0;
+        try {
+            for (String line : json.split("\n")) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.equals("{") || line.equals("}") || line.equals("},")) {
+                    section = line.startsWith("}") ? null : section;
+                    continue;
+                }
+                if (line.equals("\"phases\": {")) {
+                    section = phases;
+                    continue;
+                }
+                if (line.equals("\"counters\": {")) {
+                    section = counters;
+                    continue;
+                }
+                if (line.endsWith(",")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                Matcher phase = JSON_PHASE.matcher(line);
+                Matcher counter = JSON_COUNTER.matcher(line);
+                if (section == phases && phase.matches()) {
+                    phases.put(unescape(phase.group(1)), new long[] { Long.parseLong(phase.group(2)), Math.round(Double.parseDouble(phase.group(3)) * 1e9d),
+                            Math.round(Double.parseDouble(phase.group(4)) * 1e9d), Long.parseLong(phase.group(5)), Long.parseLong(phase.group(6)) });
+                } else if (section == counters && counter.matches()) {
+                    if (!counter.group(2).equals("null")) {
+                        counters.put(unescape(counter.group(1)), Double.parseDouble(counter.group(2)));
+                    }
+                } else {
+                    throw new IOException("Invalid metrics in line " + number + ": " + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid metrics in line " + number, e);
+        }
+        
+        // Add
+        for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            long[] values = entry.getValue();
+            record(entry.getKey(), values[0], values[1], values[2], values[3], values[4]);
+        }
+        for (Map.Entry<String, Double> entry : counters.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the metrics as JSON
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        write(file, toJson());
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format
+     * @param file
+     * @throws IOException
+     */
+    public void writePrometheus(File file) throws IOException {
+        write(file, toPrometheus());
+    }
+
+    /**
+     * Returns the metrics as JSON
+     * @return
+     */
+    public synchronized String toJson() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Record> entry : phases.entrySet()) {
+            Record record = entry.getValue();
+            builder.append(separator).append("    \"").append(escape(entry.getKey())).append("\": {");
+            builder.append("\"count\": ").append(record.count);
+            builder.append(", \"wall_seconds\": ").append(format(record.wall / 1e9d));
+            builder.append(", \"cpu_seconds\": ").append(format(record.cpu / 1e9d));
+            builder.append(", \"allocated_bytes\": ").append(record.allocated);
+            builder.append(", \"peak_heap_bytes\": ").append(record.peakHeap);
+            builder.append("}");
+            separator = ",\n";
+        }
+        builder.append("\n  },\n  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Double> entry : counters.entrySet()) {
+            builder.append(separator).append("    \"").append(escape(entry.getKey())).append("\": ").append(formatJson(entry.getValue()));
+            separator = ",\n";
+        }
+        builder.append("\n  }\n}\n");
+        return builder.toString();
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format
+     * @return
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        appendPhases(builder, "phase_count", "Number of times the phase has been executed", r -> r.count);
+        appendPhases(builder, "phase_wall_seconds", "Wall time of the phase", r -> r.wall / 1e9d);
+        appendPhases(builder, "phase_cpu_seconds", "CPU time of the thread starting the phase, or of the process for parallel phases", r -> r.cpu / 1e9d);
+        appendPhases(builder, "phase_allocated_bytes", "Bytes allocated by the thread starting the phase", r -> r.allocated);
+        appendPhases(builder, "phase_peak_heap_bytes", "Peak heap usage of the process sampled during the phase", r -> r.peakHeap);
+        for (Map.Entry<String, Double> entry : counters.entrySet()) {
+            String name = PREFIX + sanitize(entry.getKey());
+            builder.append("# TYPE ").append(name).append(" gauge\n");
+            builder.append(name).append(' ').append(format(entry.getValue())).append('\n');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Record> entry : phases.entrySet()) {
+            builder.append(builder.length() == 0 ? "" : ", ").append(entry.getKey()).append(": ").append(entry.getValue().wall / 1000000L).append(" ms");
+        }
+        return "Phases: " + builder;
+    }
+
+    /**
+     * Records a measurement
+     * @param name
+     * @param wall
+     * @param cpu
+     * @param allocated
+     * @param peakHeap
+     */
+    private synchronized void record(String name, long wall, long cpu, long allocated, long peakHeap) {
+        record(name, 1, wall, cpu, allocated, peakHeap);
+    }
+
+    /**
+     * Records measurements
+     * @param name
+     * @param count
+     * @param wall
+     * @param cpu
+     * @param allocated
+     * @param peakHeap
+     */
+    private synchronized void record(String name, long count, long wall, long cpu, long allocated, long peakHeap) {
+        Record record = phases.get(name);
+        if (record == null) {
+            record = new Record();
+            phases.put(name, record);
+        }
+        record.count += count;
+        record.wall += wall;
+        record.cpu += cpu;
+        record.allocated += allocated;
+        record.peakHeap = Math.max(record.peakHeap, peakHeap);
+    }
+
+    /**
+     * Appends one metric for all phases
+     * @param builder
+     * @param metric
+     * @param help
+     * @param value
+     */
+    private void appendPhases(StringBuilder builder, String metric, String help, ToDoubleFunction<Record> value) {
+        String name = PREFIX + metric;
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(" gauge\n");
+        for (Map.Entry<String, Record> entry : phases.entrySet()) {
+            builder.append(name).append("{phase=\"").append(escape(entry.getKey())).append("\"} ").append(format(value.applyAsDouble(entry.getValue()))).append('\n');
+        }
+    }
+
+    /**
+     * Writes a file atomically, so that collectors never see partial content
+     * @param file
+     * @param content
+     * @throws IOException
+     */
+    private static void write(File file, String content) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * CPU time of the current thread in nanoseconds, 0 if not supported
+     * @return
+     */
+    private static long getCpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : 0L;
+    }
+
+    /**
+     * Bytes allocated by the current thread, 0 if not supported
+     * @return
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) bean;
+            if (extended.isThreadAllocatedMemorySupported() && extended.isThreadAllocatedMemoryEnabled()) {
+                return extended.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * CPU time of the process in nanoseconds, 0 if not supported
+     * @return
+     */
+    private static long getProcessCpuTime() {
+        java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return Math.max(0L, ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime());
+        }
+        return 0L;
+    }
+
+    /**
+     * Formats a number
+     * @param value
+     * @return
+     */
+    static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0d ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15d) {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * Formats a number for JSON, which has no representation of NaN and infinity
+     * @param value
+     * @return
+     */
+    static String formatJson(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : format(value);
+    }
+
+    /**
+     * Escapes a string for JSON and Prometheus labels. Other control characters
+     * than the line feed are written as unicode escapes, as required by JSON.
+     * @param value
+     * @return
+     */
+    static String escape(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reverses escape
+     * @param value
+     * @return
+     */
+    private static String unescape(String value) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+                if (c == 'u' && i + 4 < value.length()) {
+                    builder.append((char) Integer.parseInt(value.substring(i + 1, i + 5), 16));
+                    i += 4;
+                } else {
+                    builder.append(c == 'n' ? '\n' : c);
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Turns a counter name into a valid metric name
+     * @param name
+     * @return
+     */
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.deidentifier.arx.DataHandle;
+import org.deidentifier.arx.DataType;
+
+/**
+ * Recomputes the arithmetic means of numeric quasi-identifiers in the output
+ * from the exact values of the input, for inputs which have been rounded or
+ * collapsed before anonymization. The values of the input are parsed once
+ * into primitive arrays, and the means computed by ARX are replaced by the
+ * means of each class. Rows which share all values of the output are
+ * considered one class. This approximates the equivalence classes of ARX,
+ * which does not expose the class of each row: distinct classes whose
+ * output is identical are merged and receive the mean of all of their rows.
+ * Classes are identified by 128-bit fingerprints of
+ * dictionary codes, and sums are accumulated in primitive arrays, so no
+ * values are parsed or formatted per row and no memory is allocated per row.
+ * Means are formatted once per class.
+ */
+class NumericAggregation {
+
+    /** Attributes aggregated by their arithmetic mean */
+    static final String[] ATTRIBUTES = { IO.FIELD_DISTANCE_TO_SCHOOL, IO.FIELD_DISTANCE_FROM_SCHOOL,
+                                         IO.FIELD_MVPA_SQRT, IO.FIELD_VO2_MAX, IO.FIELD_AGE };
+
+    /** Value of suppressed cells */
+    private static final String SUPPRESSED = "*";
+
+    /** Aggregated attributes */
+    private final String[] attributes;
+
+    /** Values of each attribute per row of the input, NaN for missing values */
+    private double[][] values;
+
+    /** Number of rows captured */
+    private int rows;
+
+    /** Column of each attribute in rows which are captured one at a time */
+    private int[] columns;
+
+    /** Whether each attribute is an integer */
+    private final boolean[] integer;
+
+    /**
+     * Creates a new instance
+     * @param attributes aggregated by their arithmetic mean
+     */
+    NumericAggregation(String... attributes) {
+        this.attributes = attributes.clone();
+        this.integer = new boolean[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            integer[i] = IO.TYPES[Arrays.asList(IO.COLUMNS).indexOf(attributes[i])] == DataType.INTEGER;
+        }
+    }
+
+    /**
+     * Parses the values of the input. Must be called with the rows which are
+     * anonymized, in the order in which the output is written.
+     * @param input
+     */
+    void capture(DataHandle input) {
+        rows = input.getNumRows();
+        values = new double[attributes.length][rows];
+        for (int i = 0; i < attributes.length; i++) {
+            int column = input.getColumnIndexOf(attributes[i]);
+            if (column < 0) {
+                throw new IllegalArgumentException("Missing column: " + attributes[i]);
+            }
+            double[] parsed = values[i];
+            for (int row = 0; row < rows; row++) {
+                parsed[row] = parse(input.getValue(row, column));
+            }
+        }
+    }
+
+    /**
+     * Starts capturing rows one at a time. Must be followed by all rows which
+     * are anonymized, in the order in which the output is written.
+     * @param header
+     */
+    void capture(String[] header) {
+        columns = new int[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            columns[i] = Arrays.asList(header).indexOf(attributes[i]);
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Missing column: " + attributes[i]);
+            }
+        }
+        values = new double[attributes.length][1024];
+        rows = 0;
+    }
+
+    /**
+     * Parses the values of the next row
+     * @param row
+     */
+    void add(String[] row) {
+        if (rows == values[0].length) {
+            for (int i = 0; i < attributes.length; i++) {
+                values[i] = Arrays.copyOf(values[i], rows + (rows >> 1));
+            }
+        }
+        for (int i = 0; i < attributes.length; i++) {
+            values[i][rows] = parse(row[columns[i]]);
+        }
+        rows++;
+    }
+
+    /**
+     * Returns a captured value
+     * @param index of the attribute
+     * @param row
+     * @return NaN, if the value is missing or not a number
+     */
+    double getValue(int index, int row) {
+        return values[index][row];
+    }
+
+    /**
+     * Returns the output with the attributes replaced by the arithmetic means of their classes
+     * @param output supplies iterators over the header and all rows in input order, rows are modified in place
+     * @return
+     */
+    Iterator<String[]> apply(Supplier<Iterator<String[]>> output) {
+        
+        // Columns
+        Iterator<String[]> iterator = output.get();
+        if (!iterator.hasNext()) {
+            return iterator;
+        }
+        String[] header = iterator.next();
+        int[] columns = new int[attributes.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Arrays.asList(header).indexOf(attributes[i]);
+        }
+        
+        // Classes
+        int[] classOfRow = new int[rows];
+        FingerprintTable classes = new FingerprintTable();
+        StringDictionary[] dictionaries = new StringDictionary[header.length];
+        for (int column = 0; column < header.length; column++) {
+            dictionaries[column] = new StringDictionary();
+        }
+        int row = 0;
+        while (iterator.hasNext()) {
+            if (row == rows) {
+                throw new IllegalStateException("Output has more rows than the input");
+            }
+            String[] cells = iterator.next();
+            long h = FingerprintTable.SEED_HIGH;
+            long l = FingerprintTable.SEED_LOW;
+            for (int column = 0; column < header.length; column++) {
+                int code = dictionaries[column].add(cells[column]);
+                h = FingerprintTable.addHigh(h, code);
+                l = FingerprintTable.addLow(l, code);
+            }
+            classOfRow[row++] = classes.add(h, l);
+        }
+        if (row != rows) {
+            throw new IllegalStateException("Output has " + row + " rows, input has " + rows);
+        }
+        
+        // Sums
+        int width = attributes.length;
+        double[] sums = new double[classes.size() * width];
+        int[] counts = new int[classes.size() * width];
+        for (int i = 0; i < width; i++) {
+            double[] parsed = values[i];
+            for (row = 0; row < rows; row++) {
+                double value = parsed[row];
+                if (!Double.isNaN(value)) {
+                    int index = classOfRow[row] * width + i;
+                    sums[index] += value;
+                    counts[index]++;
+                }
+            }
+        }
+        
+        // Means
+        String[] means = new String[sums.length];
+        for (int index = 0; index < means.length; index++) {
+            if (counts[index] > 0) {
+                double mean = sums[index] / counts[index];
+                means[index] = integer[index % width] ? String.valueOf(Math.round(mean)) : String.valueOf(mean);
+            }
+        }
+        
+        // Replace
+        return new Iterator<String[]>() {
+            
+            /** Iterator */
+            private final Iterator<String[]> rows = output.get();
+            
+            /** Row number of the next row, -1 for the header */
+            private int row = -1;
+
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String[] cells = rows.next();
+                if (row >= 0) {
+                    int offset = classOfRow[row] * width;
+                    for (int i = 0; i < width; i++) {
+                        String mean = means[offset + i];
+                        if (columns[i] >= 0 && mean != null && !SUPPRESSED.equals(cells[columns[i]])) {
+                            cells[columns[i]] = mean;
+                        }
+                    }
+                }
+                row++;
+                return cells;
+            }
+        };
+    }
+
+    /**
+     * Parses a numeric value
+     * @param value
+     * @return NaN, if the value is invalid
+     */
+    static double parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            double parsed = Double.parseDouble(value);
+            return Double.isInfinite(parsed) ? Double.NaN : parsed;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
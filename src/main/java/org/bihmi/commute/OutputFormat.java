@@ -0,0 +1,138 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Formats of output files, which are detected by their extension
+ */
+public enum OutputFormat {
+
+    /** Plain CSV */
+    CSV("csv", ".csv"),
+
+    /** CSV compressed with gzip, blocks are compressed in parallel */
+    CSV_GZIP("csv.gz", ".csv.gz"),
+
+    /** Typed columnar binary format, see ColumnarWriter */
+    COLUMNAR("columnar", ".cols");
+
+    /** Name */
+    private final String name;
+
+    /** Extension */
+    private final String extension;
+
+    /**
+     * Creates a new instance
+     * @param name
+     * @param extension
+     */
+    private OutputFormat(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    /**
+     * Returns the format with the given name
+     * @param name
+     * @return
+     */
+    public static OutputFormat forName(String name) {
+        for (OutputFormat format : values()) {
+            if (format.name.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown output format: " + name);
+    }
+
+    /**
+     * Returns the format of the given file, detected by its extension, CSV if the extension is unknown
+     * @param file
+     * @return
+     */
+    public static OutputFormat of(File file) {
+        OutputFormat format = forExtension(file);
+        return format == null ? CSV : format;
+    }
+
+    /**
+     * Returns the format of the given file, detected by its extension, null if the extension is unknown
+     * @param file
+     * @return
+     */
+    public static OutputFormat forExtension(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (OutputFormat format : values()) {
+            if (name.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the extension, including the dot
+     * @return
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Opens a writer for the given file
+     * @param file
+     * @param bufferSize in bytes
+     * @return
+     * @throws IOException
+     */
+    public RowWriter open(File file, int bufferSize) throws IOException {
+        if (bufferSize < IO.MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + IO.MIN_BUFFER_SIZE + " bytes");
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        WritableByteChannel target = channel;
+        try {
+            switch (this) {
+            case CSV_GZIP:
+                target = new GzipChannel(channel, Runtime.getRuntime().availableProcessors());
+                return new CSVStreamWriter(target, ',', bufferSize);
+            case COLUMNAR:
+                return new ColumnarWriter(channel, IO.getNumericColumns(), bufferSize);
+            default:
+                return new CSVStreamWriter(channel, ',', bufferSize);
+            }
+        } catch (RuntimeException e) {
+            target.close();
+            throw e;
+        }
+    }
+}
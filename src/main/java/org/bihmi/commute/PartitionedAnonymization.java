@@ -0,0 +1,340 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deidentifier.arx.ARXProcessStatistics;
+import org.deidentifier.arx.ARXResult;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Anonymizes partitions of the data concurrently. Partitions are formed by
+ * attributes which must not be generalized, so no equivalence class can
+ * span more than one partition. Rules are derived once from the complete
+ * data. Each partition is either searched and optimized on its own, or the
+ * transformation found for the complete data is applied to all partitions,
+ * which are then optimized concurrently.
+ */
+public class PartitionedAnonymization {
+
+    /**
+     * Rows of a single partition
+     */
+    private static class Partition {
+
+        /** Key */
+        private final String key;
+
+        /** Indices of the rows in the input */
+        private int[] rows = new int[16];
+
+        /** Number of rows */
+        private int size;
+
+        /** Index in the order of keys */
+        private int index;
+
+        /**
+         * Creates a new instance
+         * @param key
+         */
+        Partition(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Adds a row
+         * @param row
+         */
+        void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            rows[size++] = row;
+        }
+
+        /**
+         * Returns the rows of the partition, including the header
+         * @param input
+         * @param header
+         * @return
+         */
+        Iterator<String[]> iterator(DataHandle input, String[] header) {
+            return new Iterator<String[]>() {
+                int next = -1;
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+                @Override
+                public String[] next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    if (next++ < 0) {
+                        return header;
+                    }
+                    String[] row = new String[header.length];
+                    for (int column = 0; column < row.length; column++) {
+                        row[column] = input.getValue(rows[next - 1], column);
+                    }
+                    return row;
+                }
+            };
+        }
+    }
+
+    /**
+     * Anonymizes the data partitioned by all attributes which must not be generalized
+     * @param data
+     * @param context
+     * @param threads
+     * @return
+     * @throws IOException
+     */
+    public static PartitionedResult anonymize(Data data, RunContext context, int threads) throws IOException {
+        return anonymize(data, context, null, threads);
+    }
+
+    /**
+     * Anonymizes the data partitioned by the given attributes
+     * @param data
+     * @param context
+     * @param attributes must not be generalized, null for all such attributes
+     * @param threads
+     * @return
+     * @throws IOException
+     */
+    public static PartitionedResult anonymize(Data data, RunContext context, List<String> attributes, int threads) throws IOException {
+        return anonymize(data, Anon.createRules(data, context), context, attributes, threads, null);
+    }
+
+    /**
+     * Searches the transformation for the complete data and applies it to all partitions
+     * formed by attributes which must not be generalized. The suppressed rows of the
+     * partitions are recoded concurrently. As the transformation is the same, the
+     * partitions together form the same classes as the complete data before optimization.
+     * Local recoding cannot be split within a partition, so at most one thread per
+     * partition is used. Only the transformation of the search on the complete data
+     * is kept, each partition is anonymized again with it.
+     * @param data
+     * @param context
+     * @param threads
+     * @return
+     * @throws IOException
+     */
+    public static PartitionedResult optimizeConcurrently(Data data, RunContext context, int threads) throws IOException {
+        
+        // Search on the complete data
+        TransformationRules rules = Anon.createRules(data, context);
+        rules.apply(data);
+        ARXResult result;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_ANONYMIZE)) {
+            result = Anon.anonymize(data, Anon.createConfiguration(data.getHandle().getNumRows(), context.getDeadline()));
+        }
+        if (result.getGlobalOptimum() == null) {
+            throw new IOException("No solution found");
+        }
+        Map<String, Integer> levels = Anon.getTransformation(result.getGlobalOptimum());
+        System.out.println("Transformation " + levels + " found, optimizing partitions concurrently");
+        
+        // Optimize partitions
+        return anonymize(data, rules, context, null, threads, levels);
+    }
+
+    /**
+     * Anonymizes the data partitioned by the given attributes
+     * @param data
+     * @param rules derived from the complete data
+     * @param context
+     * @param attributes must not be generalized, null for all such attributes
+     * @param threads
+     * @param levels transformation to apply to all partitions, null to search each partition
+     * @return
+     * @throws IOException
+     */
+    private static PartitionedResult anonymize(Data data, TransformationRules rules, RunContext context, List<String> attributes,
+                                               int threads, Map<String, Integer> levels) throws IOException {
+        
+        // Check attributes
+        List<String> pinned = rules.getPinnedAttributes();
+        if (attributes == null) {
+            attributes = pinned;
+        }
+        for (String attribute : attributes) {
+            if (!pinned.contains(attribute)) {
+                throw new IllegalArgumentException("Attribute may be generalized and cannot be used for partitioning: " + attribute);
+            }
+        }
+        
+        // Split
+        DataHandle input = data.getHandle();
+        int[] columns = new int[attributes.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = input.getColumnIndexOf(attributes.get(i));
+        }
+        Map<String, Partition> partitions = new TreeMap<>();
+        List<Partition> partitionOfRow = new ArrayList<>(input.getNumRows());
+        String[] header = new String[input.getNumColumns()];
+        for (int column = 0; column < header.length; column++) {
+            header[column] = input.getAttributeName(column);
+        }
+        String[] row = new String[header.length];
+        for (int index = 0; index < input.getNumRows(); index++) {
+            for (int i = 0; i < columns.length; i++) {
+                row[columns[i]] = input.getValue(index, columns[i]);
+            }
+            String key = getKey(header, row, columns);
+            Partition partition = partitions.get(key);
+            if (partition == null) {
+                partition = new Partition(key);
+                partitions.put(key, partition);
+            }
+            partition.add(index);
+            partitionOfRow.add(partition);
+        }
+        
+        // Map rows to partitions, which are ordered by key
+        List<Partition> ordered = new ArrayList<>(partitions.values());
+        int[] partitionIndex = new int[partitionOfRow.size()];
+        int[] rowIndex = new int[partitionOfRow.size()];
+        int[] counts = new int[ordered.size()];
+        for (int i = 0; i < ordered.size(); i++) {
+            ordered.get(i).index = i;
+        }
+        for (int index = 0; index < partitionIndex.length; index++) {
+            int partition = partitionOfRow.get(index).index;
+            partitionIndex[index] = partition;
+            rowIndex[index] = counts[partition]++;
+        }
+        partitionOfRow = null;
+        
+        // Status
+        System.out.println("Anonymizing " + ordered.size() + " partitions by " + attributes);
+        long start = System.currentTimeMillis();
+
+        // Anonymize concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ordered.size())));
+        List<Future<DataHandle>> futures = new ArrayList<>();
+        for (Partition partition : ordered) {
+            futures.add(executor.submit(() -> anonymize(data, header, rules, partition, context, levels)));
+        }
+        executor.shutdown();
+        DataHandle[] outputs = new DataHandle[ordered.size()];
+        try {
+            for (int i = 0; i < outputs.length; i++) {
+                outputs[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while anonymizing partitions", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        
+        // Status
+        System.out.println("Partitions anonymized in " + (System.currentTimeMillis() - start) + " ms");
+        
+        // Done
+        return new PartitionedResult(header, outputs, partitionIndex, rowIndex);
+    }
+
+    /**
+     * Anonymizes a single partition. Its rows are only copied from the input
+     * when the partition is about to be anonymized, so at most as many
+     * partitions as threads are held in memory in addition to the input.
+     * @param data
+     * @param header
+     * @param rules
+     * @param partition
+     * @param context
+     * @param levels transformation to apply, null to search
+     * @return
+     * @throws IOException
+     */
+    private static DataHandle anonymize(Data data, String[] header, TransformationRules rules, Partition partition, RunContext context,
+                                        Map<String, Integer> levels) throws IOException {
+        
+        // Prepare
+        Data subset;
+        DataHandle input = data.getHandle();
+        synchronized (input) {
+            subset = Data.create(partition.iterator(input, header));
+            subset.getHandle();
+        }
+        for (String attribute : header) {
+            subset.getDefinition().setDataType(attribute, data.getDefinition().getDataType(attribute));
+        }
+        rules.apply(subset);
+        if (levels != null) {
+            TransformationRules.pin(subset.getDefinition(), levels);
+        }
+        
+        // Anonymize and optimize
+        ARXResult result;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_ANONYMIZE)) {
+            result = Anon.anonymize(subset, Anon.createConfiguration(partition.size, context.getDeadline()));
+        }
+        DataHandle output = result.getOutput();
+        ARXProcessStatistics statistics;
+        try (Metrics.Phase phase = context.getMetrics().start(Metrics.PHASE_OPTIMIZE)) {
+            statistics = Anon.optimize(result, output, Anon.O_MIN, "Partition " + partition.key + ". ", context);
+        }
+        Anon.record(context.getMetrics(), statistics, output);
+        
+        // Status
+        System.out.println("Partition " + partition.key + ": " + partition.size + " rows, transformation schemes applied: " + statistics.getNumberOfSteps());
+        return output;
+    }
+
+    /**
+     * Returns the key of a row
+     * @param header
+     * @param row
+     * @param columns
+     * @return
+     */
+    private static String getKey(String[] header, String[] row, int[] columns) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(header[columns[i]]).append('=').append(row[columns[i]]);
+        }
+        return builder.toString();
+    }
+}
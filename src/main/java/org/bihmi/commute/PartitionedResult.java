@@ -0,0 +1,169 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Output of a partitioned anonymization. ARX handles cannot be merged, so
+ * this view presents the outputs of all partitions as one table with the
+ * rows in the order of the input. Rows may also be taken from a table of
+ * fixed rows, e.g. rows recoded by a previous run. A fixed row which is null stands for a
+ * suppressed row.
+ */
+public class PartitionedResult {
+
+    /** Value of suppressed cells */
+    private static final String SUPPRESSED = "*";
+
+    /** Header */
+    private final String[] header;
+
+    /** Output of each partition */
+    private final DataHandle[] outputs;
+
+    /** Fixed rows, referenced by the partition following the outputs, null rows are suppressed, may be null */
+    private final String[][] fixed;
+
+    /** Partition of each input row */
+    private final int[] partitions;
+
+    /** Row within its partition of each input row */
+    private final int[] rows;
+
+    /**
+     * Creates a new instance
+     * @param header
+     * @param outputs
+     * @param partitions
+     * @param rows
+     */
+    PartitionedResult(String[] header, DataHandle[] outputs, int[] partitions, int[] rows) {
+        this(header, outputs, null, partitions, rows);
+    }
+
+    /**
+     * Creates a new instance
+     * @param header
+     * @param outputs
+     * @param fixed rows referenced by the partition index outputs.length, null rows are suppressed, may be null
+     * @param partitions
+     * @param rows
+     */
+    PartitionedResult(String[] header, DataHandle[] outputs, String[][] fixed, int[] partitions, int[] rows) {
+        this.header = header;
+        this.outputs = outputs;
+        this.fixed = fixed;
+        this.partitions = partitions;
+        this.rows = rows;
+    }
+
+    /**
+     * Returns the number of rows
+     * @return
+     */
+    public int getNumRows() {
+        return partitions.length;
+    }
+
+    /**
+     * Returns the number of columns
+     * @return
+     */
+    public int getNumColumns() {
+        return header.length;
+    }
+
+    /**
+     * Returns the name of a column
+     * @param column
+     * @return
+     */
+    public String getAttributeName(int column) {
+        return header[column];
+    }
+
+    /**
+     * Returns a value
+     * @param row
+     * @param column
+     * @return
+     */
+    public String getValue(int row, int column) {
+        if (partitions[row] == outputs.length) {
+            String[] values = fixed[rows[row]];
+            return values == null ? SUPPRESSED : values[column];
+        }
+        return outputs[partitions[row]].getValue(rows[row], column);
+    }
+
+    /**
+     * Returns whether a row has been suppressed
+     * @param row
+     * @return
+     */
+    public boolean isOutlier(int row) {
+        if (partitions[row] == outputs.length) {
+            return fixed[rows[row]] == null;
+        }
+        return outputs[partitions[row]].isOutlier(rows[row]);
+    }
+
+    /**
+     * Returns the outputs of the partitions
+     * @return
+     */
+    public DataHandle[] getOutputs() {
+        return outputs.clone();
+    }
+
+    /**
+     * Iterates over the header and all rows, in the order of the input
+     * @return
+     */
+    public Iterator<String[]> iterator() {
+        return new Iterator<String[]>() {
+
+            /** Next row, -1 is the header */
+            private int row = -1;
+
+            @Override
+            public boolean hasNext() {
+                return row < partitions.length;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (row == -1) {
+                    row++;
+                    return header.clone();
+                }
+                String[] result = new String[header.length];
+                for (int column = 0; column < result.length; column++) {
+                    result[column] = getValue(row, column);
+                }
+                row++;
+                return result;
+            }
+        };
+    }
+}
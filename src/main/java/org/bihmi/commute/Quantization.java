@@ -0,0 +1,282 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+import org.deidentifier.arx.DataType;
+
+/**
+ * Rounds numeric quasi-identifiers down to a grid starting at the minimum of
+ * their hierarchy before anonymization. The decimal attributes are always
+ * quantized, distances only if a precision is given for them. The precision divides the range of
+ * the base intervals, so every value stays in its base interval and the
+ * generalization of the data does not change, while the number of distinct
+ * values shrinks to the number of grid points. The exact values are kept
+ * and the arithmetic means of the output are recomputed from them.
+ */
+public class Quantization {
+
+    /** Hierarchy specifications of the attributes which can be quantized */
+    static final Map<String, IntervalHierarchySpec> SPECS = new LinkedHashMap<>();
+    static {
+        SPECS.put(IO.FIELD_DISTANCE_TO_SCHOOL, Anon.DISTANCE);
+        SPECS.put(IO.FIELD_DISTANCE_FROM_SCHOOL, Anon.DISTANCE);
+        SPECS.put(IO.FIELD_MVPA_SQRT, Anon.MVPA);
+        SPECS.put(IO.FIELD_VO2_MAX, Anon.VO2_MAX);
+        SPECS.put(IO.FIELD_AGE, Anon.AGE);
+    }
+
+    /** Attributes which are quantized without a given precision */
+    private static final List<String> DEFAULT_ATTRIBUTES = Arrays.asList(IO.FIELD_MVPA_SQRT, IO.FIELD_VO2_MAX, IO.FIELD_AGE);
+
+    /** Precision per attribute */
+    private final Map<String, Double> precisions = new LinkedHashMap<>();
+
+    /** Exact values of the quantized attributes */
+    private final NumericAggregation exact;
+
+    /** Hierarchy specification of each quantized attribute */
+    private final IntervalHierarchySpec[] specs;
+
+    /** Precision of each quantized attribute */
+    private final double[] grid;
+
+    /** Whether each quantized attribute is an integer */
+    private final boolean[] integer;
+
+    /**
+     * Creates a quantization of the decimal attributes to the range of their base intervals
+     */
+    public Quantization() {
+        this(new HashMap<String, Double>());
+    }
+
+    /**
+     * Creates a quantization of the decimal attributes and of all attributes with a given
+     * precision. Attributes without a given precision are quantized to the range of their
+     * base intervals.
+     * @param precisions
+     */
+    public Quantization(Map<String, Double> precisions) {
+        for (String attribute : precisions.keySet()) {
+            if (!SPECS.containsKey(attribute)) {
+                throw new IllegalArgumentException("Attribute cannot be quantized: " + attribute);
+            }
+        }
+        for (Map.Entry<String, IntervalHierarchySpec> entry : SPECS.entrySet()) {
+            String attribute = entry.getKey();
+            if (!DEFAULT_ATTRIBUTES.contains(attribute) && !precisions.containsKey(attribute)) {
+                continue;
+            }
+            double range = entry.getValue().getIntervalRange();
+            double precision = precisions.containsKey(attribute) ? precisions.get(attribute) : range;
+            double intervals = range / precision;
+            if (!(precision > 0d) || precision > range || Math.abs(intervals - Math.rint(intervals)) > 1e-9) {
+                throw new IllegalArgumentException("Precision of " + attribute + " must divide " + range + ": " + precision);
+            }
+            this.precisions.put(attribute, precision);
+        }
+        this.exact = new NumericAggregation(this.precisions.keySet().toArray(new String[this.precisions.size()]));
+        this.specs = new IntervalHierarchySpec[this.precisions.size()];
+        this.grid = new double[this.precisions.size()];
+        this.integer = new boolean[this.precisions.size()];
+        int index = 0;
+        for (Map.Entry<String, Double> entry : this.precisions.entrySet()) {
+            specs[index] = SPECS.get(entry.getKey());
+            grid[index] = entry.getValue();
+            integer[index] = IO.TYPES[Arrays.asList(IO.COLUMNS).indexOf(entry.getKey())] == DataType.INTEGER;
+            index++;
+        }
+    }
+
+    /**
+     * Returns a copy of the data with quantized values, keeping the exact values.
+     * Rows are streamed from the given data, whose handle is released.
+     * @param data
+     * @return
+     */
+    public Data apply(Data data) {
+        
+        // Prepare
+        DataHandle handle = data.getHandle();
+        String[] header = new String[handle.getNumColumns()];
+        for (int column = 0; column < header.length; column++) {
+            header[column] = handle.getAttributeName(column);
+        }
+        int[] columns = getColumns(header);
+        
+        // Keep the exact values
+        exact.capture(handle);
+        
+        // Quantize
+        Data result = Data.create(new Iterator<String[]>() {
+            
+            /** Row number of the next row, -1 for the header */
+            private int row = -1;
+
+            @Override
+            public boolean hasNext() {
+                return row < handle.getNumRows();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (row < 0) {
+                    row++;
+                    return header;
+                }
+                String[] cells = new String[header.length];
+                for (int column = 0; column < header.length; column++) {
+                    cells[column] = handle.getValue(row, column);
+                }
+                quantize(cells, columns, row);
+                row++;
+                return cells;
+            }
+        });
+        result.getHandle();
+        for (String attribute : header) {
+            result.getDefinition().setDataType(attribute, data.getDefinition().getDataType(attribute));
+        }
+        handle.release();
+        return result;
+    }
+
+    /**
+     * Quantizes rows while they are read, keeping the exact values. The
+     * first row is the header, all other rows are modified in place.
+     * @param rows
+     * @return
+     */
+    public Iterator<String[]> apply(Iterator<String[]> rows) {
+        if (!rows.hasNext()) {
+            return rows;
+        }
+        String[] header = rows.next();
+        int[] columns = getColumns(header);
+        exact.capture(header);
+        return new Iterator<String[]>() {
+            
+            /** Row number of the next row, -1 for the header */
+            private int row = -1;
+
+            @Override
+            public boolean hasNext() {
+                return row < 0 || rows.hasNext();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (row < 0) {
+                    row++;
+                    return header;
+                }
+                String[] cells = rows.next();
+                exact.add(cells);
+                quantize(cells, columns, row);
+                row++;
+                return cells;
+            }
+        };
+    }
+
+    /**
+     * Returns the output with arithmetic means recomputed from the exact values, including
+     * values which have not been quantized. Rows which share all values of the output are
+     * considered one class, so distinct classes of ARX with identical output are merged.
+     * @param output supplies iterators over the header and all rows in input order, rows are modified in place
+     * @return
+     */
+    public Iterator<String[]> restore(Supplier<Iterator<String[]>> output) {
+        return exact.apply(output);
+    }
+
+    @Override
+    public String toString() {
+        return "quantization" + precisions;
+    }
+
+    /**
+     * Returns the column of each quantized attribute
+     * @param header
+     * @return
+     */
+    private int[] getColumns(String[] header) {
+        int[] columns = new int[precisions.size()];
+        int index = 0;
+        for (String attribute : precisions.keySet()) {
+            columns[index++] = Arrays.asList(header).indexOf(attribute);
+        }
+        return columns;
+    }
+
+    /**
+     * Replaces the values of the quantized attributes of a row by their quantized exact values
+     * @param cells
+     * @param columns of the quantized attributes
+     * @param row
+     */
+    private void quantize(String[] cells, int[] columns, int row) {
+        for (int i = 0; i < columns.length; i++) {
+            double quantized = quantize(exact.getValue(i, row), specs[i], grid[i]);
+            if (!Double.isNaN(quantized)) {
+                cells[columns[i]] = integer[i] ? String.valueOf((long) quantized) : String.valueOf(quantized);
+            }
+        }
+    }
+
+    /**
+     * Returns the quantized value, or NaN if the value is not quantized
+     * @param value
+     * @param spec
+     * @param precision
+     * @return
+     */
+    private static double quantize(double value, IntervalHierarchySpec spec, double precision) {
+        
+        // Only values within the domain
+        double min = spec.getMinValue();
+        if (!spec.contains(value)) {
+            return Double.NaN;
+        }
+        
+        // Floor to the grid, correcting for rounding
+        long step = (long) Math.floor((value - min) / precision);
+        if (min + (step + 1) * precision <= value) {
+            step++;
+        } else if (min + step * precision > value) {
+            step--;
+        }
+        return BigDecimal.valueOf(min).add(BigDecimal.valueOf(precision).multiply(BigDecimal.valueOf(step))).doubleValue();
+    }
+}
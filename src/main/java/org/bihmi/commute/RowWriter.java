@@ -0,0 +1,32 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes rows of an output, starting with the header
+ */
+public interface RowWriter extends Closeable {
+
+    /**
+     * Writes a row
+     * @param row
+     * @throws IOException
+     */
+    void write(String[] row) throws IOException;
+}
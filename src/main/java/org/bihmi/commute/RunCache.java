@@ -0,0 +1,192 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+/**
+ * Caches the results of runs by the content of the input and all settings
+ * which determine the result. An entry consists of the output, the selected
+ * transformation and statistics about the output. The transformation selected
+ * by the latest run with the same settings is kept as well, so that it can be
+ * re-applied to inputs which have changed slightly. Only runs without a
+ * deadline may be cached, as a time-limited search is not reproducible.
+ * Failing to write the cache is not fatal.
+ */
+public class RunCache {
+
+    /** Property */
+    private static final String KEY_ROWS_WRITTEN = "rowsWritten";
+
+    /** Property */
+    private static final String KEY_ROWS_SUPPRESSED = "rowsSuppressed";
+
+    /** Directory */
+    private final File directory;
+
+    /**
+     * Creates a new instance
+     * @param directory
+     * @throws IOException
+     */
+    public RunCache(File directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+    }
+
+    /**
+     * Returns the key of a run. Runs which reuse the latest transformation have
+     * keys of their own, as their output differs from that of a search.
+     * @param input
+     * @param settings
+     * @param reuse whether the run reuses the latest transformation
+     * @return
+     * @throws IOException
+     */
+    public String getKey(File input, String settings, boolean reuse) throws IOException {
+        MessageDigest digest = HierarchyCache.digest();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(input.toPath())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HierarchyCache.sha256(settings + (reuse ? ", reuseTransformation" : "") + '\n' + HierarchyCache.toHex(digest.digest()));
+    }
+
+    /**
+     * Writes the cached output of the run to the given file
+     * @param key
+     * @param output
+     * @return statistics of the output, null if the run is not cached
+     * @throws IOException
+     */
+    public IO.WriteStatistics restore(String key, File output) throws IOException {
+        File statistics = getFile(key, ".properties");
+        File result = getFile(key, ".csv");
+        if (!statistics.isFile() || !result.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(statistics.toPath())) {
+            properties.load(in);
+            long rowsWritten = Long.parseLong(properties.getProperty(KEY_ROWS_WRITTEN));
+            long rowsSuppressed = Long.parseLong(properties.getProperty(KEY_ROWS_SUPPRESSED));
+            Files.copy(result.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return new IO.WriteStatistics(rowsWritten, rowsSuppressed);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Warning: Unable to restore run " + key + " from cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file in which the transformation of the given run is to be stored.
+     * If the transformation is to be reused, this is the file of the latest run with
+     * the same settings. Otherwise it is a new file of the run.
+     * @param key
+     * @param settings
+     * @param reuse
+     * @return
+     * @throws IOException
+     */
+    public File getTransformationFile(String key, String settings, boolean reuse) throws IOException {
+        if (reuse) {
+            return getLatestFile(settings);
+        }
+        File file = getFile(key, ".run.state");
+        Files.deleteIfExists(file.toPath());
+        return file;
+    }
+
+    /**
+     * Stores a run. Its transformation becomes the latest one of its settings.
+     * @param key
+     * @param settings
+     * @param output
+     * @param statistics
+     * @param transformation file containing the selected transformation
+     */
+    public void store(String key, String settings, File output, IO.WriteStatistics statistics, File transformation) {
+        try {
+            
+            // Output and transformation
+            copy(output, getFile(key, ".csv"));
+            File state = getFile(key, ".state");
+            if (transformation.equals(getFile(key, ".run.state"))) {
+                Files.move(transformation.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                copy(transformation, state);
+            }
+            File latest = getLatestFile(settings);
+            if (!transformation.equals(latest)) {
+                copy(state, latest);
+            }
+            
+            // Statistics mark the entry as complete
+            Properties properties = new Properties();
+            properties.setProperty(KEY_ROWS_WRITTEN, String.valueOf(statistics.getRowsWritten()));
+            properties.setProperty(KEY_ROWS_SUPPRESSED, String.valueOf(statistics.getRowsSuppressed()));
+            File temp = getFile(key, ".properties.tmp");
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                properties.store(out, "Statistics of a cached run");
+            }
+            Files.move(temp.toPath(), getFile(key, ".properties").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } catch (IOException e) {
+            System.out.println("Warning: Unable to store run " + key + " in cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies a file atomically
+     * @param source
+     * @param target
+     * @throws IOException
+     */
+    private void copy(File source, File target) throws IOException {
+        File temp = new File(target.getPath() + ".tmp");
+        Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the file containing the transformation of the latest run with the given settings
+     * @param settings
+     * @return
+     */
+    private File getLatestFile(String settings) {
+        return getFile(HierarchyCache.sha256(settings), ".latest.state");
+    }
+
+    /**
+     * Returns a file of the cache
+     * @param key
+     * @param extension
+     * @return
+     */
+    private File getFile(String key, String extension) {
+        return new File(directory, key + extension);
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Resources of a single run: the hierarchy cache, which may be shared by
+ * many runs, the deadline and the metrics of the run, and whether numeric
+ * attributes are aggregated after anonymization. A run can be cancelled
+ * through its context, which stops the search and the optimization.
+ */
+public class RunContext {
+
+    /** Cache */
+    private final HierarchyCache cache;
+
+    /** Deadline, may be null */
+    private final Deadline deadline;
+
+    /** Metrics */
+    private final Metrics metrics;
+
+    /** Whether the run has been cancelled */
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a context with an in-memory cache and without deadline
+     */
+    public RunContext() {
+        this(new HierarchyCache(), null, new Metrics());
+    }
+
+    /**
+     * Creates a new instance
+     * @param cache
+     * @param deadline may be null
+     * @param metrics
+     */
+    public RunContext(HierarchyCache cache, Deadline deadline, Metrics metrics) {
+        this.cache = cache;
+        this.deadline = deadline;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Cache
+     * @return
+     */
+    public HierarchyCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Deadline, may be null
+     * @return
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Metrics
+     * @return
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Cancels the run
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Whether the run has been cancelled
+     * @return
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws an exception if the run has been cancelled
+     * @throws CancellationException
+     */
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Run cancelled");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+/**
+ * Assigns consecutive codes to strings. The table uses open addressing over
+ * primitive arrays and compares references before contents, so looking up
+ * a string does not allocate and values shared by ARX's dictionaries are
+ * usually matched without comparing characters.
+ */
+class StringDictionary {
+
+    /** Strings, null for empty slots */
+    private String[] keys = new String[1 << 8];
+
+    /** Code per slot */
+    private int[] codes = new int[1 << 8];
+
+    /** Code of null, -1 if it has not been added */
+    private int nullCode = -1;
+
+    /** Number of codes */
+    private int size = 0;
+
+    /**
+     * Adds a string and returns its code
+     * @param value may be null
+     * @return
+     */
+    int add(String value) {
+        if (value == null) {
+            if (nullCode < 0) {
+                nullCode = size++;
+            }
+            return nullCode;
+        }
+        if (size * 2 >= keys.length) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int slot = mix(value.hashCode()) & mask;
+        while (keys[slot] != null) {
+            if (keys[slot] == value || keys[slot].equals(value)) {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = value;
+        codes[slot] = size;
+        return size++;
+    }
+
+    /**
+     * Returns the number of codes
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Doubles the capacity
+     */
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldCodes = codes;
+        keys = new String[oldKeys.length * 2];
+        codes = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = mix(oldKeys[i].hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                codes[slot] = oldCodes[i];
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of a hash code
+     * @param hash
+     * @return
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,459 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deidentifier.arx.ARXResult;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Evaluates a grid of configurations on the same data. The data is loaded
+ * and the transformation rules are derived once, each configuration is
+ * anonymized on its own copy of the data. Configurations are evaluated
+ * concurrently. Only the output of a configuration selected by the user is
+ * kept, all other outputs are released as soon as they have been evaluated.
+ */
+public class Sweep {
+
+    /** Columns of the table */
+    private static final String[] HEADER = { "k", "suppression_limit", "omin", "runtime_ms", "rows", "suppressed",
+                                             "arx_score", "mean_column_loss", "classes", "min_class_size", "avg_class_size", "max_class_size" };
+
+    /**
+     * A configuration
+     */
+    public static class Point {
+
+        /** Parameter of k-anonymity */
+        private final int k;
+
+        /** Suppression limit */
+        private final double suppressionLimit;
+
+        /** Minimal fraction of records recoded per optimization step */
+        private final double oMin;
+
+        /**
+         * Creates a new instance
+         * @param k
+         * @param suppressionLimit
+         * @param oMin
+         */
+        public Point(int k, double suppressionLimit, double oMin) {
+            this.k = k;
+            this.suppressionLimit = suppressionLimit;
+            this.oMin = oMin;
+        }
+
+        @Override
+        public String toString() {
+            return "k=" + k + ", suppression=" + suppressionLimit + ", oMin=" + oMin;
+        }
+    }
+
+    /**
+     * Outcome of a configuration
+     */
+    public static class Outcome {
+
+        /** Configuration */
+        private final Point point;
+
+        /** Time spent on anonymization and optimization */
+        private long runtime;
+
+        /** Rows */
+        private int rows;
+
+        /** Rows suppressed after optimization, -1 if no solution has been found */
+        private int suppressed = -1;
+
+        /** Score of the selected transformation under ARX's quality model, before optimization */
+        private String score = "";
+
+        /** Mean information loss of the columns of the optimized output, as reported by the evaluation */
+        private double loss = Double.NaN;
+
+        /** Equivalence classes */
+        private int classes;
+
+        /** Class sizes */
+        private int minClassSize;
+
+        /** Class sizes */
+        private double avgClassSize;
+
+        /** Class sizes */
+        private int maxClassSize;
+
+        /** Output, only kept for the selected configuration */
+        private DataHandle output;
+
+        /**
+         * Returns the configuration
+         * @return
+         */
+        public Point getPoint() {
+            return point;
+        }
+
+        /**
+         * Returns the output
+         * @return null if the configuration has not been selected or not been solved
+         */
+        public DataHandle getOutput() {
+            return output;
+        }
+
+        /**
+         * Creates a new instance
+         * @param point
+         */
+        Outcome(Point point) {
+            this.point = point;
+        }
+
+        /**
+         * Whether a solution has been found
+         * @return
+         */
+        public boolean isSolved() {
+            return suppressed >= 0;
+        }
+
+        /**
+         * Returns the row of the table
+         * @return
+         */
+        String[] toRow() {
+            return new String[] { String.valueOf(point.k), String.valueOf(point.suppressionLimit), String.valueOf(point.oMin),
+                                  String.valueOf(runtime), String.valueOf(rows),
+                                  isSolved() ? String.valueOf(suppressed) : "", isSolved() ? score : "", isSolved() ? String.valueOf(loss) : "",
+                                  isSolved() ? String.valueOf(classes) : "", isSolved() ? String.valueOf(minClassSize) : "",
+                                  isSolved() ? String.valueOf(avgClassSize) : "", isSolved() ? String.valueOf(maxClassSize) : "" };
+        }
+
+        @Override
+        public String toString() {
+            if (!isSolved()) {
+                return point + ": no solution found in " + runtime + " ms";
+            }
+            return point + ": " + suppressed + " of " + rows + " rows suppressed, ARX score " + score + ", mean column loss " + loss + ", " + classes + " classes of size " +
+                   minClassSize + " to " + maxClassSize + " (average " + avgClassSize + "), " + runtime + " ms";
+        }
+    }
+
+    /**
+     * Parses a grid such as "k=2,3,5;suppression=0.05,1;omin=0.01,0.05". Parameters which
+     * are not specified take the values of the default configuration.
+     * @param spec
+     * @return
+     */
+    public static List<Point> getGrid(String spec) {
+        
+        // Parse
+        List<Integer> ks = new ArrayList<>();
+        List<Double> suppressionLimits = new ArrayList<>();
+        List<Double> oMins = new ArrayList<>();
+        for (String dimension : spec.split("\\s*;\\s*")) {
+            String[] parts = dimension.split("\\s*=\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid dimension of grid: " + dimension);
+            }
+            try {
+                for (String value : parts[1].split("\\s*,\\s*")) {
+                    switch (parts[0].toLowerCase(Locale.ROOT)) {
+                    case "k":
+                        int k = Integer.parseInt(value);
+                        if (k < 2) {
+                            throw new IllegalArgumentException("k must be at least 2: " + value);
+                        }
+                        ks.add(k);
+                        break;
+                    case "suppression":
+                        suppressionLimits.add(getFraction(value));
+                        break;
+                    case "omin":
+                        oMins.add(getFraction(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown dimension of grid: " + parts[0]);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value in grid: " + dimension);
+            }
+        }
+        
+        // Defaults
+        if (ks.isEmpty()) {
+            ks.add(Anon.K);
+        }
+        if (suppressionLimits.isEmpty()) {
+            suppressionLimits.add(Anon.SUPPRESSION_LIMIT);
+        }
+        if (oMins.isEmpty()) {
+            oMins.add(Anon.O_MIN);
+        }
+        
+        // Cross product
+        List<Point> grid = new ArrayList<>();
+        for (int k : ks) {
+            for (double suppressionLimit : suppressionLimits) {
+                for (double oMin : oMins) {
+                    grid.add(new Point(k, suppressionLimit, oMin));
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the configuration of the grid selected by a specification such as
+     * "k=5,suppression=0.05". Parameters which are not specified may take any value,
+     * but exactly one configuration of the grid must match.
+     * @param spec
+     * @param grid
+     * @return
+     */
+    public static Point getSelection(String spec, List<Point> grid) {
+        
+        // Parse
+        Integer k = null;
+        Double suppressionLimit = null;
+        Double oMin = null;
+        for (String parameter : spec.split("\\s*[,;]\\s*")) {
+            String[] parts = parameter.split("\\s*=\\s*");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid parameter of selection: " + parameter);
+            }
+            try {
+                switch (parts[0].toLowerCase(Locale.ROOT)) {
+                case "k":
+                    k = Integer.parseInt(parts[1]);
+                    break;
+                case "suppression":
+                    suppressionLimit = Double.parseDouble(parts[1]);
+                    break;
+                case "omin":
+                    oMin = Double.parseDouble(parts[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter of selection: " + parts[0]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value in selection: " + parameter);
+            }
+        }
+        
+        // Match
+        Point selected = null;
+        for (Point point : grid) {
+            if ((k == null || point.k == k) && (suppressionLimit == null || point.suppressionLimit == suppressionLimit) &&
+                (oMin == null || point.oMin == oMin)) {
+                if (selected != null) {
+                    throw new IllegalArgumentException("Selection matches more than one configuration: " + spec);
+                }
+                selected = point;
+            }
+        }
+        if (selected == null) {
+            throw new IllegalArgumentException("Selection matches no configuration of the grid: " + spec);
+        }
+        return selected;
+    }
+
+    /**
+     * Evaluates all configurations
+     * @param data
+     * @param context
+     * @param grid
+     * @param threads
+     * @return outcomes in the order of the grid
+     * @throws IOException
+     */
+    public static List<Outcome> run(Data data, RunContext context, List<Point> grid, int threads) throws IOException {
+        return run(data, context, grid, null, threads);
+    }
+
+    /**
+     * Evaluates all configurations, keeping the output of the selected one
+     * @param data
+     * @param context
+     * @param grid
+     * @param selected configuration of the grid whose output is kept, may be null
+     * @param threads
+     * @return outcomes in the order of the grid
+     * @throws IOException
+     */
+    public static List<Outcome> run(Data data, RunContext context, List<Point> grid, Point selected, int threads) throws IOException {
+        
+        // Derive rules and copy the rows once
+        TransformationRules rules = Anon.createRules(data, context);
+        List<String[]> rows = new ArrayList<>();
+        Iterator<String[]> iterator = data.getHandle().iterator();
+        while (iterator.hasNext()) {
+            rows.add(iterator.next());
+        }
+        
+        // Status
+        System.out.println("Evaluating " + grid.size() + " configurations");
+        long start = System.currentTimeMillis();
+        
+        // Evaluate concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, grid.size())));
+        List<Future<Outcome>> futures = new ArrayList<>();
+        for (Point point : grid) {
+            futures.add(executor.submit(() -> evaluate(data, rules, rows, point, point == selected)));
+        }
+        executor.shutdown();
+        List<Outcome> outcomes = new ArrayList<>();
+        try {
+            for (Future<Outcome> future : futures) {
+                Outcome outcome = future.get();
+                System.out.println(outcome);
+                outcomes.add(outcome);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating configurations", e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        
+        // Status
+        System.out.println("Configurations evaluated in " + (System.currentTimeMillis() - start) + " ms");
+        context.getMetrics().set("sweep_configurations", grid.size());
+        return outcomes;
+    }
+
+    /**
+     * Returns the outcome of a configuration
+     * @param outcomes
+     * @param point
+     * @return null if the configuration has not been evaluated
+     */
+    public static Outcome getOutcome(List<Outcome> outcomes, Point point) {
+        for (Outcome outcome : outcomes) {
+            if (outcome.point == point) {
+                return outcome;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the outcomes as a table
+     * @param outcomes
+     * @param file
+     * @throws IOException
+     */
+    public static void writeTable(List<Outcome> outcomes, File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try (CSVStreamWriter writer = new CSVStreamWriter(channel, ',', IO.DEFAULT_BUFFER_SIZE)) {
+            writer.write(HEADER);
+            for (Outcome outcome : outcomes) {
+                writer.write(outcome.toRow());
+            }
+        }
+    }
+
+    /**
+     * Evaluates a single configuration. The output is released unless it is kept.
+     * @param data
+     * @param rules
+     * @param rows including the header
+     * @param point
+     * @param keep whether to keep the output
+     * @return
+     * @throws IOException
+     */
+    private static Outcome evaluate(Data data, TransformationRules rules, List<String[]> rows, Point point, boolean keep) throws IOException {
+        
+        // Prepare
+        Data copy = Data.create(rows);
+        for (String attribute : rows.get(0)) {
+            copy.getDefinition().setDataType(attribute, data.getDefinition().getDataType(attribute));
+        }
+        rules.apply(copy);
+        Outcome outcome = new Outcome(point);
+        outcome.rows = rows.size() - 1;
+        long start = System.currentTimeMillis();
+        
+        // Anonymize
+        ARXResult result = Anon.anonymize(copy, Anon.createConfiguration(point.k, point.suppressionLimit, outcome.rows, null));
+        DataHandle output = result.getOutput();
+        if (output == null) {
+            outcome.runtime = System.currentTimeMillis() - start;
+            return outcome;
+        }
+        
+        // Optimize
+        if (result.getGlobalOptimum() != null) {
+            outcome.score = String.valueOf(result.getGlobalOptimum().getHighestScore());
+        }
+        Anon.optimize(result, output, point.oMin, "", new RunContext());
+        outcome.runtime = System.currentTimeMillis() - start;
+        
+        // Evaluate the optimized output
+        Evaluator.Evaluation evaluation = Evaluator.evaluate(copy.getHandle(), output);
+        outcome.suppressed = Anon.getNumSuppressed(output);
+        outcome.loss = evaluation.getLoss();
+        outcome.classes = evaluation.getNumClasses();
+        outcome.minClassSize = evaluation.getMinClassSize();
+        outcome.avgClassSize = evaluation.getAvgClassSize();
+        outcome.maxClassSize = evaluation.getMaxClassSize();
+        if (keep) {
+            outcome.output = output;
+        } else {
+            output.release();
+        }
+        return outcome;
+    }
+
+    /**
+     * Parses a fraction
+     * @param value
+     * @return
+     */
+    private static double getFraction(String value) {
+        double result = Double.parseDouble(value);
+        if (!(result >= 0d && result <= 1d)) {
+            throw new IllegalArgumentException("Value must be between 0 and 1: " + value);
+        }
+        return result;
+    }
+}
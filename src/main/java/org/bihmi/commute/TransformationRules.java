@@ -0,0 +1,189 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.deidentifier.arx.AttributeType;
+import org.deidentifier.arx.AttributeType.MicroAggregationFunction;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataDefinition;
+
+/**
+ * Transformation rules derived from a dataset. Rules can be applied to the
+ * dataset they were derived from, to copies of it and to subsets of it.
+ * Microaggregation functions are created anew for each application, as
+ * they are stateful.
+ */
+public class TransformationRules {
+
+    /** Hierarchies, in the order in which they have been specified */
+    private final Map<String, AttributeType.Hierarchy> hierarchies = new LinkedHashMap<>();
+
+    /** Distributions for attributes aggregated by their mode */
+    private final Map<String, Map<String, Double>> modes = new HashMap<>();
+
+    /** Attributes aggregated by their arithmetic mean */
+    private final Set<String> means = new HashSet<>();
+
+    /** Maximum generalization levels */
+    private final Map<String, Integer> maximumGeneralization = new HashMap<>();
+
+    /** Seed for drawing */
+    private final long seed;
+
+    /**
+     * Creates a new instance
+     * @param seed for drawing
+     */
+    TransformationRules(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Applies the rules to the given data
+     * @param data
+     */
+    public void apply(Data data) {
+        DataDefinition definition = data.getDefinition();
+        for (Map.Entry<String, AttributeType.Hierarchy> entry : hierarchies.entrySet()) {
+            String attribute = entry.getKey();
+            definition.setAttributeType(attribute, entry.getValue());
+            if (modes.containsKey(attribute)) {
+                definition.setMicroAggregationFunction(attribute, MicroAggregationFunction.createModeWithDistributionFallback(modes.get(attribute), seed), true);
+            } else if (means.contains(attribute)) {
+                definition.setMicroAggregationFunction(attribute, MicroAggregationFunction.createArithmeticMean(), true);
+            }
+            if (maximumGeneralization.containsKey(attribute)) {
+                definition.setMaximumGeneralization(attribute, maximumGeneralization.get(attribute));
+            }
+        }
+    }
+
+    /**
+     * Restricts the search space to the given transformation
+     * @param definition
+     * @param levels generalization level of each quasi-identifier
+     */
+    public static void pin(DataDefinition definition, Map<String, Integer> levels) {
+        for (Map.Entry<String, Integer> entry : levels.entrySet()) {
+            definition.setMinimumGeneralization(entry.getKey(), entry.getValue());
+            definition.setMaximumGeneralization(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns all attributes which must not be generalized. Equivalence classes
+     * never span different values of these attributes.
+     * @return
+     */
+    public List<String> getPinnedAttributes() {
+        List<String> result = new ArrayList<>();
+        for (String attribute : hierarchies.keySet()) {
+            Integer level = maximumGeneralization.get(attribute);
+            if (level != null && level == 0) {
+                result.add(attribute);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the hierarchy of an attribute
+     * @param attribute
+     * @return
+     */
+    public AttributeType.Hierarchy getHierarchy(String attribute) {
+        return hierarchies.get(attribute);
+    }
+
+    /**
+     * Returns the maximum generalization level of an attribute
+     * @param attribute
+     * @return
+     */
+    public int getMaximumGeneralization(String attribute) {
+        Integer level = maximumGeneralization.get(attribute);
+        if (level != null) {
+            return level;
+        }
+        String[][] hierarchy = hierarchies.get(attribute).getHierarchy();
+        return hierarchy.length == 0 ? 0 : hierarchy[0].length - 1;
+    }
+
+    /**
+     * Returns the attributes for which rules are specified, in order
+     * @return
+     */
+    public List<String> getAttributes() {
+        return new ArrayList<>(hierarchies.keySet());
+    }
+
+    /**
+     * Returns the attributes aggregated by their mode, in order
+     * @return
+     */
+    public List<String> getModeAttributes() {
+        List<String> result = new ArrayList<>();
+        for (String attribute : hierarchies.keySet()) {
+            if (modes.containsKey(attribute)) {
+                result.add(attribute);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a hierarchy
+     * @param attribute
+     * @param hierarchy
+     */
+    void setHierarchy(String attribute, AttributeType.Hierarchy hierarchy) {
+        hierarchies.put(attribute, hierarchy);
+    }
+
+    /**
+     * Aggregates the attribute by its mode, falling back to drawing from the distribution
+     * @param attribute
+     * @param distribution
+     */
+    void setModeWithDistributionFallback(String attribute, Map<String, Double> distribution) {
+        modes.put(attribute, distribution);
+    }
+
+    /**
+     * Aggregates the attribute by its arithmetic mean
+     * @param attribute
+     */
+    void setArithmeticMean(String attribute) {
+        means.add(attribute);
+    }
+
+    /**
+     * Sets the maximum generalization level
+     * @param attribute
+     * @param level
+     */
+    void setMaximumGeneralization(String attribute, int level) {
+        maximumGeneralization.put(attribute, level);
+    }
+}
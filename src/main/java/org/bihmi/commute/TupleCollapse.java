@@ -0,0 +1,263 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.IntPredicate;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+import org.deidentifier.arx.DataType;
+
+/**
+ * Collapses rows with identical values before anonymization and expands the
+ * output to all rows afterwards. Numeric quasi-identifiers, including the
+ * distances, are first rounded down to the base intervals of their
+ * hierarchies, which ARX cannot distinguish anyway, so rows only need to
+ * match on these bins. All columns are quasi-identifiers, so rows with
+ * identical values always end up in the same equivalence class. ARX does
+ * not support weighted rows, so each tuple is kept at most k times: a class
+ * then contains at least k rows if and only if it contained at least k rows
+ * before, which leaves the decisions of k-anonymity unchanged. Each original
+ * row is mapped to one of the representatives of its tuple. When expanding,
+ * arithmetic means are recomputed from the exact values of all original
+ * rows, while modes are kept as computed by ARX. Rows can be collapsed
+ * while they are read from the input, so that the complete input never
+ * has to be loaded into ARX.
+ */
+public class TupleCollapse {
+
+    /** Maximal number of representatives of a tuple */
+    private final int k;
+
+    /** Quantization of the numeric quasi-identifiers to their base intervals */
+    private final Quantization bins;
+
+    /** Row of the collapsed data representing each original row */
+    private int[] representatives;
+
+    /** Number of original rows represented by each row of the collapsed data */
+    private int[] weights;
+
+    /** Number of distinct tuples */
+    private int tuples;
+
+    /**
+     * Creates a new instance
+     * @param k of k-anonymity
+     */
+    public TupleCollapse(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
+        Map<String, Double> precisions = new LinkedHashMap<>();
+        for (String attribute : NumericAggregation.ATTRIBUTES) {
+            precisions.put(attribute, Quantization.SPECS.get(attribute).getIntervalRange());
+        }
+        this.bins = new Quantization(precisions);
+    }
+
+    /**
+     * Returns a copy of the data, with numeric values rounded down to their base intervals,
+     * in which each tuple occurs at most k times. The handle of the given data is released.
+     * @param data
+     * @return
+     */
+    public Data apply(Data data) {
+        data = bins.apply(data);
+        DataHandle handle = data.getHandle();
+        DataType<?>[] types = new DataType<?>[handle.getNumColumns()];
+        for (int column = 0; column < types.length; column++) {
+            types[column] = data.getDefinition().getDataType(handle.getAttributeName(column));
+        }
+        Data result = collapse(handle.iterator(), types);
+        handle.release();
+        return result;
+    }
+
+    /**
+     * Returns data with numeric values rounded down to their base intervals, in which each
+     * tuple occurs at most k times, from rows which are read one at a time. Only the exact
+     * values of the numeric attributes, the representative of each row and the rows kept
+     * are held in memory, so the complete input is never materialized.
+     * @param rows the header followed by all rows, which may be modified
+     * @param types of the columns, in the order of the header
+     * @return
+     */
+    public Data apply(Iterator<String[]> rows, DataType<?>[] types) {
+        return collapse(bins.apply(rows), types);
+    }
+
+    /**
+     * Collapses binned rows
+     * @param rows the header followed by all rows
+     * @param types of the columns, in the order of the header
+     * @return
+     */
+    private Data collapse(Iterator<String[]> rows, DataType<?>[] types) {
+        
+        // Prepare
+        String[] header = rows.next().clone();
+        StringDictionary[] dictionaries = new StringDictionary[header.length];
+        for (int column = 0; column < header.length; column++) {
+            dictionaries[column] = new StringDictionary();
+        }
+        
+        // Collapse, remembering up to k representatives of each tuple
+        FingerprintTable table = new FingerprintTable();
+        representatives = new int[1024];
+        int[] groups = new int[k * 1024];
+        List<String[]> selected = new ArrayList<>();
+        int row = 0;
+        while (rows.hasNext()) {
+            String[] cells = rows.next();
+            long h = FingerprintTable.SEED_HIGH;
+            long l = FingerprintTable.SEED_LOW;
+            for (int column = 0; column < header.length; column++) {
+                int code = dictionaries[column].add(cells[column]);
+                h = FingerprintTable.addHigh(h, code);
+                l = FingerprintTable.addLow(l, code);
+            }
+            int tuple = table.add(h, l);
+            int occurrence = table.getCount(tuple) - 1;
+            if ((tuple + 1) * k > groups.length) {
+                groups = Arrays.copyOf(groups, groups.length * 2);
+            }
+            if (occurrence < k) {
+                groups[tuple * k + occurrence] = selected.size();
+                selected.add(cells.clone());
+            }
+            if (row == representatives.length) {
+                representatives = Arrays.copyOf(representatives, row * 2);
+            }
+            representatives[row++] = groups[tuple * k + occurrence % k];
+        }
+        representatives = Arrays.copyOf(representatives, row);
+        tuples = table.size();
+        
+        // Weights
+        weights = new int[selected.size()];
+        for (int representative : representatives) {
+            weights[representative]++;
+        }
+        
+        // Create
+        Data result = Data.create(new Iterator<String[]>() {
+            
+            /** Row number of the next row, -1 for the header */
+            private int row = -1;
+
+            @Override
+            public boolean hasNext() {
+                return row < selected.size();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (row < 0) {
+                    row++;
+                    return header;
+                }
+                String[] cells = selected.get(row);
+                selected.set(row++, null);
+                return cells;
+            }
+        });
+        result.getHandle();
+        for (int column = 0; column < header.length; column++) {
+            result.getDefinition().setDataType(header[column], types[column]);
+        }
+        
+        // Status
+        System.out.println("Collapsed " + row + " rows with " + tuples + " distinct tuples into " + weights.length + " rows");
+        return result;
+    }
+
+    /**
+     * Returns the header and all original rows of the output, in input order, with arithmetic
+     * means recomputed from the exact values of the original rows. Rows which share all values
+     * of the output are considered one class. Each row is a copy, so rows expanded from the
+     * same representative can be modified independently.
+     * @param output of the collapsed data
+     * @return
+     */
+    public Iterable<String[]> expand(DataHandle output) {
+        
+        // Rows of the output
+        Iterator<String[]> iterator = output.iterator();
+        String[] header = iterator.next();
+        String[][] rows = new String[weights.length][];
+        for (int row = 0; iterator.hasNext(); row++) {
+            rows[row] = iterator.next().clone();
+        }
+        
+        // Expand
+        return () -> bins.restore(() -> new Iterator<String[]>() {
+            
+            /** Row number of the next row, -1 for the header */
+            private int row = -1;
+
+            @Override
+            public boolean hasNext() {
+                return row < representatives.length;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String[] result = row < 0 ? header : rows[representatives[row]].clone();
+                row++;
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Returns which original rows have been suppressed
+     * @param outliers whether a row of the collapsed output has been suppressed
+     * @return
+     */
+    public IntPredicate expand(IntPredicate outliers) {
+        return row -> outliers.test(representatives[row]);
+    }
+
+    /**
+     * Adds the statistics to the metrics
+     * @param metrics
+     */
+    public void record(Metrics metrics) {
+        metrics.set("collapse_rows", representatives.length);
+        metrics.set("collapse_tuples", tuples);
+        metrics.set("collapse_rows_collapsed", weights.length);
+    }
+
+    @Override
+    public String toString() {
+        return "collapse(k=" + k + ")";
+    }
+}
@@ -0,0 +1,584 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deidentifier.arx.AttributeType;
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+import org.deidentifier.arx.DataType;
+
+/**
+ * Validates every row of the input against the data types of the columns
+ * and the domains of the hierarchies before anonymization. Rows are checked
+ * concurrently in ranges. Depending on the policy, the run fails, numeric
+ * values outside of their half-open domain are clamped to the nearest value
+ * within it, or violating rows are dropped or written to a quarantine file.
+ * Values which cannot be clamped, i.e. invalid numbers and unknown
+ * categories, are dropped when clamping.
+ */
+public class Validation {
+
+    /** Exit code of a run which fails because of violations */
+    public static final int EXIT_CODE = 3;
+
+    /**
+     * Thrown if the input violates the domains and the policy is to fail
+     */
+    public static class ViolationException extends IOException {
+
+        /** SVUID */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates a new instance
+         * @param message
+         */
+        public ViolationException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * What to do with rows violating the domains
+     */
+    public static enum Policy {
+
+        /** Fail the run */
+        FAIL,
+
+        /** Clamp values outside of the domain, drop rows with other violations */
+        CLAMP,
+
+        /** Drop violating rows */
+        DROP,
+
+        /** Write violating rows to a file and drop them */
+        QUARANTINE;
+
+        /**
+         * Returns the policy with the given name
+         * @param name
+         * @return
+         */
+        public static Policy forName(String name) {
+            for (Policy policy : values()) {
+                if (policy.name().equalsIgnoreCase(name)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown validation policy: " + name);
+        }
+    }
+
+    /** Minimal number of rows per thread */
+    private static final int ROWS_PER_THREAD = 1 << 16;
+
+    /** Maximal number of examples in the report */
+    private static final int MAX_EXAMPLES = 10;
+
+    /** Kind of violation */
+    private static final int INVALID = 0;
+
+    /** Kind of violation */
+    private static final int OUT_OF_RANGE = 1;
+
+    /** Kind of violation */
+    private static final int UNKNOWN = 2;
+
+    /** Names of the kinds of violations */
+    private static final String[] KINDS = { "invalid", "out_of_range", "unknown" };
+
+    /** Status of a row */
+    private static final byte ROW_VALID = 0;
+
+    /** Status of a row */
+    private static final byte ROW_CLAMPABLE = 1;
+
+    /** Status of a row */
+    private static final byte ROW_INVALID = 2;
+
+    /** Domains of numeric columns */
+    private static final Map<String, IntervalHierarchySpec> RANGES = new LinkedHashMap<>();
+    static {
+        RANGES.put(IO.FIELD_DISTANCE_TO_SCHOOL, Anon.DISTANCE);
+        RANGES.put(IO.FIELD_DISTANCE_FROM_SCHOOL, Anon.DISTANCE);
+        RANGES.put(IO.FIELD_MVPA_SQRT, Anon.MVPA);
+        RANGES.put(IO.FIELD_VO2_MAX, Anon.VO2_MAX);
+        RANGES.put(IO.FIELD_AGE, Anon.AGE);
+    }
+
+    /** Domains of categorical columns */
+    private static final Map<String, Set<String>> CATEGORIES = new LinkedHashMap<>();
+    static {
+        CATEGORIES.put(IO.FIELD_COMMUTE_FROM_SCHOOL, getDomain(Anon.getCommuteHierarchy()));
+        CATEGORIES.put(IO.FIELD_COMMUTE_TO_SCHOOL, getDomain(Anon.getCommuteHierarchy()));
+        CATEGORIES.put(IO.FIELD_GENDER, getDomain(Anon.getGenderHierarchy()));
+    }
+
+    /**
+     * Violations found by a validation
+     */
+    public static class Report {
+
+        /** Columns */
+        private final String[] columns;
+
+        /** Violations per column and kind */
+        private final long[][] violations;
+
+        /** Examples, in the order of rows */
+        private final List<String> examples = new ArrayList<>();
+
+        /** Rows checked */
+        private long rows;
+
+        /** Rows with at least one violation */
+        private long rowsViolating;
+
+        /** Rows with clamped values */
+        private long rowsClamped;
+
+        /** Rows dropped */
+        private long rowsDropped;
+
+        /** Rows written to the quarantine file */
+        private long rowsQuarantined;
+
+        /**
+         * Creates a new instance
+         * @param columns
+         */
+        private Report(String[] columns) {
+            this.columns = columns;
+            this.violations = new long[columns.length][KINDS.length];
+        }
+
+        /**
+         * Returns the number of rows with at least one violation
+         * @return
+         */
+        public long getRowsViolating() {
+            return rowsViolating;
+        }
+
+        /**
+         * Returns the number of violations of a column, or of all columns if the column is null
+         * @param column
+         * @return
+         */
+        public long getViolations(String column) {
+            long result = 0;
+            for (int index = 0; index < columns.length; index++) {
+                if (column == null || columns[index].equals(column)) {
+                    for (long count : violations[index]) {
+                        result += count;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Adds the report to the metrics
+         * @param metrics
+         */
+        public void record(Metrics metrics) {
+            metrics.add("validation_rows", rows);
+            metrics.add("validation_rows_violating", rowsViolating);
+            metrics.add("validation_rows_clamped", rowsClamped);
+            metrics.add("validation_rows_dropped", rowsDropped);
+            metrics.add("validation_rows_quarantined", rowsQuarantined);
+            for (int column = 0; column < columns.length; column++) {
+                for (int kind = 0; kind < KINDS.length; kind++) {
+                    if (violations[column][kind] > 0) {
+                        metrics.add("validation_" + columns[column].toLowerCase(Locale.ROOT) + "_" + KINDS[kind], violations[column][kind]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("Rows validated: ").append(rows).append(", violating: ").append(rowsViolating);
+            builder.append(", clamped: ").append(rowsClamped).append(", dropped: ").append(rowsDropped).append(", quarantined: ").append(rowsQuarantined);
+            for (int column = 0; column < columns.length; column++) {
+                for (int kind = 0; kind < KINDS.length; kind++) {
+                    if (violations[column][kind] > 0) {
+                        builder.append("\n").append(columns[column]).append(": ").append(violations[column][kind]).append(" ").append(KINDS[kind].replace('_', ' '));
+                    }
+                }
+            }
+            for (String example : examples) {
+                builder.append("\n").append(example);
+            }
+            return builder.toString();
+        }
+
+        /**
+         * Merges the report of the subsequent range of rows
+         * @param other
+         */
+        private void merge(Report other) {
+            rows += other.rows;
+            rowsViolating += other.rowsViolating;
+            rowsClamped += other.rowsClamped;
+            rowsDropped += other.rowsDropped;
+            rowsQuarantined += other.rowsQuarantined;
+            for (int column = 0; column < columns.length; column++) {
+                for (int kind = 0; kind < KINDS.length; kind++) {
+                    violations[column][kind] += other.violations[column][kind];
+                }
+            }
+            for (String example : other.examples) {
+                if (examples.size() < MAX_EXAMPLES) {
+                    examples.add(example);
+                }
+            }
+        }
+    }
+
+    /**
+     * Repaired rows of a range of rows
+     */
+    private static class Repair {
+
+        /** Rows kept */
+        private final List<String[]> kept = new ArrayList<>();
+
+        /** Rows quarantined, with their row number and violations */
+        private final List<String[]> quarantined = new ArrayList<>();
+    }
+
+    /**
+     * Task on a range of rows
+     */
+    private static interface Task<T> {
+
+        /**
+         * Runs the task
+         * @param from
+         * @param to
+         * @return
+         */
+        T run(int from, int to);
+    }
+
+    /** Policy */
+    private final Policy policy;
+
+    /** Quarantine file */
+    private final File quarantine;
+
+    /** Report of the last validation */
+    private Report report;
+
+    /**
+     * Creates a new instance
+     * @param policy
+     * @param quarantine file, required by the quarantine policy
+     */
+    public Validation(Policy policy, File quarantine) {
+        if (policy == Policy.QUARANTINE && quarantine == null) {
+            throw new IllegalArgumentException("The quarantine policy requires a file");
+        }
+        this.policy = policy;
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Validates the data. Returns the data if all rows are valid and a repaired copy otherwise,
+     * in which case the handle of the given data is released.
+     * @param data
+     * @param threads
+     * @return
+     * @throws IOException if a column is missing
+     * @throws ViolationException if the data is invalid and the policy is to fail
+     */
+    public Data apply(Data data, int threads) throws IOException {
+        
+        // Prepare
+        DataHandle handle = data.getHandle();
+        String[] header = new String[handle.getNumColumns()];
+        for (int column = 0; column < header.length; column++) {
+            header[column] = handle.getAttributeName(column);
+        }
+        List<String> columns = Arrays.asList(header);
+        for (String column : IO.COLUMNS) {
+            if (!columns.contains(column)) {
+                throw new IOException("Missing column: " + column);
+            }
+        }
+        DataType<?>[] types = new DataType<?>[header.length];
+        for (int column = 0; column < header.length; column++) {
+            types[column] = data.getDefinition().getDataType(header[column]);
+        }
+        
+        // Validate
+        byte[] status = new byte[handle.getNumRows()];
+        report = new Report(header);
+        for (Report partial : run(status.length, threads, (from, to) -> validate(handle, header, types, status, from, to))) {
+            report.merge(partial);
+        }
+        if (report.rowsViolating == 0) {
+            return data;
+        }
+        if (policy == Policy.FAIL) {
+            throw new ViolationException("Input violates the domains of the hierarchies in " + report.rowsViolating + " rows");
+        }
+        
+        // Repair
+        List<String[]> rows = new ArrayList<>(status.length + 1);
+        rows.add(header);
+        List<String[]> quarantined = new ArrayList<>();
+        for (Repair repair : run(status.length, threads, (from, to) -> repair(handle, header, types, status, from, to))) {
+            rows.addAll(repair.kept);
+            quarantined.addAll(repair.quarantined);
+        }
+        for (int row = 0; row < status.length; row++) {
+            if (status[row] == ROW_CLAMPABLE && policy == Policy.CLAMP) {
+                report.rowsClamped++;
+            } else if (status[row] != ROW_VALID && policy == Policy.QUARANTINE) {
+                report.rowsQuarantined++;
+            } else if (status[row] != ROW_VALID) {
+                report.rowsDropped++;
+            }
+        }
+        
+        // Quarantine
+        if (policy == Policy.QUARANTINE) {
+            String[] quarantineHeader = new String[header.length + 2];
+            quarantineHeader[0] = "row";
+            System.arraycopy(header, 0, quarantineHeader, 1, header.length);
+            quarantineHeader[header.length + 1] = "violations";
+            try (RowWriter writer = OutputFormat.CSV.open(quarantine, IO.DEFAULT_BUFFER_SIZE)) {
+                writer.write(quarantineHeader);
+                for (String[] row : quarantined) {
+                    writer.write(row);
+                }
+            }
+        }
+        
+        // Create
+        Data result = Data.create(rows);
+        for (int column = 0; column < header.length; column++) {
+            result.getDefinition().setDataType(header[column], types[column]);
+        }
+        handle.release();
+        return result;
+    }
+
+    /**
+     * Returns the report of the last validation
+     * @return
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    @Override
+    public String toString() {
+        return "validation=" + policy.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Validates a range of rows
+     * @param handle
+     * @param header
+     * @param types
+     * @param status of each row, to be set
+     * @param from
+     * @param to
+     * @return
+     */
+    private static Report validate(DataHandle handle, String[] header, DataType<?>[] types, byte[] status, int from, int to) {
+        Report result = new Report(header);
+        result.rows = to - from;
+        for (int row = from; row < to; row++) {
+            byte rowStatus = ROW_VALID;
+            for (int column = 0; column < header.length; column++) {
+                String value = handle.getValue(row, column);
+                int kind = check(header[column], types[column], value);
+                if (kind < 0) {
+                    continue;
+                }
+                result.violations[column][kind]++;
+                rowStatus = kind == OUT_OF_RANGE && rowStatus != ROW_INVALID ? ROW_CLAMPABLE : ROW_INVALID;
+                if (result.examples.size() < MAX_EXAMPLES) {
+                    result.examples.add("Row " + (row + 1) + ", " + header[column] + ": " + KINDS[kind].replace('_', ' ') + " '" + value + "'");
+                }
+            }
+            status[row] = rowStatus;
+            if (rowStatus != ROW_VALID) {
+                result.rowsViolating++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Repairs a range of rows
+     * @param handle
+     * @param header
+     * @param types
+     * @param status of each row
+     * @param from
+     * @param to
+     * @return
+     */
+    private Repair repair(DataHandle handle, String[] header, DataType<?>[] types, byte[] status, int from, int to) {
+        Repair result = new Repair();
+        for (int row = from; row < to; row++) {
+            
+            // Read
+            String[] values = new String[header.length];
+            for (int column = 0; column < header.length; column++) {
+                values[column] = handle.getValue(row, column);
+            }
+            
+            // Keep, clamp, drop or quarantine
+            if (status[row] == ROW_VALID) {
+                result.kept.add(values);
+            } else if (status[row] == ROW_CLAMPABLE && policy == Policy.CLAMP) {
+                for (int column = 0; column < header.length; column++) {
+                    IntervalHierarchySpec range = RANGES.get(header[column]);
+                    if (range != null && check(header[column], types[column], values[column]) == OUT_OF_RANGE) {
+                        double value = range.clamp(Double.parseDouble(values[column]), types[column] == DataType.INTEGER);
+                        values[column] = value == Math.rint(value) ? Metrics.format(value) : String.valueOf(value);
+                    }
+                }
+                result.kept.add(values);
+            } else if (policy == Policy.QUARANTINE) {
+                StringBuilder violations = new StringBuilder();
+                for (int column = 0; column < header.length; column++) {
+                    int kind = check(header[column], types[column], values[column]);
+                    if (kind >= 0) {
+                        violations.append(violations.length() == 0 ? "" : "; ").append(header[column]).append(": ").append(KINDS[kind].replace('_', ' '));
+                    }
+                }
+                String[] quarantined = new String[header.length + 2];
+                quarantined[0] = String.valueOf(row + 1);
+                System.arraycopy(values, 0, quarantined, 1, header.length);
+                quarantined[header.length + 1] = violations.toString();
+                result.quarantined.add(quarantined);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks a value
+     * @param column
+     * @param type
+     * @param value
+     * @return the kind of violation, -1 if the value is valid
+     */
+    private static int check(String column, DataType<?> type, String value) {
+        Set<String> categories = CATEGORIES.get(column);
+        if (categories != null) {
+            return categories.contains(value) ? -1 : UNKNOWN;
+        }
+        IntervalHierarchySpec range = RANGES.get(column);
+        if (range == null) {
+            return -1;
+        }
+        if (value == null || (type != null && type != DataType.STRING && !type.isValid(value))) {
+            return INVALID;
+        }
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+        if (Double.isNaN(parsed)) {
+            return INVALID;
+        }
+        return range.contains(parsed) ? -1 : OUT_OF_RANGE;
+    }
+
+    /**
+     * Returns the values of the lowest level of a hierarchy
+     * @param hierarchy
+     * @return
+     */
+    private static Set<String> getDomain(AttributeType.Hierarchy hierarchy) {
+        Set<String> result = new HashSet<>();
+        for (String[] row : hierarchy.getHierarchy()) {
+            result.add(row[0]);
+        }
+        return result;
+    }
+
+    /**
+     * Runs a task on ranges of rows concurrently and returns the results in the order of the ranges
+     * @param rows
+     * @param threads
+     * @param task
+     * @return
+     * @throws IOException
+     */
+    private static <T> List<T> run(int rows, int threads, Task<T> task) throws IOException {
+        
+        // Sequential
+        List<T> result = new ArrayList<>();
+        int tasks = Math.max(1, Math.min(threads, rows / ROWS_PER_THREAD));
+        if (tasks == 1) {
+            result.add(task.run(0, rows));
+            return result;
+        }
+        
+        // Parallel
+        ExecutorService executor = Executors.newFixedThreadPool(tasks);
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int index = 0; index < tasks; index++) {
+                int from = (int) ((long) rows * index / tasks);
+                int to = (int) ((long) rows * (index + 1) / tasks);
+                futures.add(executor.submit(() -> task.run(from, to)));
+            }
+            for (Future<T> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
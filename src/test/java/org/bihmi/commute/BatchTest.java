@@ -0,0 +1,130 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the batch mode
+ */
+public class BatchTest {
+
+    /** Directory of the test */
+    private File directory;
+
+    /** Directory of the outputs */
+    private File outputs;
+
+    /**
+     * Creates the directories
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = TestFixtures.createDirectory("batch");
+        outputs = new File(directory, "out");
+        outputs.mkdir();
+    }
+
+    /**
+     * Deletes the directories
+     */
+    @After
+    public void tearDown() {
+        TestFixtures.delete(directory);
+    }
+
+    /**
+     * A directory contributes its CSV files in the order of their names
+     */
+    @Test
+    public void testCollectsCsvFilesOfDirectory() throws IOException {
+        File inputs = new File(directory, "in");
+        inputs.mkdir();
+        TestFixtures.write(inputs, "b.csv", "x");
+        TestFixtures.write(inputs, "a.CSV", "x");
+        TestFixtures.write(inputs, "notes.txt", "x");
+        List<Batch.Job> jobs = Batch.getJobs(inputs, outputs);
+        assertEquals(2, jobs.size());
+        assertEquals(new File(inputs, "a.CSV"), jobs.get(0).getInput());
+        assertEquals(new File(outputs, "a.CSV"), jobs.get(0).getOutput());
+        assertEquals(new File(inputs, "b.csv"), jobs.get(1).getInput());
+    }
+
+    /**
+     * Manifests skip comments and empty lines and resolve relative paths against their directory
+     */
+    @Test
+    public void testReadsManifest() throws IOException {
+        File manifest = TestFixtures.write(directory, "manifest.txt", "# schools", "", "school1.csv", " school2.csv , result/school2.csv ",
+                                           "/data/school3.csv");
+        List<Batch.Job> jobs = Batch.getJobs(manifest, outputs);
+        assertEquals(3, jobs.size());
+        assertEquals(new File(directory.getAbsoluteFile(), "school1.csv"), jobs.get(0).getInput());
+        assertEquals(new File(outputs, "school1.csv"), jobs.get(0).getOutput());
+        assertEquals(new File(directory.getAbsoluteFile(), "result/school2.csv"), jobs.get(1).getOutput());
+        assertEquals(new File("/data/school3.csv"), jobs.get(2).getInput());
+    }
+
+    /**
+     * Entries must not write to the same output, also if one of them is implicit
+     */
+    @Test(expected = IOException.class)
+    public void testRejectsDuplicateOutputs() throws IOException {
+        File manifest = TestFixtures.write(directory, "manifest.txt", "a/school.csv", "b/school.csv");
+        Batch.getJobs(manifest, outputs);
+    }
+
+    /**
+     * Explicit outputs which resolve to the same file are rejected
+     */
+    @Test(expected = IOException.class)
+    public void testRejectsDuplicateExplicitOutputs() throws IOException {
+        File manifest = TestFixtures.write(directory, "manifest.txt", "a.csv, out/result.csv", "b.csv, out/../out/result.csv");
+        Batch.getJobs(manifest, outputs);
+    }
+
+    /**
+     * Failing files are reported without affecting the other files
+     */
+    @Test
+    public void testIsolatesFailedFiles() throws IOException {
+        File input = new File("data/CommData.csv");
+        List<Batch.Job> jobs = Arrays.asList(new Batch.Job(new File(directory, "missing.csv"), new File(outputs, "missing.csv")),
+                                             new Batch.Job(input, new File(outputs, "CommData.csv")),
+                                             new Batch.Job(input, input));
+        Metrics metrics = new Metrics();
+        List<Batch.Outcome> outcomes = Batch.run(jobs, 2, new HierarchyCache(), metrics, IO.DEFAULT_BUFFER_SIZE, 20000L);
+        assertFalse(outcomes.get(0).isSuccessful());
+        assertTrue(outcomes.get(1).isSuccessful());
+        assertFalse(outcomes.get(2).isSuccessful());
+        assertTrue(new File(outputs, "CommData.csv").isFile());
+        assertFalse(new File(outputs, "missing.csv").exists());
+        assertEquals(1d, metrics.getCounter("files_succeeded"), 0d);
+        assertEquals(2d, metrics.getCounter("files_failed"), 0d);
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.deidentifier.arx.DataHandle;
+import org.junit.Test;
+
+/**
+ * Tests that the parallel loader reads the same cells with the same data
+ * types as the CSV import of ARX, and that the same rows are streamed
+ */
+public class CSVLoaderTest {
+
+    /** Header of the input */
+    private static final String HEADER = "CommHome,CommToSch,DistFromHome,DistFromSchool,MVPAsqrt,VO2max,age,gender";
+
+    /** Threads of the parallel loader */
+    private static final int THREADS = 4;
+
+    /**
+     * The data of the study
+     */
+    @Test
+    public void testLoadsStudyData() throws IOException {
+        assertEquivalent(new File("data/CommData.csv"));
+    }
+
+    /**
+     * Quoted values, including delimiters and escaped quotes
+     */
+    @Test
+    public void testLoadsQuotedValues() throws IOException {
+        File directory = TestFixtures.createDirectory("loader");
+        try {
+            assertEquivalent(TestFixtures.write(directory, "quoted.csv", HEADER,
+                                                "\"walk\",car,127,1015,32.83,51.81,14.37,male",
+                                                "\"walk, wheels\",\"car\",\"851\",975,32.83,45.6,12.68,\"fe\"\"male\"",
+                                                "\"\",public,300,400,20.5,40.25,10.5,female"));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Lines ending with CRLF, including the header and the last line
+     */
+    @Test
+    public void testLoadsCrlfLineEndings() throws IOException {
+        File directory = TestFixtures.createDirectory("loader");
+        try {
+            File file = new File(directory, "crlf.csv");
+            Files.write(file.toPath(), (HEADER + "\r\nwalk,car,127,1015,32.83,51.81,14.37,male\r\n" +
+                                        "public,walk,851,975,32.83,45.6,12.68,female\r\n").getBytes(StandardCharsets.UTF_8));
+            assertEquivalent(file);
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * The line break of a CRLF line straddles the targeted end of the first
+     * chunk: the CR is its last byte and the LF the first byte after it
+     */
+    @Test
+    public void testLoadsCrlfAtChunkBoundary() throws IOException {
+        File directory = TestFixtures.createDirectory("loader");
+        try {
+            File file = new File(directory, "boundary.csv");
+            byte[] header = (HEADER + ",note\r\n").getBytes(StandardCharsets.UTF_8);
+            long boundary = header.length + CSVLoader.CHUNK_SIZE;
+            long position = 0;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+                out.write(header);
+                position += header.length;
+                int row = 0;
+                while (position + 256 < boundary) {
+                    position += write(out, row++, "");
+                }
+                byte[] line = getLine(row, "");
+                StringBuilder padding = new StringBuilder();
+                for (long length = line.length; length < boundary + 1 - position; length++) {
+                    padding.append('x');
+                }
+                position += write(out, row++, padding.toString());
+                assertEquals(boundary + 1, position);
+                for (int i = 0; i < 10; i++) {
+                    write(out, row++, "");
+                }
+            }
+            byte[] bytes = new byte[2];
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.seek(boundary - 1);
+                in.readFully(bytes);
+            }
+            assertEquals('\r', bytes[0]);
+            assertEquals('\n', bytes[1]);
+            assertEquivalent(file);
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Blank lines between rows and at the end
+     */
+    @Test
+    public void testLoadsBlankLines() throws IOException {
+        File directory = TestFixtures.createDirectory("loader");
+        try {
+            assertEquivalent(TestFixtures.write(directory, "blank.csv", HEADER,
+                                                "walk,car,127,1015,32.83,51.81,14.37,male",
+                                                "",
+                                                "public,walk,851,975,32.83,45.6,12.68,female",
+                                                "",
+                                                ""));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Empty cells of numeric columns are accepted or rejected by both loaders
+     */
+    @Test
+    public void testLoadsEmptyNumericCells() throws IOException {
+        File directory = TestFixtures.createDirectory("loader");
+        try {
+            assertEquivalent(TestFixtures.write(directory, "empty.csv", HEADER,
+                                                "walk,car,,1015,32.83,51.81,14.37,male",
+                                                "public,walk,851,975,,45.6,12.68,female"));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Columns which are not selected, in between and after the selected ones
+     */
+    @Test
+    public void testLoadsExtraColumns() throws IOException {
+        File directory = TestFixtures.createDirectory("loader");
+        try {
+            assertEquivalent(TestFixtures.write(directory, "extra.csv",
+                                                "id,gender,CommHome,CommToSch,site,DistFromHome,DistFromSchool,MVPAsqrt,VO2max,age,note",
+                                                "1,male,walk,car,a,127,1015,32.83,51.81,14.37,first",
+                                                "2,female,public,walk,b,851,975,32.83,45.6,12.68,"));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Asserts that both loaders and the streamed rows reject the file, or that
+     * they read the same number of rows, the same cells and the same data types
+     * @param file
+     * @throws IOException
+     */
+    private static void assertEquivalent(File file) throws IOException {
+        DataHandle expected = null;
+        DataHandle actual = null;
+        List<String[]> streamed = null;
+        Exception expectedError = null;
+        Exception actualError = null;
+        Exception streamedError = null;
+        try {
+            expected = IO.loadData(file).getHandle();
+        } catch (Exception e) {
+            expectedError = e;
+        }
+        try {
+            actual = IO.loadData(file, THREADS).getHandle();
+        } catch (Exception e) {
+            actualError = e;
+        }
+        try (CSVLoader.Rows rows = new CSVLoader.Rows(file, IO.COLUMNS, IO.TYPES, THREADS)) {
+            streamed = TestFixtures.getRows(rows);
+        } catch (Exception e) {
+            streamedError = e;
+        }
+        if (expectedError != null || actualError != null || streamedError != null) {
+            assertTrue("ARX: " + expectedError + ", parallel loader: " + actualError + ", streamed: " + streamedError,
+                       expectedError != null && actualError != null && streamedError != null);
+            return;
+        }
+        List<String[]> rows = TestFixtures.getRows(expected);
+        assertEquals(rows.size(), streamed.size());
+        for (int row = 0; row < rows.size(); row++) {
+            assertArrayEquals("Streamed row " + row, rows.get(row), streamed.get(row));
+        }
+        assertEquals(expected.getNumRows(), actual.getNumRows());
+        assertEquals(expected.getNumColumns(), actual.getNumColumns());
+        for (int column = 0; column < expected.getNumColumns(); column++) {
+            String attribute = expected.getAttributeName(column);
+            assertEquals(attribute, actual.getAttributeName(column));
+            assertEquals(attribute, expected.getDataType(attribute), actual.getDataType(attribute));
+        }
+        for (int row = 0; row < expected.getNumRows(); row++) {
+            for (int column = 0; column < expected.getNumColumns(); column++) {
+                assertEquals("Row " + row + ", column " + column, expected.getValue(row, column), actual.getValue(row, column));
+            }
+        }
+    }
+
+    /**
+     * Writes a row ending with CRLF
+     * @param out
+     * @param row
+     * @param note value of the column which is not selected
+     * @return number of bytes
+     * @throws IOException
+     */
+    private static int write(OutputStream out, int row, String note) throws IOException {
+        byte[] line = getLine(row, note);
+        out.write(line);
+        return line.length;
+    }
+
+    /**
+     * Returns a row ending with CRLF
+     * @param row
+     * @param note value of the column which is not selected
+     * @return
+     */
+    private static byte[] getLine(int row, String note) {
+        String line = (row % 3 == 0 ? "walk" : "car") + "," + (row % 2 == 0 ? "public" : "wheels") + "," + (50 + row % 40000) + "," +
+                      (100 + row % 30000) + "," + (row % 120) / 2d + "," + (25 + row % 35) + ".5," + (8 + row % 8) + ".25," +
+                      (row % 2 == 0 ? "male" : "female") + "," + note + "\r\n";
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+}
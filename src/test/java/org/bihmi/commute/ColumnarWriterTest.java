@@ -0,0 +1,185 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests that rows written by ColumnarWriter are read back by ColumnarReader
+ */
+public class ColumnarWriterTest {
+
+    /** Header */
+    private static final String[] HEADER = { "mode", "distance", "age" };
+
+    /**
+     * Numeric columns are read back as doubles, missing numbers as NaN and all
+     * other columns as they were written
+     */
+    @Test
+    public void testReadsRowsBack() throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        rows.add(new String[] { "walk", "127", "9.25" });
+        rows.add(new String[] { "caf\u00e9, \"quoted\"", "", "14.37" });
+        rows.add(new String[] { "", "851", "" });
+        rows.add(new String[] { "walk", "-0.5", "1e3" });
+        try (ColumnarReader reader = read(write(rows, IO.MIN_BUFFER_SIZE), IO.MIN_BUFFER_SIZE)) {
+            assertArrayEquals(HEADER, reader.getHeader());
+            for (String[] row : rows) {
+                assertTrue(reader.next());
+                assertFalse(reader.isNumeric(0));
+                assertTrue(reader.isNumeric(1));
+                assertTrue(reader.isNumeric(2));
+                assertEquals(row[0], reader.getValue(0));
+                for (int column = 1; column < HEADER.length; column++) {
+                    double expected = row[column].isEmpty() ? Double.NaN : Double.parseDouble(row[column]);
+                    assertEquals(expected, reader.getDouble(column), 0d);
+                }
+            }
+            assertFalse(reader.next());
+            assertFalse(reader.next());
+        }
+    }
+
+    /**
+     * Numeric columns with values which are not numbers, e.g. suppressed or
+     * generalized values, are stored as a dictionary within their batch only
+     */
+    @Test
+    public void testReadsMixedBatches() throws IOException {
+        int size = (1 << 16) + 10;
+        List<String[]> rows = new ArrayList<>();
+        for (int row = 0; row < size; row++) {
+            rows.add(new String[] { row % 2 == 0 ? "walk" : "car", String.valueOf(row), row == 3 ? "*" : "9.5" });
+        }
+        try (ColumnarReader reader = read(write(rows, 4096), 4096)) {
+            for (int row = 0; row < size; row++) {
+                assertTrue(reader.next());
+                assertEquals(row < 1 << 16, !reader.isNumeric(2));
+                if (row < 1 << 16) {
+                    assertArrayEquals(new String[] { rows.get(row)[0], String.valueOf((double) row), rows.get(row)[2] }, reader.getRow());
+                } else {
+                    assertEquals(9.5d, reader.getDouble(2), 0d);
+                    assertEquals(row, reader.getDouble(1), 0d);
+                }
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    /**
+     * A file with a header only has no rows
+     */
+    @Test
+    public void testReadsEmptyFile() throws IOException {
+        try (ColumnarReader reader = read(write(new ArrayList<String[]>(), 64), 64)) {
+            assertArrayEquals(HEADER, reader.getHeader());
+            assertFalse(reader.next());
+        }
+    }
+
+    /**
+     * Files which are not complete are rejected
+     */
+    @Test(expected = IOException.class)
+    public void testRejectsTruncatedFile() throws IOException {
+        byte[] bytes = write(Arrays.asList(new String[][] { { "walk", "127", "9.25" } }), 64);
+        try (ColumnarReader reader = read(Arrays.copyOf(bytes, bytes.length - 4), 64)) {
+            while (reader.next()) {
+                // Read all rows
+            }
+        }
+    }
+
+    /**
+     * Columnar output compressed with gzip is read back through GZIPInputStream
+     */
+    @Test
+    public void testReadsCompressedRowsBack() throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        for (int row = 0; row < 100000; row++) {
+            rows.add(new String[] { "mode" + row % 7, String.valueOf(row * 3), String.valueOf(row % 16) });
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (RowWriter writer = new ColumnarWriter(new GzipChannel(Channels.newChannel(compressed), 2), numeric(), 1 << 16)) {
+            writer.write(HEADER);
+            for (String[] row : rows) {
+                writer.write(row);
+            }
+        }
+        try (ColumnarReader reader = new ColumnarReader(Channels.newChannel(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))), 1 << 16)) {
+            for (String[] row : rows) {
+                assertTrue(reader.next());
+                assertEquals(row[0], reader.getValue(0));
+                assertEquals(Double.parseDouble(row[1]), reader.getDouble(1), 0d);
+                assertEquals(Double.parseDouble(row[2]), reader.getDouble(2), 0d);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    /**
+     * Writes the header and the rows
+     * @param rows
+     * @param bufferSize
+     * @return
+     * @throws IOException
+     */
+    private static byte[] write(List<String[]> rows, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (RowWriter writer = new ColumnarWriter(Channels.newChannel(out), numeric(), bufferSize)) {
+            writer.write(HEADER);
+            for (String[] row : rows) {
+                writer.write(row);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Opens a reader
+     * @param bytes
+     * @param bufferSize
+     * @return
+     * @throws IOException
+     */
+    private static ColumnarReader read(byte[] bytes, int bufferSize) throws IOException {
+        return new ColumnarReader(Channels.newChannel(new ByteArrayInputStream(bytes)), bufferSize);
+    }
+
+    /**
+     * Returns the columns declared numeric
+     * @return
+     */
+    private static HashSet<String> numeric() {
+        return new HashSet<>(Arrays.asList("distance", "age"));
+    }
+}
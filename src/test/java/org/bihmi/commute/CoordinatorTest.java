@@ -0,0 +1,226 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the sharded execution. Workers are simulated by a process which
+ * copies its input and fails or hangs depending on the key of the shard.
+ */
+public class CoordinatorTest {
+
+    /**
+     * Simulated worker, which copies its input to its output. Shards with the key
+     * "broken" always fail, "flaky" fails in its first attempt, "invalid" fails
+     * validation and the first attempt of "slow" does not finish in time.
+     */
+    public static class Worker {
+
+        /**
+         * Main entry point
+         * @param args options of Main
+         * @throws Exception
+         */
+        public static void main(String[] args) throws Exception {
+            List<String> options = Arrays.asList(args);
+            File input = new File(options.get(options.indexOf("-i") + 1));
+            File output = new File(options.get(options.indexOf("-o") + 1));
+            File metrics = new File(options.get(options.indexOf("--metrics-json") + 1));
+            List<String> lines = Files.readAllLines(input.toPath(), StandardCharsets.UTF_8);
+            String key = Coordinator.getFields(lines.get(1))[0];
+            boolean first = output.getName().endsWith("-1.out.csv");
+            if (key.equals("broken") || (key.equals("flaky") && first)) {
+                System.exit(1);
+            } else if (key.equals("invalid")) {
+                System.exit(Validation.EXIT_CODE);
+            } else if (key.equals("slow") && first) {
+                Thread.sleep(60000L);
+            }
+            Files.write(output.toPath(), lines, StandardCharsets.UTF_8);
+            Metrics result = new Metrics();
+            result.set("rows_written", lines.size() - 1);
+            result.set("rows_suppressed", 0);
+            result.writeJson(metrics);
+        }
+    }
+
+    /** Directory of the test */
+    private File directory;
+
+    /**
+     * Creates the directory
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = TestFixtures.createDirectory("coordinator");
+    }
+
+    /**
+     * Deletes the directory
+     */
+    @After
+    public void tearDown() {
+        TestFixtures.delete(directory);
+    }
+
+    /**
+     * Quotes are removed, also around delimiters and escaped quotes
+     */
+    @Test
+    public void testRemovesQuotes() {
+        assertArrayEquals(new String[] { "a", "b,c", "d\"e", "" }, Coordinator.getFields("a,\"b,c\",\"d\"\"e\",\r"));
+    }
+
+    /**
+     * Quoted and unquoted keys with the same value belong to the same shard
+     */
+    @Test
+    public void testSplitsByQuotedKeys() throws IOException {
+        File input = write("input.csv", "site,age", "\"A, North\",9", "B,10", "\"A, North\",11", "\"B\",12");
+        Coordinator coordinator = new Coordinator(input, "site", 1, Collections.emptyList(), Collections.emptyList(), directory);
+        assertEquals(2, coordinator.split().size());
+        assertEquals(Arrays.asList("site,age", "\"A, North\",9", "\"A, North\",11"), read("shard-0.csv"));
+        assertEquals(Arrays.asList("site,age", "B,10", "\"B\",12"), read("shard-1.csv"));
+    }
+
+    /**
+     * The key column must exist
+     */
+    @Test(expected = IOException.class)
+    public void testRejectsMissingKey() throws IOException {
+        File input = write("input.csv", "site,age", "A,9");
+        new Coordinator(input, "school", 1, Collections.emptyList(), Collections.emptyList(), directory).split();
+    }
+
+    /**
+     * Outputs are concatenated in the order of the keys, keeping only the first header
+     */
+    @Test(timeout = 60000L)
+    public void testConcatenatesWithOneHeader() throws IOException {
+        File input = write("input.csv", "site,age", "A,9", "B,10", "A,11", "C,12");
+        File output = new File(directory, "output.csv");
+        Metrics metrics = new Metrics();
+        IO.WriteStatistics statistics = create(input, 2).run(output, metrics);
+        assertEquals(Arrays.asList("site,age", "A,9", "A,11", "B,10", "C,12"), TestFixtures.read(output));
+        assertEquals(4, statistics.getRowsWritten());
+        assertEquals(3d, metrics.getCounter("shards"), 0d);
+        assertEquals(4d, metrics.getCounter("rows_written"), 0d);
+    }
+
+    /**
+     * A failed shard is retried once
+     */
+    @Test(timeout = 60000L)
+    public void testRetriesFailedShard() throws IOException {
+        File input = write("input.csv", "site,age", "flaky,9", "A,10");
+        File output = new File(directory, "output.csv");
+        Metrics metrics = new Metrics();
+        create(input, 1).run(output, metrics);
+        assertEquals(Arrays.asList("site,age", "flaky,9", "A,10"), TestFixtures.read(output));
+        assertEquals(1d, metrics.getCounter("worker_failures"), 0d);
+        assertEquals(3d, metrics.getCounter("worker_launches"), 0d);
+    }
+
+    /**
+     * A shard which fails twice fails the run
+     */
+    @Test(timeout = 60000L)
+    public void testFailsAfterSecondFailure() throws IOException {
+        File input = write("input.csv", "site,age", "broken,9", "A,10");
+        Metrics metrics = new Metrics();
+        try {
+            create(input, 1).run(new File(directory, "output.csv"), metrics);
+            fail("Expected the run to fail");
+        } catch (IOException e) {
+            assertEquals(2d, metrics.getCounter("worker_failures"), 0d);
+        }
+    }
+
+    /**
+     * A shard which fails validation is not retried
+     */
+    @Test(timeout = 60000L)
+    public void testDoesNotRetryValidationFailure() throws IOException {
+        File input = write("input.csv", "site,age", "invalid,9");
+        Metrics metrics = new Metrics();
+        try {
+            create(input, 1).run(new File(directory, "output.csv"), metrics);
+            fail("Expected the run to fail");
+        } catch (Validation.ViolationException e) {
+            assertEquals(1d, metrics.getCounter("worker_launches"), 0d);
+        }
+    }
+
+    /**
+     * A straggling shard is started again by an idle worker, and the first attempt to finish wins
+     */
+    @Test(timeout = 30000L)
+    public void testRelaunchesStraggler() throws IOException {
+        File input = write("input.csv", "site,age", "slow,9", "A,10");
+        File output = new File(directory, "output.csv");
+        Metrics metrics = new Metrics();
+        create(input, 2).run(output, metrics);
+        assertEquals(Arrays.asList("site,age", "slow,9", "A,10"), TestFixtures.read(output));
+        assertEquals(1d, metrics.getCounter("worker_speculative_launches"), 0d);
+    }
+
+    /**
+     * Creates a coordinator with simulated workers
+     * @param input
+     * @param workers
+     * @return
+     */
+    private Coordinator create(File input, int workers) {
+        return new Coordinator(input, "site", workers, Collections.emptyList(), Collections.emptyList(), directory, Worker.class.getName());
+    }
+
+    /**
+     * Writes lines to a file in the directory
+     * @param name
+     * @param lines
+     * @return
+     * @throws IOException
+     */
+    private File write(String name, String... lines) throws IOException {
+        return TestFixtures.write(directory, name, lines);
+    }
+
+    /**
+     * Reads the lines of a file in the directory
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    private List<String> read(String name) throws IOException {
+        return TestFixtures.read(new File(directory, name));
+    }
+}
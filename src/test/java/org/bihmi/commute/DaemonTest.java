@@ -0,0 +1,225 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the admission and cancellation of jobs. Jobs are simulated: they
+ * write their output and then wait until they are released or cancelled.
+ */
+public class DaemonTest {
+
+    /**
+     * Response of the service
+     */
+    private static class Response {
+
+        /** Status code */
+        private final int status;
+
+        /** Body */
+        private final String body;
+
+        /** Header Retry-After, null if not set */
+        private final String retryAfter;
+
+        /**
+         * Creates a new instance
+         * @param status
+         * @param body
+         * @param retryAfter
+         */
+        Response(int status, String body, String retryAfter) {
+            this.status = status;
+            this.body = body;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /** Directory of the test */
+    private File directory;
+
+    /** Signalled when the first job has started */
+    private CountDownLatch started;
+
+    /** Releases all jobs */
+    private CountDownLatch released;
+
+    /** Service with one worker and one queued job */
+    private Daemon daemon;
+
+    /**
+     * Starts the service
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = TestFixtures.createDirectory("daemon");
+        started = new CountDownLatch(1);
+        released = new CountDownLatch(1);
+        daemon = new Daemon(0, 1, 1, new HierarchyCache(), new Metrics(), 4096, directory) {
+            @Override
+            Batch.Outcome execute(Batch.Job job, RunContext context) {
+                try {
+                    Files.write(job.getOutput().toPath(), "output".getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    return new Batch.Outcome(job, null, e, 0);
+                }
+                started.countDown();
+                while (!context.isCancelled() && released.getCount() > 0) {
+                    try {
+                        released.await(10, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // Cancellation is checked in the loop
+                    }
+                }
+                return new Batch.Outcome(job, null, null, 0);
+            }
+        };
+        daemon.start();
+    }
+
+    /**
+     * Stops the service
+     * @throws InterruptedException
+     */
+    @After
+    public void tearDown() throws InterruptedException {
+        released.countDown();
+        daemon.stop(10000L);
+        TestFixtures.delete(directory);
+    }
+
+    /**
+     * Submissions beyond the queue are rejected with 503 and Retry-After
+     */
+    @Test
+    public void testRejectsSubmissionsBeyondQueue() throws Exception {
+        assertEquals(202, submit("first.csv").status);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(202, submit("second.csv").status);
+        Response rejected = submit("third.csv");
+        assertEquals(503, rejected.status);
+        assertEquals("1", rejected.retryAfter);
+        assertTrue(request("GET", "/metrics").body.contains("commute_daemon_jobs_rejected 1"));
+    }
+
+    /**
+     * Outputs written by queued or running jobs can not be submitted again
+     * until the jobs are cancelled
+     */
+    @Test
+    public void testRejectsDuplicateOutput() throws Exception {
+        assertEquals(202, submit("first.csv").status);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Response queued = submit("second.csv");
+        assertEquals(202, queued.status);
+        Response running = submit("first.csv");
+        assertEquals(409, running.status);
+        assertTrue(running.body.contains("job 1"));
+        assertEquals(409, submit("second.csv").status);
+
+        // Cancelling the queued job releases its output and its place in the queue
+        assertEquals(200, request("DELETE", "/jobs/2").status);
+        assertEquals(202, submit("second.csv").status);
+    }
+
+    /**
+     * Queued jobs are removed, running jobs are stopped and their output is
+     * discarded
+     */
+    @Test
+    public void testCancelsJobs() throws Exception {
+        assertEquals(202, submit("first.csv").status);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(202, submit("second.csv").status);
+
+        Response queued = request("DELETE", "/jobs/2");
+        assertEquals(200, queued.status);
+        assertTrue(queued.body.contains("\"state\": \"CANCELLED\""));
+        assertTrue(queued.body.contains("Cancelled while queued"));
+        assertFalse(new File(directory, "second.csv").exists());
+
+        assertTrue(new File(directory, "first.csv").exists());
+        assertTrue(request("DELETE", "/jobs/1").body.contains("\"state\": \"CANCELLED\""));
+        long timeout = System.currentTimeMillis() + 10000L;
+        while (!request("GET", "/jobs/1").body.contains("output discarded") && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertTrue(request("GET", "/jobs/1").body.contains("Cancelled while running, output discarded"));
+        assertFalse(new File(directory, "first.csv").exists());
+        assertEquals(404, request("GET", "/jobs/3").status);
+    }
+
+    /**
+     * Submits a job with the given output
+     * @param output
+     * @return
+     * @throws IOException
+     */
+    private Response submit(String output) throws IOException {
+        return request("POST", "/jobs?input=input.csv&output=" + URLEncoder.encode(output, "UTF-8"));
+    }
+
+    /**
+     * Sends a request to the service
+     * @param method
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    private Response request(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (method.equals("POST")) {
+            connection.setDoOutput(true);
+            connection.getOutputStream().close();
+        }
+        int status = connection.getResponseCode();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+        }
+        String retryAfter = connection.getHeaderField("Retry-After");
+        connection.disconnect();
+        return new Response(status, new String(body.toByteArray(), StandardCharsets.UTF_8), retryAfter);
+    }
+}
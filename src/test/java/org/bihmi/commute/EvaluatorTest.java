@@ -0,0 +1,96 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+
+import org.deidentifier.arx.DataHandle;
+import org.junit.Test;
+
+/**
+ * Tests for the evaluation of outputs
+ */
+public class EvaluatorTest {
+
+    /**
+     * Classes, risks and losses of an output with a suppressed row
+     */
+    @Test
+    public void testCountsClassesAndRisks() {
+        DataHandle input = TestFixtures.createTyped(new String[] { "walk", "car", "100", "200", "1.5", "30", "9", "female" },
+                                                    new String[] { "walk", "car", "200", "200", "1.5", "30", "9", "female" },
+                                                    new String[] { "walk", "car", "300", "200", "1.5", "30", "9", "female" },
+                                                    new String[] { "car", "car", "100", "200", "1.5", "30", "9", "male" },
+                                                    new String[] { "walk", "car", "100", "200", "1.5", "30", "9", "female" }).getHandle();
+        String[] mean = { "walk", "car", "200", "200", "1.5", "30", "9", "female" };
+        String[] generalized = { "car,public", "car", "100", "200", "1.5", "30", "9", "male" };
+        Evaluator.Evaluation evaluation = Evaluator.evaluate(input, createOutput(new String[][] { mean, generalized, null }, 0, 0, 0, 1, 2));
+
+        assertEquals(2, evaluation.getNumClasses());
+        assertEquals(1, evaluation.getMinClassSize());
+        assertEquals(3, evaluation.getMaxClassSize());
+        assertEquals(2d, evaluation.getAvgClassSize(), 0d);
+        assertEquals(1d, evaluation.getHighestRisk(), 0d);
+        assertEquals(0.5d, evaluation.getAverageRisk(), 0d);
+        assertEquals(0.25d, evaluation.getRecordsAtHighestRisk(), 0d);
+
+        // Suppressed rows are lost, numeric differences are relative to the range of the input
+        assertEquals(0.4d, evaluation.getLoss(IO.FIELD_COMMUTE_FROM_SCHOOL), 1e-9d);
+        assertEquals(0.2d, evaluation.getLoss(IO.FIELD_COMMUTE_TO_SCHOOL), 1e-9d);
+        assertEquals(0.4d, evaluation.getLoss(IO.FIELD_DISTANCE_TO_SCHOOL), 1e-9d);
+        assertEquals(0.2d, evaluation.getLoss(IO.FIELD_DISTANCE_FROM_SCHOOL), 1e-9d);
+        assertEquals(0.25d, evaluation.getLoss(), 1e-9d);
+
+        // Histogram of class sizes
+        Metrics metrics = new Metrics();
+        evaluation.record(metrics);
+        assertEquals(1d, metrics.getCounter("evaluation_classes_size_le_1"), 0d);
+        assertEquals(1d, metrics.getCounter("evaluation_classes_size_le_3"), 0d);
+    }
+
+    /**
+     * Tuples which differ in a single column form different classes
+     */
+    @Test
+    public void testSeparatesClassesByEveryColumn() {
+        DataHandle input = TestFixtures.createTyped(TestFixtures.VALID_ROW, TestFixtures.VALID_ROW, TestFixtures.VALID_ROW,
+                                                    TestFixtures.VALID_ROW).getHandle();
+        String[] female = TestFixtures.VALID_ROW.clone();
+        String[] male = TestFixtures.VALID_ROW.clone();
+        male[7] = "male";
+        String[] swapped = TestFixtures.VALID_ROW.clone();
+        swapped[0] = TestFixtures.VALID_ROW[1];
+        swapped[1] = TestFixtures.VALID_ROW[0];
+        Evaluator.Evaluation evaluation = Evaluator.evaluate(input, createOutput(new String[][] { female, male, swapped }, 0, 1, 2, 0));
+
+        assertEquals(3, evaluation.getNumClasses());
+        assertEquals(1, evaluation.getMinClassSize());
+        assertEquals(2, evaluation.getMaxClassSize());
+        assertEquals(1d, evaluation.getHighestRisk(), 0d);
+        assertEquals(0.75d, evaluation.getAverageRisk(), 0d);
+        assertEquals(0.5d, evaluation.getRecordsAtHighestRisk(), 0d);
+    }
+
+    /**
+     * Creates an output of fixed rows with all columns of the input
+     * @param fixed rows, null rows are suppressed
+     * @param rows index of the fixed row of each row
+     * @return
+     */
+    private static PartitionedResult createOutput(String[][] fixed, int... rows) {
+        return new PartitionedResult(IO.COLUMNS, new DataHandle[0], fixed, new int[rows.length], rows);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+/**
+ * Tests for the parallel gzip compression
+ */
+public class GzipChannelTest {
+
+    /**
+     * Blocks become consecutive gzip members, which GZIPInputStream reads as
+     * one stream in the order they were written
+     */
+    @Test
+    public void testWritesMultipleMembers() throws IOException {
+        byte[] data = new byte[(1 << 20) * 5 / 2 + 17];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = new GzipChannel(Channels.newChannel(compressed), 3)) {
+            
+            // Writes of odd sizes, so that writes span blocks
+            for (int offset = 0; offset < data.length; offset += 100003) {
+                channel.write(ByteBuffer.wrap(data, offset, Math.min(100003, data.length - offset)));
+            }
+        }
+        byte[] bytes = compressed.toByteArray();
+        assertEquals(3, countMembers(bytes));
+        assertArrayEquals(data, decompress(bytes));
+    }
+
+    /**
+     * Nothing written results in no members
+     */
+    @Test
+    public void testWritesNothing() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new GzipChannel(Channels.newChannel(compressed), 2).close();
+        assertEquals(0, compressed.size());
+    }
+
+    /**
+     * Counts the gzip members by decompressing them one at a time
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    private static int countMembers(byte[] bytes) throws IOException {
+        int members = 0;
+        int offset = 0;
+        while (offset < bytes.length) {
+            assertTrue((bytes[offset] & 0xff) == 0x1f && (bytes[offset + 1] & 0xff) == 0x8b);
+            Inflater inflater = new Inflater(true);
+            try {
+                // Header of GZIPOutputStream: 10 bytes without optional fields
+                inflater.setInput(bytes, offset + 10, bytes.length - offset - 10);
+                byte[] buffer = new byte[1 << 16];
+                while (!inflater.finished()) {
+                    inflater.inflate(buffer);
+                }
+                // Trailer: CRC-32 and size
+                offset = bytes.length - inflater.getRemaining() + 8;
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+            members++;
+        }
+        return members;
+    }
+
+    /**
+     * Decompresses all members
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    private static byte[] decompress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                result.write(buffer, 0, read);
+            }
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.deidentifier.arx.AttributeType.Hierarchy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the cache of prepared hierarchies
+ */
+public class HierarchyCacheTest {
+
+    /** Values */
+    private static final String[] VALUES = { "1.5", "2", "30.25" };
+
+    /** Other values */
+    private static final String[] OTHER_VALUES = { "4", "5.5" };
+
+    /** Directory of the test */
+    private File directory;
+
+    /**
+     * Creates the directory
+     * @throws IOException
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = TestFixtures.createDirectory("hierarchies");
+    }
+
+    /**
+     * Deletes the directory
+     */
+    @After
+    public void tearDown() {
+        TestFixtures.delete(directory);
+    }
+
+    /**
+     * Hierarchies are shared in memory, independent of the order of the values
+     */
+    @Test
+    public void testReusesHierarchyInMemory() {
+        HierarchyCache cache = new HierarchyCache();
+        Hierarchy hierarchy = cache.get(Anon.MVPA, VALUES);
+        assertSame(hierarchy, cache.get(Anon.MVPA, new String[] { "30.25", "1.5", "2" }));
+        assertEquals(1, cache.getNumBuilds());
+        assertEquals(1, cache.getNumHits());
+    }
+
+    /**
+     * Different specifications and values are different entries
+     */
+    @Test
+    public void testSeparatesSpecificationsAndValues() {
+        HierarchyCache cache = new HierarchyCache();
+        cache.get(Anon.MVPA, VALUES);
+        cache.get(Anon.MVPA, OTHER_VALUES);
+        cache.get(Anon.VO2_MAX, new String[] { "30", "40" });
+        assertEquals(3, cache.getNumBuilds());
+        assertEquals(0, cache.getNumHits());
+    }
+
+    /**
+     * Hierarchies persisted by one cache are loaded by another one
+     */
+    @Test
+    public void testLoadsPersistedHierarchy() {
+        Hierarchy built = new HierarchyCache(directory).get(Anon.MVPA, VALUES);
+        assertEquals(1, directory.listFiles((dir, name) -> name.endsWith(".csv")).length);
+        HierarchyCache cache = new HierarchyCache(directory);
+        Hierarchy loaded = cache.get(Anon.MVPA, VALUES);
+        assertEquals(1, cache.getNumLoads());
+        assertEquals(0, cache.getNumBuilds());
+        assertArrayEquals(built.getHierarchy(), loaded.getHierarchy());
+    }
+
+    /**
+     * Only the most recently used hierarchies are kept in memory
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        HierarchyCache cache = new HierarchyCache(null, 2);
+        cache.get(Anon.MVPA, VALUES);
+        cache.get(Anon.MVPA, OTHER_VALUES);
+        cache.get(Anon.MVPA, VALUES);
+        cache.get(Anon.VO2_MAX, new String[] { "30", "40" });
+        assertEquals(3, cache.getNumBuilds());
+        
+        // The values used most recently are still cached, the others are built again
+        cache.get(Anon.MVPA, VALUES);
+        assertEquals(3, cache.getNumBuilds());
+        cache.get(Anon.MVPA, OTHER_VALUES);
+        assertEquals(4, cache.getNumBuilds());
+    }
+}
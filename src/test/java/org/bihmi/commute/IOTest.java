@@ -0,0 +1,78 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for writing results
+ */
+public class IOTest {
+
+    /** Header */
+    private static final String[] HEADER = { IO.FIELD_COMMUTE_TO_SCHOOL, IO.FIELD_DISTANCE_TO_SCHOOL, IO.FIELD_AGE };
+
+    /**
+     * All rows are streamed through a buffer smaller than a row
+     */
+    @Test
+    public void testStreamsThroughSmallBuffer() throws IOException {
+        File output = File.createTempFile("output", ".csv");
+        try {
+            IO.WriteStatistics statistics = IO.writeResult(TestFixtures.create(HEADER, new String[] { "walk", "100", "9.1" }, new String[] { "public", "2500", "12.75" }).getHandle(), output, new IO.WriteOptions(IO.MIN_BUFFER_SIZE));
+            assertEquals(2, statistics.getRowsWritten());
+            assertEquals(0, statistics.getRowsSuppressed());
+            assertEquals(Arrays.asList("CommToSch,DistFromHome,age", "walk,100,9.1", "public,2500,12.75"),
+                         TestFixtures.read(output));
+        } finally {
+            output.delete();
+        }
+    }
+
+    /**
+     * Suppressed rows are skipped and counted, the header is always returned
+     */
+    @Test
+    public void testSkipsSuppressedRows() {
+        List<String[]> rows = TestFixtures.rows(HEADER, new String[] { "walk", "100", "9" }, new String[] { "car", "200", "10" },
+                                                new String[] { "car", "300", "11" });
+        IO.SuppressionFilter filter = new IO.SuppressionFilter(rows.iterator(), row -> row != 1);
+        assertArrayEquals(HEADER, filter.next());
+        assertArrayEquals(rows.get(2), filter.next());
+        assertFalse(filter.hasNext());
+        assertEquals(1, filter.getRowsReturned());
+        assertEquals(2, filter.getRowsSuppressed());
+    }
+
+    /**
+     * Collapsed tuples cannot be expanded in partitions
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCollapseOfPartitions() throws IOException {
+        IO.WriteOptions options = new IO.WriteOptions(IO.DEFAULT_BUFFER_SIZE);
+        options.setCollapse(new TupleCollapse(2));
+        IO.writeResult((PartitionedResult) null, new File("output.csv"), options);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for the state of the incremental anonymization
+ */
+public class IncrementalAnonymizationTest {
+
+    /**
+     * Classes, counts and recoded rows are restored from the files of a state
+     */
+    @Test
+    public void testStoresClassesOfState() throws IOException {
+        File directory = TestFixtures.createDirectory("state");
+        try {
+            Map<String, Integer> levels = new LinkedHashMap<>();
+            levels.put(IO.FIELD_AGE, 1);
+            levels.put(IO.FIELD_GENDER, 0);
+            Map<String, Map<String, Integer>> counts = new HashMap<>();
+            counts.put(IO.FIELD_COMMUTE_TO_SCHOOL, new HashMap<String, Integer>());
+            Map<Integer, String[]> recoded = new HashMap<>();
+            recoded.put(2, new String[] { "[8, 10[", "*" });
+            IncrementalAnonymization.State state = new IncrementalAnonymization.State(levels, 3, 1d / 3d, recoded, "sample", counts,
+                    new ArrayList<IncrementalAnonymization.EquivalenceClass>(), new int[] { 0, 0, 1 });
+            state.getClass("released").output = new String[] { "9.5", "female" };
+            state.getClass("suppressed").rows.add(2);
+            state.count(new String[] { IO.FIELD_COMMUTE_TO_SCHOOL, IO.FIELD_AGE }, new String[] { "walk", "9" });
+            state.count(new String[] { IO.FIELD_COMMUTE_TO_SCHOOL, IO.FIELD_AGE }, new String[] { "walk", "10" });
+            File file = new File(directory, "cohort.state");
+            state.save(file);
+
+            IncrementalAnonymization.State loaded = IncrementalAnonymization.State.load(file);
+            IncrementalAnonymization.EquivalenceClass released = loaded.getClass("released");
+            IncrementalAnonymization.EquivalenceClass suppressed = loaded.getClass("suppressed");
+            assertArrayEquals(new String[] { "9.5", "female" }, released.output);
+            assertTrue(released.rows.isEmpty());
+            assertNull(suppressed.output);
+            assertEquals(2, (int) suppressed.rows.get(0));
+            assertSame(suppressed, loaded.getClass("suppressed"));
+            assertArrayEquals(new String[] { "[8, 10[", "*" }, loaded.recoded.get(2));
+            assertEquals(2, (int) loaded.counts.get(IO.FIELD_COMMUTE_TO_SCHOOL).get("walk"));
+            assertFalse(loaded.counts.containsKey(IO.FIELD_AGE));
+            assertEquals(levels, new HashMap<>(loaded.levels));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * States which only contain the transformation have no classes
+     */
+    @Test
+    public void testStoresTransformationOnly() throws IOException {
+        File directory = TestFixtures.createDirectory("state");
+        try {
+            Map<String, Integer> levels = new LinkedHashMap<>();
+            levels.put(IO.FIELD_AGE, 2);
+            File file = new File(directory, "run.state");
+            new IncrementalAnonymization.State(levels, 10, 0d, new HashMap<Integer, String[]>(), "sample",
+                    new HashMap<String, Map<String, Integer>>(), null, null).save(file);
+            assertFalse(IncrementalAnonymization.State.getClassesFile(file).exists());
+            assertNull(IncrementalAnonymization.State.load(file).classes);
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+}
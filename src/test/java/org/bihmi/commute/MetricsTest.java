@@ -0,0 +1,74 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests for the metrics
+ */
+public class MetricsTest {
+
+    /**
+     * Undefined values are null in JSON and are skipped when parsed
+     */
+    @Test
+    public void testWritesNullForUndefinedValues() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.set("nan", Double.NaN);
+        metrics.set("infinity", Double.POSITIVE_INFINITY);
+        metrics.set("rows", 3);
+        String json = metrics.toJson();
+        assertTrue(json.contains("\"nan\": null"));
+        assertTrue(json.contains("\"infinity\": null"));
+        Metrics parsed = new Metrics();
+        parsed.addJson(json);
+        assertEquals(0d, parsed.getCounter("nan"), 0d);
+        assertEquals(3d, parsed.getCounter("rows"), 0d);
+    }
+
+    /**
+     * Control characters are escaped and restored when parsed
+     */
+    @Test
+    public void testEscapesControlCharacters() throws IOException {
+        String name = "tab\tbell\u0007quote\"line\n";
+        assertEquals("tab\\u0009bell\\u0007quote\\\"line\\n", Metrics.escape(name));
+        Metrics metrics = new Metrics();
+        metrics.set(name, 1);
+        Metrics parsed = new Metrics();
+        parsed.addJson(metrics.toJson());
+        assertEquals(1d, parsed.getCounter(name), 0d);
+    }
+
+    /**
+     * Undefined values use the names of the Prometheus text format
+     */
+    @Test
+    public void testWritesPrometheusSpecialValues() {
+        Metrics metrics = new Metrics();
+        metrics.set("nan", Double.NaN);
+        metrics.set("infinity", Double.NEGATIVE_INFINITY);
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("commute_nan NaN\n"));
+        assertTrue(text.contains("commute_infinity -Inf\n"));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for recomputing arithmetic means from exact values
+ */
+public class NumericAggregationTest {
+
+    /** Header */
+    private static final String[] HEADER = { IO.FIELD_GENDER, IO.FIELD_MVPA_SQRT, IO.FIELD_AGE };
+
+    /**
+     * Rows which share all values of the output form a class
+     */
+    @Test
+    public void testComputesMeansPerClass() {
+        NumericAggregation aggregation = capture(new String[] { "male", "1", "9" }, new String[] { "male", "2", "10" },
+                                                 new String[] { "female", "4", "12" });
+        List<String[]> rows = apply(aggregation, new String[] { "male", "[0, 5[", "[8, 16[" }, new String[] { "male", "[0, 5[", "[8, 16[" },
+                                    new String[] { "female", "[0, 5[", "[8, 16[" });
+        assertEquals(1.5d, Double.parseDouble(rows.get(1)[1]), 1e-9d);
+        assertEquals(9.5d, Double.parseDouble(rows.get(2)[2]), 1e-9d);
+        assertEquals(4d, Double.parseDouble(rows.get(3)[1]), 1e-9d);
+        assertEquals("female", rows.get(3)[0]);
+    }
+
+    /**
+     * Missing values are ignored and suppressed cells are kept
+     */
+    @Test
+    public void testIgnoresMissingAndSuppressedValues() {
+        NumericAggregation aggregation = capture(new String[] { "male", "1", "9" }, new String[] { "male", "", "11" },
+                                                 new String[] { "female", "4", "12" });
+        List<String[]> rows = apply(aggregation, new String[] { "male", "*", "*" }, new String[] { "male", "*", "*" },
+                                    new String[] { "female", "*", "12" });
+        assertEquals("*", rows.get(1)[1]);
+        assertEquals("*", rows.get(2)[2]);
+        assertEquals(12d, Double.parseDouble(rows.get(3)[2]), 0d);
+        rows = apply(aggregation, new String[] { "male", "[0, 5[", "[8, 16[" }, new String[] { "male", "[0, 5[", "[8, 16[" },
+                     new String[] { "female", "[0, 5[", "[8, 16[" });
+        assertEquals(1d, Double.parseDouble(rows.get(1)[1]), 0d);
+        assertEquals(10d, Double.parseDouble(rows.get(1)[2]), 0d);
+    }
+
+    /**
+     * The output must contain all rows of the input
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsMissingRows() {
+        NumericAggregation aggregation = capture(new String[] { "male", "1", "9" }, new String[] { "male", "2", "10" });
+        apply(aggregation, new String[] { "male", "[0, 5[", "[8, 16[" });
+    }
+
+    /**
+     * Captures the values of the given rows
+     * @param rows
+     * @return
+     */
+    private static NumericAggregation capture(String[]... rows) {
+        NumericAggregation aggregation = new NumericAggregation(IO.FIELD_MVPA_SQRT, IO.FIELD_AGE);
+        aggregation.capture(TestFixtures.create(HEADER, rows).getHandle());
+        return aggregation;
+    }
+
+    /**
+     * Replaces the means of the given output rows and returns the header and all rows
+     * @param aggregation
+     * @param rows
+     * @return
+     */
+    private static List<String[]> apply(NumericAggregation aggregation, String[]... rows) {
+        List<String[]> output = TestFixtures.rows(HEADER, rows);
+        return TestFixtures.getRows(aggregation.apply(output::iterator));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for the quantization of numeric quasi-identifiers
+ */
+public class QuantizationTest {
+
+    /** Header */
+    private static final String[] HEADER = { IO.FIELD_DISTANCE_TO_SCHOOL, IO.FIELD_MVPA_SQRT, IO.FIELD_VO2_MAX, IO.FIELD_AGE };
+
+    /**
+     * Values are rounded down to the base intervals, starting at the minimum of the domain
+     */
+    @Test
+    public void testRoundsDownToBaseIntervals() {
+        String[][] rows = quantize(new Quantization(), new String[] { "101", "1.3", "31.1", "9.2" });
+        assertEquals(1d, Double.parseDouble(rows[1][1]), 0d);
+        assertEquals(30d, Double.parseDouble(rows[1][2]), 0d);
+        assertEquals(9d, Double.parseDouble(rows[1][3]), 0d);
+    }
+
+    /**
+     * Distances are only quantized if a precision is given
+     */
+    @Test
+    public void testQuantizesDistancesOnlyIfGiven() {
+        assertEquals("101", quantize(new Quantization(), new String[] { "101", "1", "30", "9" })[1][0]);
+        assertEquals("100", quantize(new Quantization(Collections.singletonMap(IO.FIELD_DISTANCE_TO_SCHOOL, 2d)),
+                                     new String[] { "101", "1", "30", "9" })[1][0]);
+    }
+
+    /**
+     * The domain excludes its maximum, values outside of it are kept
+     */
+    @Test
+    public void testKeepsValuesOutsideOfDomain() {
+        String[][] rows = quantize(new Quantization(), new String[] { "101", "60", "24", "x" });
+        assertEquals("60", rows[1][1]);
+        assertEquals("24", rows[1][2]);
+        assertEquals("x", rows[1][3]);
+    }
+
+    /**
+     * Means are recomputed from the exact values of all rows of a class
+     */
+    @Test
+    public void testRestoresMeansFromExactValues() {
+        Quantization quantization = new Quantization();
+        String[][] rows = quantize(quantization, new String[] { "101", "1.1", "30", "9" }, new String[] { "101", "1.4", "30", "9" });
+        List<String[]> output = TestFixtures.rows(rows[0], Arrays.copyOfRange(rows, 1, rows.length));
+        Iterator<String[]> restored = quantization.restore(output::iterator);
+        restored.next();
+        assertEquals(1.25d, Double.parseDouble(restored.next()[1]), 1e-9d);
+        assertEquals(1.25d, Double.parseDouble(restored.next()[1]), 1e-9d);
+    }
+
+    /**
+     * Classes are approximated by rows with identical output, so distinct classes
+     * whose output coincides share the mean of all of their rows
+     */
+    @Test
+    public void testMergesClassesWithIdenticalOutput() {
+        Quantization quantization = new Quantization();
+        String[][] rows = quantize(quantization, new String[] { "101", "1.1", "30", "9" }, new String[] { "101", "2.2", "30", "9" },
+                                   new String[] { "101", "1.4", "30", "9" }, new String[] { "101", "2.4", "30", "9" });
+        
+        // Two classes of ARX, {1.1, 2.2} and {1.4, 2.4}, both with the mean 1.5 of the quantized values
+        List<String[]> output = new ArrayList<>();
+        output.add(rows[0].clone());
+        for (int row = 1; row < rows.length; row++) {
+            String[] values = rows[row].clone();
+            values[1] = "1.5";
+            output.add(values);
+        }
+        Iterator<String[]> restored = quantization.restore(output::iterator);
+        restored.next();
+        for (int row = 1; row < rows.length; row++) {
+            assertEquals(1.775d, Double.parseDouble(restored.next()[1]), 1e-9d);
+        }
+    }
+
+    /**
+     * Precisions must divide the range of the base intervals
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsPrecisionNotDividingRange() {
+        new Quantization(Collections.singletonMap(IO.FIELD_AGE, 0.3d));
+    }
+
+    /**
+     * Categorical attributes cannot be quantized
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCategoricalAttribute() {
+        new Quantization(Collections.singletonMap(IO.FIELD_GENDER, 1d));
+    }
+
+    /**
+     * Quantizes rows and returns the header and the quantized rows
+     * @param quantization
+     * @param rows
+     * @return
+     */
+    private static String[][] quantize(Quantization quantization, String[]... rows) {
+        return TestFixtures.getRows(quantization.apply(TestFixtures.create(HEADER, rows)).getHandle()).toArray(new String[0][]);
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the run cache
+ */
+public class RunCacheTest {
+
+    /** Settings of the runs */
+    private static final String SETTINGS = "k=2";
+
+    /**
+     * Runs which have not been stored are not restored
+     */
+    @Test
+    public void testMissesUnknownRun() throws IOException {
+        File directory = TestFixtures.createDirectory("cache");
+        try {
+            RunCache cache = new RunCache(new File(directory, "cache"));
+            File input = TestFixtures.write(directory, "input.csv", "a,b", "1,2");
+            File output = new File(directory, "output.csv");
+            assertNull(cache.restore(cache.getKey(input, SETTINGS, false), output));
+            assertFalse(output.exists());
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Stored runs are restored for the same input and settings only, and their
+     * transformation becomes the latest one of the settings
+     */
+    @Test
+    public void testRestoresStoredRun() throws IOException {
+        File directory = TestFixtures.createDirectory("cache");
+        try {
+            RunCache cache = new RunCache(new File(directory, "cache"));
+            File input = TestFixtures.write(directory, "input.csv", "a,b", "1,2");
+            String key = cache.getKey(input, SETTINGS, false);
+            store(cache, directory, key, "level.age=1");
+
+            File output = new File(directory, "restored.csv");
+            IO.WriteStatistics statistics = cache.restore(key, output);
+            assertNotNull(statistics);
+            assertEquals(2, statistics.getRowsWritten());
+            assertEquals(1, statistics.getRowsSuppressed());
+            assertEquals(Arrays.asList("a,b", "*,*"), TestFixtures.read(output));
+            assertEquals(Arrays.asList("level.age=1"), TestFixtures.read(cache.getTransformationFile(key, SETTINGS, true)));
+
+            File changed = TestFixtures.write(directory, "changed.csv", "a,b", "1,3");
+            assertNull(cache.restore(cache.getKey(changed, SETTINGS, false), output));
+            assertNull(cache.restore(cache.getKey(input, SETTINGS + ", seed=1", false), output));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Runs which reuse the latest transformation are stored under keys of their
+     * own, so their output is never restored for a run which searches
+     */
+    @Test
+    public void testSeparatesReusedRuns() throws IOException {
+        File directory = TestFixtures.createDirectory("cache");
+        try {
+            RunCache cache = new RunCache(new File(directory, "cache"));
+            File first = TestFixtures.write(directory, "first.csv", "a,b", "1,2");
+            File second = TestFixtures.write(directory, "second.csv", "a,b", "1,2", "3,4");
+            store(cache, directory, cache.getKey(first, SETTINGS, false), "level.age=1");
+
+            // Reuse the transformation of the first run
+            String reused = cache.getKey(second, SETTINGS, true);
+            assertNotEquals(cache.getKey(second, SETTINGS, false), reused);
+            File transformation = cache.getTransformationFile(reused, SETTINGS, true);
+            assertEquals(Arrays.asList("level.age=1"), TestFixtures.read(transformation));
+            TestFixtures.write(transformation.getParentFile(), transformation.getName(), "level.age=1", "rows=2");
+            File output = TestFixtures.write(directory, "output.csv", "a,b", "*,*");
+            cache.store(reused, SETTINGS, output, new IO.WriteStatistics(2, 1), transformation);
+
+            // Only the reusing run is restored
+            File restored = new File(directory, "restored.csv");
+            assertNotNull(cache.restore(reused, restored));
+            assertNull(cache.restore(cache.getKey(second, SETTINGS, false), restored));
+            assertEquals(Arrays.asList("level.age=1", "rows=2"), TestFixtures.read(cache.getTransformationFile(reused, SETTINGS, true)));
+        } finally {
+            TestFixtures.delete(directory);
+        }
+    }
+
+    /**
+     * Stores a run with a transformation file of its own
+     * @param cache
+     * @param directory
+     * @param key
+     * @param transformation content of the transformation file
+     * @throws IOException
+     */
+    private static void store(RunCache cache, File directory, String key, String transformation) throws IOException {
+        File file = cache.getTransformationFile(key, SETTINGS, false);
+        assertFalse(file.exists());
+        TestFixtures.write(file.getParentFile(), file.getName(), transformation);
+        File output = TestFixtures.write(directory, "output.csv", "a,b", "*,*");
+        cache.store(key, SETTINGS, output, new IO.WriteStatistics(2, 1), file);
+    }
+}
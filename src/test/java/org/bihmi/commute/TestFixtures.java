@@ -0,0 +1,153 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataHandle;
+
+/**
+ * Fixtures shared by the tests: rows with a header, data created from them,
+ * and temporary directories with files
+ */
+final class TestFixtures {
+
+    /** Valid row with all columns of the input */
+    static final String[] VALID_ROW = { "walk", "car", "100", "200", "1.5", "30", "9", "female" };
+
+    /**
+     * No instances
+     */
+    private TestFixtures() {
+        // Empty by design
+    }
+
+    /**
+     * Returns the header and copies of the rows
+     * @param header
+     * @param rows
+     * @return
+     */
+    static List<String[]> rows(String[] header, String[]... rows) {
+        List<String[]> result = new ArrayList<>();
+        result.add(header);
+        for (String[] row : rows) {
+            result.add(row.clone());
+        }
+        return result;
+    }
+
+    /**
+     * Creates data with the header and the rows
+     * @param header
+     * @param rows
+     * @return
+     */
+    static Data create(String[] header, String[]... rows) {
+        return Data.create(rows(header, rows));
+    }
+
+    /**
+     * Creates data with all columns of the input and their data types
+     * @param rows
+     * @return
+     */
+    static Data createTyped(String[]... rows) {
+        Data data = create(IO.COLUMNS, rows);
+        for (int column = 0; column < IO.COLUMNS.length; column++) {
+            data.getDefinition().setDataType(IO.COLUMNS[column], IO.TYPES[column]);
+        }
+        return data;
+    }
+
+    /**
+     * Returns copies of the header and all rows of a handle
+     * @param handle
+     * @return
+     */
+    static List<String[]> getRows(DataHandle handle) {
+        return getRows(handle.iterator());
+    }
+
+    /**
+     * Returns copies of all rows of an iterator
+     * @param iterator
+     * @return
+     */
+    static List<String[]> getRows(Iterator<String[]> iterator) {
+        List<String[]> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next().clone());
+        }
+        return result;
+    }
+
+    /**
+     * Creates a temporary directory
+     * @param prefix
+     * @return
+     * @throws IOException
+     */
+    static File createDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * Writes lines to a file
+     * @param directory
+     * @param name
+     * @param lines
+     * @return
+     * @throws IOException
+     */
+    static File write(File directory, String name, String... lines) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Reads the lines of a file
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static List<String> read(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes a file or a directory with all of its content
+     * @param file
+     */
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
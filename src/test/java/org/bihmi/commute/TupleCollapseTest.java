@@ -0,0 +1,147 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.deidentifier.arx.Data;
+import org.deidentifier.arx.DataType;
+import org.junit.Test;
+
+/**
+ * Tests for collapsing identical tuples
+ */
+public class TupleCollapseTest {
+
+    /** Header */
+    private static final String[] HEADER = { IO.FIELD_COMMUTE_TO_SCHOOL, IO.FIELD_DISTANCE_TO_SCHOOL, IO.FIELD_DISTANCE_FROM_SCHOOL,
+                                             IO.FIELD_MVPA_SQRT, IO.FIELD_VO2_MAX, IO.FIELD_AGE };
+
+    /** Rows, of which the first four fall into the same base intervals */
+    private static final String[][] ROWS = { { "walk", "100", "200", "1.1", "30", "9.1" },
+                                             { "walk", "101", "201", "1.2", "31", "9.2" },
+                                             { "walk", "100", "201", "1.3", "32", "9.0" },
+                                             { "walk", "101", "200", "1.4", "30", "9.1" },
+                                             { "car", "500", "600", "5", "40", "12" } };
+
+    /**
+     * Rows are collapsed on their base intervals, keeping each tuple at most k times
+     */
+    @Test
+    public void testCollapsesOnBaseIntervals() {
+        TupleCollapse collapse = new TupleCollapse(2);
+        List<String[]> rows = TestFixtures.getRows(collapse.apply(TestFixtures.create(HEADER, ROWS)).getHandle());
+        assertEquals(4, rows.size());
+        assertEquals("100", rows.get(1)[1]);
+        assertEquals("200", rows.get(1)[2]);
+        assertEquals(1d, Double.parseDouble(rows.get(1)[3]), 0d);
+        assertTrue(Arrays.equals(rows.get(1), rows.get(2)));
+        assertEquals("car", rows.get(3)[0]);
+    }
+
+    /**
+     * Rows collapsed while they are read are the same as those collapsed from data
+     */
+    @Test
+    public void testCollapsesStreamedRows() {
+        TupleCollapse collapse = new TupleCollapse(2);
+        List<String[]> expected = TestFixtures.getRows(collapse.apply(TestFixtures.create(HEADER, ROWS)).getHandle());
+        TupleCollapse streamed = new TupleCollapse(2);
+        DataType<?>[] types = new DataType<?>[HEADER.length];
+        for (int column = 0; column < HEADER.length; column++) {
+            types[column] = IO.TYPES[Arrays.asList(IO.COLUMNS).indexOf(HEADER[column])];
+        }
+        List<String[]> actual = TestFixtures.getRows(streamed.apply(TestFixtures.rows(HEADER, ROWS).iterator(), types).getHandle());
+        assertEquals(expected.size(), actual.size());
+        for (int row = 0; row < expected.size(); row++) {
+            assertArrayEquals(expected.get(row), actual.get(row));
+        }
+        for (int row = 0; row < ROWS.length; row++) {
+            assertEquals(collapse.expand(r -> r == 1).test(row), streamed.expand(r -> r == 1).test(row));
+        }
+    }
+
+    /**
+     * All rows are restored in input order, with means of the exact values and the modes of the output
+     */
+    @Test
+    public void testExpandsWithExactMeansAndOutputModes() {
+        TupleCollapse collapse = new TupleCollapse(2);
+        List<String[]> output = TestFixtures.getRows(collapse.apply(TestFixtures.create(HEADER, ROWS)).getHandle());
+        for (String[] row : output.subList(1, output.size())) {
+            row[0] = "public";
+        }
+        List<String[]> rows = new ArrayList<>();
+        for (String[] row : collapse.expand(Data.create(output).getHandle())) {
+            rows.add(row.clone());
+        }
+        assertEquals(ROWS.length + 1, rows.size());
+        for (int row = 1; row <= 4; row++) {
+            assertEquals("public", rows.get(row)[0]);
+            assertEquals("101", rows.get(row)[1]);
+            assertEquals(1.25d, Double.parseDouble(rows.get(row)[3]), 1e-9d);
+            assertEquals(30.75d, Double.parseDouble(rows.get(row)[4]), 1e-9d);
+        }
+        assertEquals("500", rows.get(5)[1]);
+        assertEquals(5d, Double.parseDouble(rows.get(5)[3]), 0d);
+    }
+
+    /**
+     * Rows expanded from the same representative are independent copies
+     */
+    @Test
+    public void testExpandsIndependentRows() {
+        TupleCollapse collapse = new TupleCollapse(2);
+        List<String[]> output = TestFixtures.getRows(collapse.apply(TestFixtures.create(HEADER, ROWS)).getHandle());
+        List<String[]> rows = new ArrayList<>();
+        for (String[] row : collapse.expand(Data.create(output).getHandle())) {
+            rows.add(row);
+        }
+        for (int row = 1; row <= 4; row++) {
+            rows.get(row)[0] = "row" + row;
+        }
+        for (int row = 1; row <= 4; row++) {
+            assertEquals("row" + row, rows.get(row)[0]);
+        }
+    }
+
+    /**
+     * Rows are suppressed with their representative
+     */
+    @Test
+    public void testExpandsOutliers() {
+        TupleCollapse collapse = new TupleCollapse(2);
+        collapse.apply(TestFixtures.create(HEADER, ROWS));
+        assertTrue(collapse.expand(row -> row == 1).test(1));
+        assertTrue(collapse.expand(row -> row == 1).test(3));
+        assertFalse(collapse.expand(row -> row == 1).test(4));
+    }
+
+    /**
+     * k must be positive
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveK() {
+        new TupleCollapse(0);
+    }
+}
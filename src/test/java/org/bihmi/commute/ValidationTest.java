@@ -0,0 +1,120 @@
+/**
+ * Anonymization process for the commute health study
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bihmi.commute;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.deidentifier.arx.DataHandle;
+import org.junit.Test;
+
+/**
+ * Tests for the validation of the input against the domains of the hierarchies
+ */
+public class ValidationTest {
+
+    /** Valid row */
+    private static final String[] VALID = TestFixtures.VALID_ROW;
+
+    /** Row with values at the upper bounds of the domains */
+    private static final String[] MAXIMUM = { "walk", "car", "45000", "200", "60", "30", "9", "female" };
+
+    /** Row with an unknown category */
+    private static final String[] UNKNOWN = { "bike", "car", "100", "200", "1.5", "30", "9", "female" };
+
+    /**
+     * The domain includes its minimum but not its maximum
+     */
+    @Test
+    public void testDomainIsHalfOpen() {
+        assertTrue(Anon.MVPA.contains(0d));
+        assertTrue(!Anon.MVPA.contains(60d));
+        assertTrue(!Anon.MVPA.contains(Double.NaN));
+    }
+
+    /**
+     * Values at the upper bound violate the domain
+     */
+    @Test
+    public void testRejectsMaximum() throws IOException {
+        Validation validation = new Validation(Validation.Policy.DROP, null);
+        DataHandle handle = validation.apply(TestFixtures.createTyped(VALID, MAXIMUM), 1).getHandle();
+        assertEquals(1, handle.getNumRows());
+        assertEquals(1, validation.getReport().getRowsViolating());
+        assertEquals(2, validation.getReport().getViolations(null));
+    }
+
+    /**
+     * Clamped values are within the domain
+     */
+    @Test
+    public void testClampsIntoDomain() throws IOException {
+        DataHandle handle = new Validation(Validation.Policy.CLAMP, null).apply(TestFixtures.createTyped(MAXIMUM, UNKNOWN), 1).getHandle();
+        assertEquals(1, handle.getNumRows());
+        assertEquals("44999", handle.getValue(0, 2));
+        assertEquals("59.75", handle.getValue(0, 4));
+    }
+
+    /**
+     * Decimal values above the domain are clamped into the last base interval, integers below the bound
+     */
+    @Test
+    public void testClampsToLastBaseInterval() {
+        assertEquals(59.75d, Anon.MVPA.clamp(75d, false), 0d);
+        assertEquals(15.875d, Anon.AGE.clamp(16d, false), 0d);
+        assertEquals(44999d, Anon.DISTANCE.clamp(45000d, true), 0d);
+        assertEquals(50d, Anon.DISTANCE.clamp(3d, true), 0d);
+        assertEquals(1.5d, Anon.MVPA.clamp(1.5d, false), 0d);
+    }
+
+    /**
+     * Violating rows are written to the quarantine file
+     */
+    @Test
+    public void testQuarantinesViolatingRows() throws IOException {
+        File quarantine = File.createTempFile("quarantine", ".csv");
+        try {
+            DataHandle handle = new Validation(Validation.Policy.QUARANTINE, quarantine).apply(TestFixtures.createTyped(VALID, UNKNOWN, MAXIMUM), 1).getHandle();
+            assertEquals(1, handle.getNumRows());
+            List<String> lines = TestFixtures.read(quarantine);
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(1).startsWith("2,"));
+            assertTrue(lines.get(2).startsWith("3,"));
+        } finally {
+            quarantine.delete();
+        }
+    }
+
+    /**
+     * Violations fail the run by default
+     */
+    @Test(expected = Validation.ViolationException.class)
+    public void testFailsOnViolations() throws IOException {
+        new Validation(Validation.Policy.FAIL, null).apply(TestFixtures.createTyped(VALID, UNKNOWN), 1);
+    }
+
+    /**
+     * The quarantine policy requires a file
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuarantineRequiresFile() {
+        new Validation(Validation.Policy.QUARANTINE, null);
+    }
+}